@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded on-disk cache of contact photo thumbnails, consulted by {@link ContactPhotoManagerImpl}
+ * for photos missing from its in-memory caches.
+ * <p>
+ * Entries are keyed by the photo id or URI along with a bucket of the requested size, and hold
+ * the photo already scaled down for that bucket. Photos displayed after the process starts
+ * therefore need neither to be read from the contacts provider or downloaded again, nor to be
+ * decoded at full size. The least recently used entries are evicted once the total size of the
+ * entries exceeds the size of the cache.
+ * <p>
+ * {@link #invalidate()} marks all entries as stale rather than deleting them: a stale entry can
+ * still be displayed while the photo is reloaded from its source, and is marked fresh again once
+ * the reloaded photo is put back. Entries written by a previous process are stale too, as the
+ * photos may have changed meanwhile without their ids changing.
+ * <p>
+ * This class is thread-safe. All methods except {@link #invalidate()} perform I/O and must not
+ * be called on the UI thread.
+ */
+final class ContactPhotoDiskCache {
+    private static final String TAG = "ContactPhotoDiskCache";
+
+    private static final String DIRECTORY_NAME = "contact_photos";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    /** Maximum size of an entry. Bigger photos are not cached on disk. */
+    public static final int MAX_ENTRY_BYTES = 64 * 1024;
+
+    /** Generation of the entries written by a previous process, older than any current one. */
+    private static final int PREVIOUS_PROCESS_GENERATION = -1;
+
+    /** Size buckets of photos requested with a given extent are powers of two, at least this. */
+    private static final int MIN_EXTENT_BUCKET = 64;
+
+    private static final int JPEG_QUALITY = 90;
+
+    /** The content of an entry, and whether it was written since the last invalidation. */
+    public static final class Entry {
+        public final byte[] bytes;
+        public final boolean fresh;
+
+        private Entry(byte[] bytes, boolean fresh) {
+            this.bytes = bytes;
+            this.fresh = fresh;
+        }
+    }
+
+    /** The size of an entry, and the generation of the cache in which it was last written. */
+    private static final class EntryInfo {
+        final int size;
+        final int generation;
+
+        EntryInfo(int size, int generation) {
+            this.size = size;
+            this.generation = generation;
+        }
+    }
+
+    private final Context mContext;
+    private final long mMaxSizeBytes;
+    private final ContactPhotoMetrics mMetrics;
+
+    /** Incremented by {@link #invalidate()}, entries of older generations are stale. */
+    private final AtomicInteger mGeneration = new AtomicInteger(0);
+    /** Numbers the temporary files, so that concurrent writes of an entry use distinct ones. */
+    private final AtomicInteger mTempFileCount = new AtomicInteger(0);
+
+    /** The directory of the entries, null until the index is loaded. */
+    private File mDirectory;
+    /** The entries by file name, in least recently used order. Loaded on first use. */
+    private LinkedHashMap<String, EntryInfo> mEntries;
+    /** Total size of the entries. */
+    private long mSizeBytes;
+
+    public ContactPhotoDiskCache(Context context, long maxSizeBytes,
+            ContactPhotoMetrics metrics) {
+        mContext = context;
+        mMaxSizeBytes = maxSizeBytes;
+        mMetrics = metrics;
+    }
+
+    /**
+     * Returns the cached photo for the given key and requested extent, or null if there is none.
+     */
+    public Entry get(Object key, int requestedExtent) {
+        final String fileName = getFileName(key, requestedExtent);
+        final File file;
+        final EntryInfo info;
+        synchronized (this) {
+            if (!ensureIndexLoaded()) {
+                return null;
+            }
+            info = mEntries.get(fileName);
+            if (info == null) {
+                return null;
+            }
+            file = new File(mDirectory, fileName);
+        }
+        final byte[] bytes = readFile(file);
+        if (bytes == null) {
+            remove(fileName);
+            return null;
+        }
+        // Persist the access order, so that it is known again after the process restarts.
+        file.setLastModified(System.currentTimeMillis());
+        return new Entry(bytes, info.generation == mGeneration.get());
+    }
+
+    /**
+     * Stores the given photo for the given key and requested extent, unless it is too big.
+     * Putting the same photo as the one already cached only marks the entry as fresh.
+     */
+    public void put(Object key, int requestedExtent, byte[] bytes) {
+        if (bytes == null || bytes.length == 0 || bytes.length > MAX_ENTRY_BYTES) {
+            return;
+        }
+        final String fileName = getFileName(key, requestedExtent);
+        final int generation = mGeneration.get();
+        final File file;
+        final EntryInfo previousInfo;
+        synchronized (this) {
+            if (!ensureIndexLoaded()) {
+                return;
+            }
+            previousInfo = mEntries.get(fileName);
+            file = new File(mDirectory, fileName);
+        }
+
+        File tempFile = null;
+        if (previousInfo == null || previousInfo.size != bytes.length
+                || !Arrays.equals(bytes, readFile(file))) {
+            tempFile = new File(file.getPath() + "." + mTempFileCount.incrementAndGet()
+                    + TEMP_FILE_SUFFIX);
+            if (!writeFile(tempFile, bytes)) {
+                remove(fileName);
+                return;
+            }
+        }
+
+        // Several threads may put the same entry at once: the file is replaced while holding the
+        // lock, so that the index always describes the last file renamed into place.
+        synchronized (this) {
+            if (tempFile != null && !tempFile.renameTo(file)) {
+                tempFile.delete();
+                remove(fileName);
+                return;
+            }
+            final EntryInfo info = mEntries.remove(fileName);
+            if (info != null) {
+                mSizeBytes -= info.size;
+            }
+            mEntries.put(fileName, new EntryInfo(bytes.length, generation));
+            mSizeBytes += bytes.length;
+            trimToSize();
+        }
+    }
+
+    /**
+     * Marks all the entries as stale. Can be called on any thread.
+     */
+    public void invalidate() {
+        mGeneration.incrementAndGet();
+    }
+
+    /**
+     * Returns the given bitmap compressed to be put in the cache, or null if it could not be.
+     */
+    public static byte[] compress(Bitmap bitmap) {
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        final boolean compressed = bitmap.hasAlpha()
+                ? bitmap.compress(Bitmap.CompressFormat.PNG, 0, stream)
+                : bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, stream);
+        return compressed ? stream.toByteArray() : null;
+    }
+
+    /**
+     * Returns the size bucket of the given requested extent, or 0 if no extent was requested.
+     */
+    @VisibleForTesting
+    static int getExtentBucket(int requestedExtent) {
+        if (requestedExtent <= 0) {
+            return 0;
+        }
+        if (requestedExtent <= MIN_EXTENT_BUCKET) {
+            return MIN_EXTENT_BUCKET;
+        }
+        final int bucket = Integer.highestOneBit(requestedExtent);
+        return bucket == requestedExtent ? bucket : bucket << 1;
+    }
+
+    private static String getFileName(Object key, int requestedExtent) {
+        final String name = key instanceof Long
+                ? "id_" + key : "uri_" + hash(key.toString());
+        return name + "_" + getExtentBucket(requestedExtent);
+    }
+
+    private static String hash(String value) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(value.getBytes());
+            final StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                final int byteValue = b & 0xff;
+                if (byteValue < 0x10) {
+                    hex.append('0');
+                }
+                hex.append(Integer.toHexString(byteValue));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(value.hashCode());
+        }
+    }
+
+    /**
+     * Lists the entries stored by a previous process, oldest access first.
+     *
+     * @return whether the cache can be used
+     */
+    private boolean ensureIndexLoaded() {
+        if (mEntries != null) {
+            return mDirectory != null;
+        }
+        mEntries = new LinkedHashMap<>(16, 0.75f, true /* accessOrder */);
+        final File directory = new File(mContext.getCacheDir(), DIRECTORY_NAME);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(TAG, "Unable to create " + directory);
+            return false;
+        }
+        mDirectory = directory;
+
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return true;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                return Long.compare(lhs.lastModified(), rhs.lastModified());
+            }
+        });
+        for (File file : files) {
+            final long length = file.length();
+            if (file.getName().endsWith(TEMP_FILE_SUFFIX) || length == 0
+                    || length > MAX_ENTRY_BYTES) {
+                // Left over by a write which did not complete.
+                file.delete();
+                continue;
+            }
+            mEntries.put(file.getName(),
+                    new EntryInfo((int) length, PREVIOUS_PROCESS_GENERATION));
+            mSizeBytes += length;
+        }
+        trimToSize();
+        return true;
+    }
+
+    /** Evicts the least recently used entries until the cache fits in its size. */
+    private void trimToSize() {
+        final Iterator<Map.Entry<String, EntryInfo>> iterator = mEntries.entrySet().iterator();
+        while (mSizeBytes > mMaxSizeBytes && iterator.hasNext()) {
+            final Map.Entry<String, EntryInfo> entry = iterator.next();
+            new File(mDirectory, entry.getKey()).delete();
+            mSizeBytes -= entry.getValue().size;
+            mMetrics.recordDiskEviction(entry.getValue().size);
+            iterator.remove();
+        }
+    }
+
+    private synchronized void remove(String fileName) {
+        final EntryInfo info = mEntries.remove(fileName);
+        if (info != null) {
+            mSizeBytes -= info.size;
+        }
+        new File(mDirectory, fileName).delete();
+    }
+
+    private static byte[] readFile(File file) {
+        final long length = file.length();
+        if (length == 0 || length > MAX_ENTRY_BYTES) {
+            return null;
+        }
+        final int size = (int) length;
+        final byte[] bytes = new byte[size];
+        try (FileInputStream stream = new FileInputStream(file)) {
+            int offset = 0;
+            while (offset < size) {
+                final int count = stream.read(bytes, offset, size - offset);
+                if (count < 0) {
+                    return null;
+                }
+                offset += count;
+            }
+            return bytes;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the given temporary file, to be renamed to the entry once complete so that readers
+     * never see part of it.
+     */
+    private static boolean writeFile(File tempFile, byte[] bytes) {
+        try (FileOutputStream stream = new FileOutputStream(tempFile)) {
+            stream.write(bytes);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write " + tempFile, e);
+            tempFile.delete();
+            return false;
+        }
+        return true;
+    }
+}
@@ -21,10 +21,12 @@ import android.content.ComponentCallbacks2;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.Context;
+import android.content.pm.ApplicationInfo;
 import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.database.Cursor;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
@@ -32,8 +34,8 @@ import android.graphics.Paint.Style;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
+import android.graphics.drawable.LayerDrawable;
 import android.graphics.drawable.TransitionDrawable;
-import android.media.ThumbnailUtils;
 import android.net.TrafficStats;
 import android.net.Uri;
 import android.net.Uri.Builder;
@@ -41,6 +43,8 @@ import android.os.Handler;
 import android.os.Handler.Callback;
 import android.os.HandlerThread;
 import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Contacts.Photo;
@@ -49,6 +53,7 @@ import android.provider.ContactsContract.Directory;
 import android.support.v4.graphics.drawable.RoundedBitmapDrawable;
 import android.support.v4.graphics.drawable.RoundedBitmapDrawableFactory;
 import android.text.TextUtils;
+import android.util.DisplayMetrics;
 import android.util.Log;
 import android.util.LruCache;
 import android.view.View;
@@ -56,6 +61,7 @@ import android.view.ViewGroup;
 import android.widget.ImageView;
 
 import com.android.contacts.common.lettertiles.LetterTileDrawable;
+import com.android.contacts.common.util.BitmapPool;
 import com.android.contacts.common.util.BitmapUtil;
 import com.android.contacts.common.util.PermissionsUtil;
 import com.android.contacts.common.util.TrafficStatsTags;
@@ -64,20 +70,34 @@ import com.android.contacts.commonbind.util.UserAgentGenerator;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintWriter;
 import java.lang.ref.Reference;
 import java.lang.ref.SoftReference;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -564,6 +584,52 @@ public abstract class ContactPhotoManager implements ComponentCallbacks2 {
      */
     public abstract void preloadPhotosInBackground();
 
+    /**
+     * Gives access to the photos of the rows of a list, for {@link #preloadRows}.
+     */
+    public interface RowPhotoSource {
+        /** Returns the number of rows of the list. */
+        int getRowCount();
+
+        /** Returns the id of the thumbnail of the row at the given position, or 0 if none. */
+        long getRowPhotoId(int position);
+
+        /**
+         * Returns the URI of the photo of the row at the given position, or null if none. Only
+         * used for rows without a thumbnail id.
+         */
+        Uri getRowPhotoUri(int position);
+    }
+
+    /**
+     * Loads in the background the photos of the rows about to be scrolled into view, so that
+     * they are displayed as soon as the rows are. The faster the list is scrolled, the more rows
+     * ahead are loaded. Photos asked for by a previous call which have not been loaded yet are
+     * no longer loaded. Must be called on the UI thread.
+     *
+     * @param firstVisiblePosition position of the first row currently visible
+     * @param lastVisiblePosition position of the last row currently visible
+     * @param rowsPerSecond speed at which the list is scrolled, positive towards the end of the
+     *        list, negative towards its start, 0 if it is not scrolled
+     */
+    public abstract void preloadRows(RowPhotoSource source, int firstVisiblePosition,
+            int lastVisiblePosition, float rowsPerSecond);
+
+    /**
+     * Returns the hit rates, timings and evictions of the photo loads since the process started
+     * or the metrics were reset, or null if they are not tracked.
+     */
+    public ContactPhotoMetrics getMetrics() {
+        return null;
+    }
+
+    /**
+     * Prints the state of the caches and the metrics of the photo loads, e.g. from
+     * {@link android.app.Activity#dump}.
+     */
+    public void dump(String prefix, PrintWriter writer) {
+    }
+
     // ComponentCallbacks2
     @Override
     public void onConfigurationChanged(Configuration newConfig) {
@@ -582,9 +648,46 @@ public abstract class ContactPhotoManager implements ComponentCallbacks2 {
 
 class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     private static final String LOADER_THREAD_NAME = "ContactPhotoLoader";
+    private static final String DECODER_THREAD_NAME = "ContactPhotoDecoder";
+    private static final String URI_LOADER_THREAD_NAME = "ContactPhotoUriLoader";
+
+    /** Upper bound on the number of threads decoding photos. */
+    private static final int MAX_DECODE_THREADS = 4;
+
+    /**
+     * Number of photos loaded from URIs at once. Loading them mostly waits for the network or
+     * other apps, so it does not take the threads decoding photos.
+     */
+    private static final int URI_LOADER_THREADS = 3;
+
+    /** Time after which idle decoding and URI loading threads are stopped. */
+    private static final int DECODE_THREAD_KEEP_ALIVE_SECONDS = 30;
+
+    private static final int BUFFER_SIZE = 1024*16;
+
+    /**
+     * Photos loaded from URIs bigger than this are not displayed, to bound the time and data
+     * spent loading them.
+     */
+    private static final int MAX_URI_PHOTO_BYTES = 8 * 1024 * 1024;
+
+    /**
+     * How much of a photo loaded from a URI is kept to read it again after its size was read
+     * from its header. Photos whose header is bigger are opened again.
+     */
+    private static final int URI_PHOTO_HEADER_BYTES = 64 * 1024;
 
     private static final int FADE_TRANSITION_DURATION = 200;
 
+    /** Number of rows ahead of the visible ones whose photos are prefetched at the least. */
+    private static final int MIN_PREFETCH_ROWS = 6;
+
+    /** Number of rows ahead of the visible ones whose photos are prefetched at the most. */
+    private static final int MAX_PREFETCH_ROWS = 40;
+
+    /** How long it takes to scroll to the last row whose photo is prefetched. */
+    private static final float PREFETCH_LOOKAHEAD_SECONDS = 1.0f;
+
     /**
      * Type of message sent by the UI thread to itself to indicate that some photos
      * need to be loaded.
@@ -621,8 +724,17 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
         volatile boolean fresh;
         Bitmap bitmap;
-        Reference<Bitmap> bitmapRef;
+        volatile Reference<Bitmap> bitmapRef;
         int decodedSampleSize;
+        /** Whether the bitmap is being decoded by one of the decoding threads. */
+        volatile boolean decoding;
+        /** Where the bytes were loaded from, one of the sources of {@link ContactPhotoMetrics}. */
+        int source = ContactPhotoMetrics.SOURCE_THUMBNAIL;
+        /**
+         * The biggest extent the bytes can be displayed at without loading the photo again, less
+         * than the original photo if it was scaled down when loaded.
+         */
+        int maxExtent = Integer.MAX_VALUE;
 
         public BitmapHolder(byte[] bytes, int originalSmallerExtent) {
             this.bytes = bytes;
@@ -657,6 +769,25 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
      */
     private final LruCache<Object, Bitmap> mBitmapCache;
 
+    /**
+     * Bitmaps removed from {@link #mBitmapCache} and {@link #mBitmapHolderCache} which are no
+     * longer used, to decode the next photos into.
+     */
+    private final BitmapPool mBitmapPool;
+
+    /**
+     * The views on which photos were set, to tell whether a bitmap may still be displayed before
+     * reusing it. Only accessed on the UI thread.
+     */
+    private final Set<ImageView> mPhotoViews =
+            Collections.newSetFromMap(new WeakHashMap<ImageView, Boolean>());
+
+    /**
+     * Incremented when the caches are cleared, so that bitmaps removed before then are not put
+     * back in {@link #mBitmapPool} afterwards.
+     */
+    private final AtomicInteger mClearGeneration = new AtomicInteger();
+
     /**
      * A map from ImageView to the corresponding photo ID or uri, encapsulated in a request.
      * The request may swapped out before the photo loading request is started.
@@ -675,22 +806,88 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
      */
     private LoaderThread mLoaderThread;
 
+    /**
+     * Threads decoding the photos loaded by {@link #mLoaderThread}, so that the queries for the
+     * next photos do not wait for the previous ones to be decoded, and several photos are
+     * decoded at once.
+     */
+    private final ThreadPoolExecutor mDecodeExecutor;
+
+    /** Threads loading photos from URIs, as handed out by {@link #mLoaderThread}. */
+    private final ThreadPoolExecutor mUriLoadExecutor;
+
+    /** Keys of the photos being loaded from URIs, so that each is only loaded once at a time. */
+    private final Set<Object> mLoadingUriKeys =
+            Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+
+    /**
+     * Extent at which photos requested without one are decoded: they are never displayed wider
+     * than the screen.
+     */
+    private final int mMaxPhotoExtent;
+
     /**
      * A gate to make sure we only send one instance of MESSAGE_PHOTOS_NEEDED at a time.
      */
     private boolean mLoadingRequested;
 
+    /**
+     * A gate to make sure we only send one instance of MESSAGE_PHOTOS_LOADED at a time, since
+     * each of the decoding threads sends it.
+     */
+    private final AtomicBoolean mPhotosLoadedPending = new AtomicBoolean(false);
+
     /**
      * Flag indicating if the image loading is paused.
      */
     private boolean mPaused;
 
-    /** Cache size for {@link #mBitmapHolderCache} for devices with "large" RAM. */
+    /** Cache size for {@link #mBitmapHolderCache} for devices with the reference heap size. */
     private static final int HOLDER_CACHE_SIZE = 2000000;
 
-    /** Cache size for {@link #mBitmapCache} for devices with "large" RAM. */
+    /**
+     * Cache size for {@link #mBitmapCache} for devices with the reference heap size and
+     * thumbnail size.
+     */
     private static final int BITMAP_CACHE_SIZE = 36864 * 48; // 1728K
 
+    /** Size of {@link #mBitmapPool} for devices with the reference heap size and thumbnail size. */
+    private static final int BITMAP_POOL_SIZE = 36864 * 16; // 576K
+
+    /** Cache size for {@link #mDiskCache} for devices with "large" RAM. */
+    private static final int DISK_CACHE_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Heap size for which the memory caches have the sizes above. The caches grow and shrink
+     * with the heap size of the device, within {@link #MIN_HEAP_SCALE} and
+     * {@link #MAX_HEAP_SCALE} times these sizes.
+     */
+    private static final int REFERENCE_HEAP_MB = 128;
+    private static final float MIN_HEAP_SCALE = 0.5f;
+    private static final float MAX_HEAP_SCALE = 4.0f;
+
+    /**
+     * Size of a decoded thumbnail for which the bitmap caches have the sizes above, that of a
+     * 96x96 pixels thumbnail. The bitmap caches grow and shrink with the size of the thumbnails
+     * at the density of the screen, within {@link #MIN_DENSITY_SCALE} and
+     * {@link #MAX_DENSITY_SCALE} times these sizes.
+     */
+    private static final int REFERENCE_THUMBNAIL_BYTES = 36864;
+    private static final float MIN_DENSITY_SCALE = 0.5f;
+    private static final float MAX_DENSITY_SCALE = 3.0f;
+
+    /** The decoded bitmaps never take more than this share of the heap. */
+    private static final int MAX_BITMAP_HEAP_DIVISOR = 16;
+
+    /** Hit rates, timings and evictions of the loads, see {@link #getMetrics()}. */
+    private final ContactPhotoMetrics mMetrics = new ContactPhotoMetrics();
+
+    /**
+     * Optional tier behind {@link #mBitmapHolderCache}, holding thumbnails across process
+     * restarts. Null if disabled.
+     */
+    private final ContactPhotoDiskCache mDiskCache;
+
     /** Height/width of a thumbnail image */
     private static int mThumbnailSize;
 
@@ -713,7 +910,23 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
         final float cacheSizeAdjustment = (am.isLowRamDevice()) ? 0.5f : 1.0f;
 
-        final int bitmapCacheSize = (int) (cacheSizeAdjustment * BITMAP_CACHE_SIZE);
+        // The heap available to the process tells how much the memory caches can take, from
+        // entry level devices to ones with several gigabytes of RAM.
+        final boolean largeHeap =
+                (context.getApplicationInfo().flags & ApplicationInfo.FLAG_LARGE_HEAP) != 0;
+        final int heapMb = largeHeap ? am.getLargeMemoryClass() : am.getMemoryClass();
+        final float heapScale = cacheSizeAdjustment * Math.max(MIN_HEAP_SCALE,
+                Math.min(MAX_HEAP_SCALE, (float) heapMb / REFERENCE_HEAP_MB));
+
+        // Decoded thumbnails take more room on denser screens.
+        mThumbnailSize = context.getResources().getDimensionPixelSize(
+                R.dimen.contact_browser_list_item_photo_size);
+        final float densityScale = Math.max(MIN_DENSITY_SCALE, Math.min(MAX_DENSITY_SCALE,
+                (float) mThumbnailSize * mThumbnailSize * 4 / REFERENCE_THUMBNAIL_BYTES));
+        final long maxBitmapBytes = (long) heapMb * 1024 * 1024 / MAX_BITMAP_HEAP_DIVISOR;
+
+        final int bitmapCacheSize = (int) Math.min(maxBitmapBytes * 3 / 4,
+                (long) (heapScale * densityScale * BITMAP_CACHE_SIZE));
         mBitmapCache = new LruCache<Object, Bitmap>(bitmapCacheSize) {
             @Override protected int sizeOf(Object key, Bitmap value) {
                 return value.getByteCount();
@@ -722,28 +935,66 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             @Override protected void entryRemoved(
                     boolean evicted, Object key, Bitmap oldValue, Bitmap newValue) {
                 if (DEBUG) dumpStats();
+                if (evicted) {
+                    mMetrics.recordBitmapEviction(oldValue.getByteCount());
+                }
+                // Only modified on the UI thread.
+                if (oldValue != newValue) {
+                    final BitmapHolder holder = mBitmapHolderCache.get(key);
+                    if (holder != null) {
+                        recycleBitmap(key, holder, oldValue);
+                    }
+                }
             }
         };
-        final int holderCacheSize = (int) (cacheSizeAdjustment * HOLDER_CACHE_SIZE);
+        final int holderCacheSize = (int) (heapScale * HOLDER_CACHE_SIZE);
         mBitmapHolderCache = new LruCache<Object, BitmapHolder>(holderCacheSize) {
             @Override protected int sizeOf(Object key, BitmapHolder value) {
                 return value.bytes != null ? value.bytes.length : 0;
             }
 
-            @Override protected void entryRemoved(
-                    boolean evicted, Object key, BitmapHolder oldValue, BitmapHolder newValue) {
+            @Override protected void entryRemoved(boolean evicted, final Object key,
+                    final BitmapHolder oldValue, BitmapHolder newValue) {
                 if (DEBUG) dumpStats();
+                if (evicted && oldValue.bytes != null) {
+                    mMetrics.recordHolderEviction(oldValue.bytes.length);
+                }
+                final Bitmap bitmap = oldValue.bitmapRef != null ? oldValue.bitmapRef.get() : null;
+                if (bitmap != null && oldValue != newValue) {
+                    // May be modified on any thread, but views can only be checked on the UI one.
+                    final int clearGeneration = mClearGeneration.get();
+                    mMainThreadHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (clearGeneration == mClearGeneration.get()
+                                    && mBitmapCache.get(key) != bitmap) {
+                                recycleBitmap(key, oldValue, bitmap);
+                            }
+                        }
+                    });
+                }
             }
         };
         mBitmapHolderCacheRedZoneBytes = (int) (holderCacheSize * 0.75);
-        Log.i(TAG, "Cache adj: " + cacheSizeAdjustment);
-        if (DEBUG) {
-            Log.d(TAG, "Cache size: " + btk(mBitmapHolderCache.maxSize())
-                    + " + " + btk(mBitmapCache.maxSize()));
-        }
-
-        mThumbnailSize = context.getResources().getDimensionPixelSize(
-                R.dimen.contact_browser_list_item_photo_size);
+        mBitmapPool = new BitmapPool(Math.min(maxBitmapBytes / 4,
+                (long) (heapScale * densityScale * BITMAP_POOL_SIZE)));
+        mDiskCache = context.getResources().getBoolean(
+                R.bool.config_contact_photo_disk_cache_enabled)
+                ? new ContactPhotoDiskCache(context,
+                        (long) (cacheSizeAdjustment * DISK_CACHE_SIZE), mMetrics)
+                : null;
+        Log.i(TAG, "Cache adj: " + cacheSizeAdjustment + ", heap: " + heapMb + "M"
+                + ", cache size: " + btk(mBitmapHolderCache.maxSize())
+                + " + " + btk(mBitmapCache.maxSize()) + " + " + btk(mBitmapPool.maxSize()));
+
+        // Leave a core to the UI thread.
+        final int decodeThreadCount = Math.max(1,
+                Math.min(MAX_DECODE_THREADS, Runtime.getRuntime().availableProcessors() - 1));
+        mDecodeExecutor = createBackgroundExecutor(decodeThreadCount, DECODER_THREAD_NAME);
+        mUriLoadExecutor = createBackgroundExecutor(URI_LOADER_THREADS, URI_LOADER_THREAD_NAME);
+
+        final DisplayMetrics metrics = context.getResources().getDisplayMetrics();
+        mMaxPhotoExtent = Math.min(metrics.widthPixels, metrics.heightPixels);
 
         // Get a user agent string to use for URI photo requests.
         mUserAgent = UserAgentGenerator.getUserAgent(context);
@@ -752,8 +1003,34 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         }
     }
 
+    /**
+     * Returns an executor running tasks on up to the given number of background threads, which
+     * are stopped once idle for a while.
+     */
+    private static ThreadPoolExecutor createBackgroundExecutor(int threadCount,
+            final String threadName) {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threadCount, threadCount,
+                DECODE_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mThreadCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, threadName + "-" + mThreadCount.incrementAndGet());
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     /** Converts bytes to K bytes, rounding up.  Used only for debug log. */
-    private static String btk(int bytes) {
+    private static String btk(long bytes) {
         return ((bytes + 1023) / 1024) + "K";
     }
 
@@ -803,15 +1080,96 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                     + ", avg: " + btk(safeDiv(bitmapBytes, numBitmaps)));
             // We don't get from L2 cache, so L2 stats is meaningless.
         }
+
+        Log.d(TAG, "Pool: " + btk(mBitmapPool.size()) + ", trims: " + mMetrics.getTrimCount()
+                + ", freed: " + btk(mMetrics.getTrimmedBytes()));
     }
 
     @Override
     public void onTrimMemory(int level) {
         if (DEBUG) Log.d(TAG, "onTrimMemory: " + level);
+        final long sizeBefore = getMemoryCacheSize();
         if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
             // Clear the caches.  Note all pending requests will be removed too.
             clear();
-        }
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            // Nothing is displayed and the process may be killed: keep the bytes of the most
+            // recently used photos only.
+            mBitmapCache.evictAll();
+            mBitmapHolderCache.trimToSize(mBitmapHolderCache.maxSize() / 2);
+            clearBitmapPool();
+            LetterTileDrawable.clearTileCache();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            // Nothing is displayed: the photos can be decoded again from their bytes when the UI
+            // comes back.
+            mBitmapCache.evictAll();
+            clearBitmapPool();
+            LetterTileDrawable.clearTileCache();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            // Only keep the photos on screen decoded, and the bytes of half of the others.
+            mBitmapCache.evictAll();
+            mBitmapHolderCache.trimToSize(mBitmapHolderCache.maxSize() / 2);
+            clearBitmapPool();
+            LetterTileDrawable.clearTileCache();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mBitmapCache.trimToSize(mBitmapCache.maxSize() / 2);
+            clearBitmapPool();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            mBitmapPool.trimToSize(mBitmapPool.maxSize() / 2);
+        }
+        // Let the garbage collector reclaim the bitmaps which are no longer cached.
+        softenCache();
+
+        final long freed = Math.max(0, sizeBefore - getMemoryCacheSize());
+        mMetrics.recordTrim(freed);
+        Log.i(TAG, "onTrimMemory: " + level + ", freed " + btk(freed)
+                + ", total freed " + btk(mMetrics.getTrimmedBytes())
+                + " in " + mMetrics.getTrimCount() + " trims");
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public ContactPhotoMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    @Override
+    public void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + "ContactPhotoManager:");
+        final String innerPrefix = prefix + "  ";
+        writer.println(innerPrefix + "Holder cache: " + btk(mBitmapHolderCache.size())
+                + " of " + btk(mBitmapHolderCache.maxSize())
+                + ", bitmap cache: " + btk(mBitmapCache.size())
+                + " of " + btk(mBitmapCache.maxSize()));
+        writer.println(innerPrefix + "Pool: " + btk(mBitmapPool.size())
+                + " of " + btk(mBitmapPool.maxSize())
+                + ", letter tiles: " + btk(LetterTileDrawable.getTileCacheSize())
+                + ", pending requests: " + mPendingRequests.size());
+        mMetrics.dump(innerPrefix, writer);
+    }
+
+    /**
+     * Returns the total size of the memory caches, including the rendered letter tiles. Decoded
+     * bitmaps are only accounted for while {@link #mBitmapCache} or {@link #mBitmapPool} holds
+     * them.
+     */
+    private long getMemoryCacheSize() {
+        return (long) mBitmapHolderCache.size() + mBitmapCache.size() + mBitmapPool.size()
+                + LetterTileDrawable.getTileCacheSize();
+    }
+
+    /**
+     * Empties {@link #mBitmapPool}, including of the bitmaps evicted from
+     * {@link #mBitmapHolderCache} which are still to be recycled. Must be called after evicting
+     * from the caches, so that the recycling posted by the evictions is dropped too.
+     */
+    private void clearBitmapPool() {
+        mClearGeneration.incrementAndGet();
+        mBitmapPool.clear();
     }
 
     @Override
@@ -820,6 +1178,81 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         mLoaderThread.requestPreloading();
     }
 
+    @Override
+    public void preloadRows(RowPhotoSource source, int firstVisiblePosition,
+            int lastVisiblePosition, float rowsPerSecond) {
+        final int rowCount = source.getRowCount();
+        final int lookahead = Math.max(MIN_PREFETCH_ROWS, Math.min(MAX_PREFETCH_ROWS,
+                (int) Math.abs(rowsPerSecond * PREFETCH_LOOKAHEAD_SECONDS)));
+        // Nearest rows first. When the list is not scrolled, the rows on both sides are loaded.
+        final List<Request> requests = new ArrayList<>();
+        if (rowsPerSecond >= 0) {
+            final int end = Math.min(rowCount - 1, lastVisiblePosition + lookahead);
+            for (int position = lastVisiblePosition + 1; position <= end; position++) {
+                addPrefetchRequest(source, position, requests);
+            }
+        }
+        if (rowsPerSecond <= 0) {
+            final int end = Math.max(0, firstVisiblePosition - lookahead);
+            for (int position = firstVisiblePosition - 1; position >= end; position--) {
+                addPrefetchRequest(source, position, requests);
+            }
+        }
+        if (requests.isEmpty() && mLoaderThread == null) {
+            return;
+        }
+        ensureLoaderThread();
+        mLoaderThread.requestPrefetching(requests);
+    }
+
+    /**
+     * Adds a request for the photo of the given row, unless it has none or it is already cached.
+     */
+    private void addPrefetchRequest(RowPhotoSource source, int position, List<Request> requests) {
+        final Request request;
+        final long photoId = source.getRowPhotoId(position);
+        if (photoId != 0) {
+            request = Request.createFromThumbnailId(photoId, false /* darkTheme */,
+                    false /* isCircular */, DEFAULT_AVATAR);
+        } else {
+            final Uri photoUri = source.getRowPhotoUri(position);
+            if (photoUri == null || isDefaultImageUri(photoUri)) {
+                return;
+            }
+            // Rows with photo URIs display them through loadDirectoryPhoto(), at any size.
+            request = Request.createFromUri(photoUri, -1, false /* darkTheme */,
+                    false /* isCircular */, DEFAULT_AVATAR);
+        }
+        if (!isCached(request)) {
+            requests.add(request);
+        }
+    }
+
+    /**
+     * Returns whether the photo of the given request is already loaded, or known to be missing.
+     */
+    private boolean isCached(Request request) {
+        final BitmapHolder holder = mBitmapHolderCache.get(request.getKey());
+        return holder != null && (holder == BITMAP_UNAVAILABLE
+                || isFresh(holder, request.getRequestedExtent()));
+    }
+
+    /**
+     * Returns whether the given holder can be displayed at the given extent without loading the
+     * photo again: it is fresh, and was not scaled down below that extent when loaded.
+     */
+    private boolean isFresh(BitmapHolder holder, int requestedExtent) {
+        return holder.fresh && getTargetExtent(requestedExtent) <= holder.maxExtent;
+    }
+
+    /**
+     * Returns the extent photos requested at the given extent are displayed at, the screen width
+     * if no extent was requested.
+     */
+    private int getTargetExtent(int requestedExtent) {
+        return requestedExtent > 0 ? requestedExtent : mMaxPhotoExtent;
+    }
+
     @Override
     public void loadThumbnail(ImageView view, long photoId, boolean darkTheme, boolean isCircular,
             DefaultImageRequest defaultImageRequest, DefaultImageProvider defaultProvider) {
@@ -864,6 +1297,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
     private void loadPhotoByIdOrUri(ImageView view, Request request) {
         boolean loaded = loadCachedPhoto(view, request, false);
+        mMetrics.recordMemoryCacheLookup(loaded);
         if (loaded) {
             mPendingRequests.remove(view);
         } else {
@@ -911,6 +1345,11 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
     @Override
     public void refreshCache() {
+        if (mDiskCache != null) {
+            // Photos on disk may have been cached before the contacts changed. They are still
+            // displayed until they are reloaded.
+            mDiskCache.invalidate();
+        }
         if (mBitmapHolderCacheAllUnfresh) {
             if (DEBUG) Log.d(TAG, "refreshCache -- no fresh entries.");
             return;
@@ -944,7 +1383,11 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
         Bitmap cachedBitmap = holder.bitmapRef == null ? null : holder.bitmapRef.get();
         if (cachedBitmap == null) {
-            if (holder.bytes.length < 8 * 1024) {
+            if (holder.decoding) {
+                // The bitmap is being decoded in the background, it is displayed once done.
+                request.applyDefaultImage(view, request.mIsCircular);
+                return false;
+            } else if (holder.bytes.length < 8 * 1024) {
                 // Small thumbnails are usually quick to inflate. Let's do that on the UI thread
                 inflateBitmap(holder, request.getRequestedExtent());
                 cachedBitmap = holder.bitmap;
@@ -977,6 +1420,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             view.setImageDrawable(
                     getDrawableForBitmap(mContext.getResources(), cachedBitmap, request));
         }
+        mPhotoViews.add(view);
 
         // Put the bitmap in the LRU cache. But only do this for images that are small enough
         // (we require that at least six of those can be cached at the same time)
@@ -987,7 +1431,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         // Soften the reference
         holder.bitmap = null;
 
-        return holder.fresh;
+        return isFresh(holder, request.getRequestedExtent());
     }
 
     /**
@@ -1006,12 +1450,63 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         }
     }
 
+    /**
+     * Puts a bitmap removed from one of the memory caches in {@link #mBitmapPool}, unless it may
+     * still be used: displayed by a view, about to be displayed, or held by the other cache.
+     * Only bitmaps decoded here are reused, not the ones given to {@link #cacheBitmap(Uri,
+     * Bitmap, byte[])}. Only called on the UI thread.
+     *
+     * @param holder the holder through which the bitmap was displayed
+     */
+    private void recycleBitmap(Object key, BitmapHolder holder, Bitmap bitmap) {
+        if (isBitmapDisplayed(bitmap)) {
+            return;
+        }
+        synchronized (holder) {
+            if (holder.decoding || holder.decodedSampleSize == 0 || holder.bitmap == bitmap
+                    || holder.bitmapRef == null || holder.bitmapRef.get() != bitmap) {
+                return;
+            }
+            // Make sure the holder does not hand out the bitmap anymore.
+            holder.bitmapRef = null;
+        }
+        mBitmapPool.put(bitmap);
+    }
+
+    /**
+     * Returns whether one of the views photos were set on still displays the given bitmap.
+     */
+    private boolean isBitmapDisplayed(Bitmap bitmap) {
+        for (ImageView view : mPhotoViews) {
+            if (drawableUsesBitmap(view.getDrawable(), bitmap)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean drawableUsesBitmap(Drawable drawable, Bitmap bitmap) {
+        if (drawable instanceof BitmapDrawable) {
+            return ((BitmapDrawable) drawable).getBitmap() == bitmap;
+        } else if (drawable instanceof RoundedBitmapDrawable) {
+            return ((RoundedBitmapDrawable) drawable).getBitmap() == bitmap;
+        } else if (drawable instanceof LayerDrawable) {
+            final LayerDrawable layerDrawable = (LayerDrawable) drawable;
+            for (int i = 0; i < layerDrawable.getNumberOfLayers(); i++) {
+                if (drawableUsesBitmap(layerDrawable.getDrawable(i), bitmap)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     /**
      * If necessary, decodes bytes stored in the holder to Bitmap.  As long as the
      * bitmap is held either by {@link #mBitmapCache} or by a soft reference in
      * the holder, it will not be necessary to decode the bitmap.
      */
-    private static void inflateBitmap(BitmapHolder holder, int requestedExtent) {
+    private void inflateBitmap(BitmapHolder holder, int requestedExtent) {
         final int sampleSize =
                 BitmapUtil.findOptimalSampleSize(holder.originalSmallerExtent, requestedExtent);
         byte[] bytes = holder.bytes;
@@ -1019,34 +1514,29 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             return;
         }
 
-        if (sampleSize == holder.decodedSampleSize) {
-            // Check the soft reference.  If will be retained if the bitmap is also
-            // in the LRU cache, so we don't need to check the LRU cache explicitly.
-            if (holder.bitmapRef != null) {
-                holder.bitmap = holder.bitmapRef.get();
-                if (holder.bitmap != null) {
-                    return;
+        synchronized (holder) {
+            if (sampleSize == holder.decodedSampleSize) {
+                // Check the soft reference.  If will be retained if the bitmap is also
+                // in the LRU cache, so we don't need to check the LRU cache explicitly.
+                if (holder.bitmapRef != null) {
+                    holder.bitmap = holder.bitmapRef.get();
+                    if (holder.bitmap != null) {
+                        return;
+                    }
                 }
             }
         }
 
         try {
-            Bitmap bitmap = BitmapUtil.decodeBitmapFromBytes(bytes, sampleSize);
-
-            // TODO: As a temporary workaround while framework support is being added to
-            // clip non-square bitmaps into a perfect circle, manually crop the bitmap into
-            // into a square if it will be displayed as a thumbnail so that it can be cropped
-            // into a circle.
-            final int height = bitmap.getHeight();
-            final int width = bitmap.getWidth();
-
-            // The smaller dimension of a scaled bitmap can range from anywhere from 0 to just
-            // below twice the length of a thumbnail image due to the way we calculate the optimal
-            // sample size.
-            if (height != width && Math.min(height, width) <= mThumbnailSize * 2) {
-                final int dimension = Math.min(height, width);
-                bitmap = ThumbnailUtils.extractThumbnail(bitmap, dimension, dimension);
+            final long startNanos = SystemClock.elapsedRealtimeNanos();
+            Bitmap bitmap = BitmapUtil.decodeBitmapFromBytes(bytes, sampleSize, mBitmapPool);
+            if (bitmap == null) {
+                return;
             }
+
+            bitmap = cropThumbnail(bitmap);
+            mMetrics.recordDecodeTime(holder.source,
+                    (SystemClock.elapsedRealtimeNanos() - startNanos) / 1000);
             // make bitmap mutable and draw size onto it
             if (DEBUG_SIZES) {
                 Bitmap original = bitmap;
@@ -1063,9 +1553,11 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 canvas.drawText(bitmap.getWidth() + "/" + sampleSize, 0, 15, paint);
             }
 
-            holder.decodedSampleSize = sampleSize;
-            holder.bitmap = bitmap;
-            holder.bitmapRef = new SoftReference<Bitmap>(bitmap);
+            synchronized (holder) {
+                holder.decodedSampleSize = sampleSize;
+                holder.bitmap = bitmap;
+                holder.bitmapRef = new SoftReference<Bitmap>(bitmap);
+            }
             if (DEBUG) {
                 Log.d(TAG, "inflateBitmap " + btk(bytes.length) + " -> "
                         + bitmap.getWidth() + "x" + bitmap.getHeight()
@@ -1076,11 +1568,40 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         }
     }
 
+    /**
+     * Returns the given decoded bitmap cropped into a square if it will be displayed as a
+     * thumbnail, putting the uncropped bitmap in {@link #mBitmapPool}.
+     */
+    private Bitmap cropThumbnail(Bitmap bitmap) {
+        // TODO: As a temporary workaround while framework support is being added to
+        // clip non-square bitmaps into a perfect circle, manually crop the bitmap into
+        // into a square if it will be displayed as a thumbnail so that it can be cropped
+        // into a circle.
+        final int height = bitmap.getHeight();
+        final int width = bitmap.getWidth();
+
+        // The smaller dimension of a scaled bitmap can range from anywhere from 0 to just
+        // below twice the length of a thumbnail image due to the way we calculate the optimal
+        // sample size.
+        if (height != width && Math.min(height, width) <= mThumbnailSize * 2) {
+            final int dimension = Math.min(height, width);
+            final Bitmap cropped = BitmapUtil.cropCenter(bitmap, dimension, dimension, mBitmapPool);
+            mBitmapPool.put(bitmap);
+            return cropped;
+        }
+        return bitmap;
+    }
+
     public void clear() {
         if (DEBUG) Log.d(TAG, "clear");
         mPendingRequests.clear();
+        if (mLoaderThread != null) {
+            mLoaderThread.cancelPrefetching();
+        }
         mBitmapHolderCache.evictAll();
         mBitmapCache.evictAll();
+        clearBitmapPool();
+        LetterTileDrawable.clearTileCache();
     }
 
     @Override
@@ -1126,6 +1647,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             }
 
             case MESSAGE_PHOTOS_LOADED: {
+                mPhotosLoadedPending.set(false);
                 if (!mPaused) {
                     processLoadedImages();
                 }
@@ -1156,6 +1678,8 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             final boolean loaded = loadCachedPhoto(entry.getKey(), entry.getValue(), false);
             if (loaded) {
                 iterator.remove();
+                mMetrics.recordRequestWaitTime(
+                        SystemClock.uptimeMillis() - entry.getValue().getCreationTime());
             }
         }
 
@@ -1177,9 +1701,38 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     }
 
     /**
-     * Stores the supplied bitmap in cache.
+     * Stores the supplied bitmap in cache, including the disk cache if any.
      */
     private void cacheBitmap(Object key, byte[] bytes, boolean preloading, int requestedExtent) {
+        final int source = preloading ? ContactPhotoMetrics.SOURCE_PRELOAD
+                : key instanceof Uri ? ContactPhotoMetrics.SOURCE_URI
+                : ContactPhotoMetrics.SOURCE_THUMBNAIL;
+        final BitmapHolder holder =
+                putBitmapHolder(key, bytes, true, source, Integer.MAX_VALUE);
+        if (holder == null) {
+            return;
+        }
+        if (!preloading) {
+            // Unless this image is being preloaded, decode it right away.
+            decodeInBackground(key, holder, requestedExtent, mDiskCache != null);
+        } else if (mDiskCache != null) {
+            putInDiskCache(key, holder, requestedExtent);
+        }
+    }
+
+    /**
+     * Stores the supplied bitmap in the memory cache.
+     *
+     * @param fresh whether the bytes were just loaded from their source, as opposed to read from
+     *        a stale entry of the disk cache
+     * @param source where the bytes were loaded from, one of the sources of
+     *        {@link ContactPhotoMetrics}
+     * @param maxExtent the biggest extent the bytes can be displayed at, see
+     *        {@link BitmapHolder#maxExtent}
+     * @return the holder of the bytes, or null if there are none or they do not fit in the cache
+     */
+    private BitmapHolder putBitmapHolder(Object key, byte[] bytes, boolean fresh, int source,
+            int maxExtent) {
         if (DEBUG) {
             BitmapHolder prev = mBitmapHolderCache.get(key);
             if (prev != null && prev.bytes != null) {
@@ -1195,24 +1748,83 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         }
         BitmapHolder holder = new BitmapHolder(bytes,
                 bytes == null ? -1 : BitmapUtil.getSmallerExtentFromBytes(bytes));
-
-        // Unless this image is being preloaded, decode it right away while
-        // we are still on the background thread.
-        if (!preloading) {
-            inflateBitmap(holder, requestedExtent);
-        }
+        holder.fresh = fresh;
+        holder.source = source;
+        holder.maxExtent = maxExtent;
 
         if (bytes != null) {
             mBitmapHolderCache.put(key, holder);
             if (mBitmapHolderCache.get(key) != holder) {
                 Log.w(TAG, "Bitmap too big to fit in cache.");
                 mBitmapHolderCache.put(key, BITMAP_UNAVAILABLE);
+                holder = null;
             }
         } else {
             mBitmapHolderCache.put(key, BITMAP_UNAVAILABLE);
+            holder = null;
         }
 
-        mBitmapHolderCacheAllUnfresh = false;
+        if (fresh) {
+            mBitmapHolderCacheAllUnfresh = false;
+        }
+        return holder;
+    }
+
+    /**
+     * Decodes the bitmap of the given holder on one of the decoding threads, then lets the UI
+     * thread display it. Does nothing if the bitmap is already being decoded. Called on the
+     * loader thread and the threads loading photos from URIs.
+     *
+     * @param putInDiskCache whether to store the photo in the disk cache once decoded
+     */
+    private void decodeInBackground(final Object key, final BitmapHolder holder,
+            final int requestedExtent, final boolean putInDiskCache) {
+        synchronized (holder) {
+            if (holder.decoding) {
+                return;
+            }
+            holder.decoding = true;
+        }
+        final long queuedNanos = SystemClock.elapsedRealtimeNanos();
+        mDecodeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mMetrics.recordDecodeQueueWaitTime(
+                        (SystemClock.elapsedRealtimeNanos() - queuedNanos) / 1000);
+                try {
+                    inflateBitmap(holder, requestedExtent);
+                    if (putInDiskCache) {
+                        putInDiskCache(key, holder, requestedExtent);
+                    }
+                } finally {
+                    holder.decoding = false;
+                }
+                notifyPhotosLoaded();
+            }
+        });
+    }
+
+    /**
+     * Asks the UI thread to display the loaded photos, unless it has already been asked to.
+     */
+    private void notifyPhotosLoaded() {
+        if (mPhotosLoadedPending.compareAndSet(false, true)) {
+            mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+        }
+    }
+
+    /**
+     * Stores the photo of the given holder in the disk cache. Thumbnails are stored as they come
+     * from the provider, while photos loaded from URIs are stored as decoded for the requested
+     * extent if they had to be scaled down.
+     */
+    private void putInDiskCache(Object key, BitmapHolder holder, int requestedExtent) {
+        byte[] bytes = holder.bytes;
+        if (key instanceof Uri && holder.bitmap != null && (holder.decodedSampleSize > 1
+                || bytes.length > ContactPhotoDiskCache.MAX_ENTRY_BYTES)) {
+            bytes = ContactPhotoDiskCache.compress(holder.bitmap);
+        }
+        mDiskCache.put(key, requestedExtent, bytes);
     }
 
     @Override
@@ -1223,6 +1835,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         Request request = Request.createFromUri(photoUri, smallerExtent, false /* darkTheme */,
                 false /* isCircular */ , DEFAULT_AVATAR);
         BitmapHolder holder = new BitmapHolder(photoBytes, smallerExtent);
+        holder.source = ContactPhotoMetrics.SOURCE_URI;
         holder.bitmapRef = new SoftReference<Bitmap>(bitmap);
         mBitmapHolderCache.put(request.getKey(), holder);
         mBitmapHolderCacheAllUnfresh = false;
@@ -1231,16 +1844,17 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
     /**
      * Populates an array of photo IDs that need to be loaded. Also decodes bitmaps that we have
-     * already loaded
+     * already loaded. Views waiting for the same photo share a single load, and are all updated
+     * by {@link #processLoadedImages()} once it completes.
+     *
+     * @param uris the requests for photos to load from URIs, by cache key
      */
     private void obtainPhotoIdsAndUrisToLoad(Set<Long> photoIds,
-            Set<String> photoIdsAsStrings, Set<Request> uris) {
+            Set<String> photoIdsAsStrings, Map<Object, Request> uris) {
         photoIds.clear();
         photoIdsAsStrings.clear();
         uris.clear();
 
-        boolean jpegsDecoded = false;
-
         /*
          * Since the call is made from the loader thread, the map could be
          * changing during the iteration. That's not really a problem:
@@ -1256,15 +1870,16 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             if (holder == BITMAP_UNAVAILABLE) {
                 continue;
             }
-            if (holder != null && holder.bytes != null && holder.fresh &&
-                    (holder.bitmapRef == null || holder.bitmapRef.get() == null)) {
+            final boolean fresh =
+                    holder != null && isFresh(holder, request.getRequestedExtent());
+            if (fresh && holder.bytes != null
+                    && (holder.bitmapRef == null || holder.bitmapRef.get() == null)) {
                 // This was previously loaded but we don't currently have the inflated Bitmap
-                inflateBitmap(holder, request.getRequestedExtent());
-                jpegsDecoded = true;
+                decodeInBackground(request.getKey(), holder, request.getRequestedExtent(), false);
             } else {
-                if (holder == null || !holder.fresh) {
+                if (!fresh) {
                     if (request.isUriRequest()) {
-                        uris.add(request);
+                        addUriRequest(uris, request);
                     } else {
                         photoIds.add(request.getId());
                         photoIdsAsStrings.add(String.valueOf(request.mId));
@@ -1272,17 +1887,29 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 }
             }
         }
+    }
 
-        if (jpegsDecoded) mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+    /**
+     * Adds the given request for a photo to load from its URI, unless a request for the same
+     * photo is there already. Requests for the same URI at different sizes are cached under the
+     * same key, so only the one asking for the biggest photo is kept.
+     */
+    private static void addUriRequest(Map<Object, Request> uris, Request request) {
+        final Request other = uris.get(request.getKey());
+        if (other == null || (other.getRequestedExtent() > 0
+                && (request.getRequestedExtent() <= 0
+                        || request.getRequestedExtent() > other.getRequestedExtent()))) {
+            uris.put(request.getKey(), request);
+        }
     }
 
     /**
      * The thread that performs loading of photos from the database.
      */
     private class LoaderThread extends HandlerThread implements Callback {
-        private static final int BUFFER_SIZE = 1024*16;
         private static final int MESSAGE_PRELOAD_PHOTOS = 0;
         private static final int MESSAGE_LOAD_PHOTOS = 1;
+        private static final int MESSAGE_PREFETCH_PHOTOS = 2;
 
         /**
          * A pause between preload batches that yields to the UI thread.
@@ -1300,15 +1927,26 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
          */
         private static final int MAX_PHOTOS_TO_PRELOAD = 100;
 
+        /**
+         * Number of prefetched photos loaded per message, so that loading the photos to display
+         * now does not wait for all of them.
+         */
+        private static final int PREFETCH_BATCH = 10;
+
         private final ContentResolver mResolver;
         private final StringBuilder mStringBuilder = new StringBuilder();
         private final Set<Long> mPhotoIds = Sets.newHashSet();
         private final Set<String> mPhotoIdsAsStrings = Sets.newHashSet();
-        private final Set<Request> mPhotoUris = Sets.newHashSet();
+        private final Map<Object, Request> mPhotoUris = Maps.newHashMap();
         private final List<Long> mPreloadPhotoIds = Lists.newArrayList();
 
+        /**
+         * Photos of the rows about to be scrolled into view, nearest first. Replaced by the UI
+         * thread as the list is scrolled. Guarded by itself.
+         */
+        private final ArrayDeque<Request> mPrefetchRequests = new ArrayDeque<>();
+
         private Handler mLoaderThreadHandler;
-        private byte mBuffer[];
 
         private static final int PRELOAD_STATUS_NOT_STARTED = 0;
         private static final int PRELOAD_STATUS_IN_PROGRESS = 1;
@@ -1359,6 +1997,31 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             mLoaderThreadHandler.sendEmptyMessage(MESSAGE_LOAD_PHOTOS);
         }
 
+        /**
+         * Replaces the photos to prefetch with the given ones, and sends a message to this thread
+         * to load them unless one is pending. Called on the UI thread.
+         */
+        public void requestPrefetching(List<Request> requests) {
+            synchronized (mPrefetchRequests) {
+                mPrefetchRequests.clear();
+                mPrefetchRequests.addAll(requests);
+            }
+            ensureHandler();
+            if (!requests.isEmpty()
+                    && !mLoaderThreadHandler.hasMessages(MESSAGE_PREFETCH_PHOTOS)) {
+                mLoaderThreadHandler.sendEmptyMessage(MESSAGE_PREFETCH_PHOTOS);
+            }
+        }
+
+        /**
+         * Forgets the photos to prefetch which have not been loaded yet.
+         */
+        public void cancelPrefetching() {
+            synchronized (mPrefetchRequests) {
+                mPrefetchRequests.clear();
+            }
+        }
+
         /**
          * Receives the above message, loads photos and then sends a message
          * to the main thread to process them.
@@ -1372,6 +2035,9 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 case MESSAGE_LOAD_PHOTOS:
                     loadPhotosInBackground();
                     break;
+                case MESSAGE_PREFETCH_PHOTOS:
+                    prefetchPhotosInBackground();
+                    break;
             }
             return true;
         }
@@ -1462,11 +2128,111 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 return;
             }
             obtainPhotoIdsAndUrisToLoad(mPhotoIds, mPhotoIdsAsStrings, mPhotoUris);
+            loadFromDiskCache();
             loadThumbnails(false);
             loadUriBasedPhotos();
             requestPreloading();
         }
 
+        /**
+         * Loads the next batch of photos to prefetch which are not cached yet, and sends another
+         * message to this thread if more are left. Messages to load the photos to display now
+         * which are sent meanwhile are handled before the next batch.
+         */
+        private void prefetchPhotosInBackground() {
+            if (!PermissionsUtil.hasPermission(mContext,
+                    android.Manifest.permission.READ_CONTACTS)) {
+                return;
+            }
+            mPhotoIds.clear();
+            mPhotoIdsAsStrings.clear();
+            mPhotoUris.clear();
+            final boolean morePending;
+            synchronized (mPrefetchRequests) {
+                while (mPhotoIds.size() + mPhotoUris.size() < PREFETCH_BATCH
+                        && !mPrefetchRequests.isEmpty()) {
+                    final Request request = mPrefetchRequests.pollFirst();
+                    if (isCached(request)) {
+                        continue;
+                    }
+                    if (request.isUriRequest()) {
+                        addUriRequest(mPhotoUris, request);
+                    } else {
+                        mPhotoIds.add(request.getId());
+                        mPhotoIdsAsStrings.add(String.valueOf(request.getId()));
+                    }
+                }
+                morePending = !mPrefetchRequests.isEmpty();
+            }
+            loadFromDiskCache();
+            loadThumbnails(false);
+            loadUriBasedPhotos();
+            if (morePending) {
+                mLoaderThreadHandler.sendEmptyMessage(MESSAGE_PREFETCH_PHOTOS);
+            }
+        }
+
+        /**
+         * Loads the requested photos which are not in memory at all from the disk cache. Photos
+         * found fresh on disk are not loaded from their source, stale ones are displayed until
+         * they are.
+         */
+        private void loadFromDiskCache() {
+            if (mDiskCache == null) {
+                return;
+            }
+            boolean loaded = false;
+            final Iterator<Long> photoIds = mPhotoIds.iterator();
+            while (photoIds.hasNext()) {
+                final Long id = photoIds.next();
+                if (mBitmapHolderCache.get(id) != null) {
+                    continue;
+                }
+                final ContactPhotoDiskCache.Entry entry = mDiskCache.get(id, -1);
+                mMetrics.recordDiskCacheLookup(entry != null, entry != null && entry.fresh);
+                if (entry != null) {
+                    final BitmapHolder holder = putBitmapHolder(id, entry.bytes, entry.fresh,
+                            ContactPhotoMetrics.SOURCE_DISK, Integer.MAX_VALUE);
+                    if (holder != null) {
+                        decodeInBackground(id, holder, -1, false);
+                    }
+                    loaded = true;
+                    if (entry.fresh) {
+                        photoIds.remove();
+                        mPhotoIdsAsStrings.remove(id.toString());
+                    }
+                }
+            }
+            final Iterator<Request> uriRequests = mPhotoUris.values().iterator();
+            while (uriRequests.hasNext()) {
+                final Request uriRequest = uriRequests.next();
+                final Object key = uriRequest.getKey();
+                final int targetExtent = getTargetExtent(uriRequest.getRequestedExtent());
+                final BitmapHolder cached = mBitmapHolderCache.get(key);
+                if (cached != null && cached.maxExtent >= targetExtent) {
+                    continue;
+                }
+                final ContactPhotoDiskCache.Entry entry =
+                        mDiskCache.get(key, uriRequest.getRequestedExtent());
+                mMetrics.recordDiskCacheLookup(entry != null, entry != null && entry.fresh);
+                if (entry != null) {
+                    // The entries of URI photos may have been scaled down for the extent.
+                    final BitmapHolder holder = putBitmapHolder(key, entry.bytes, entry.fresh,
+                            ContactPhotoMetrics.SOURCE_DISK, targetExtent);
+                    if (holder != null) {
+                        decodeInBackground(key, holder, uriRequest.getRequestedExtent(), false);
+                    }
+                    loaded = true;
+                    if (entry.fresh) {
+                        uriRequests.remove();
+                    }
+                }
+            }
+            if (loaded) {
+                notifyPhotosLoaded();
+            }
+        }
+
         /** Loads thumbnail photos with ids */
         private void loadThumbnails(boolean preloading) {
             if (mPhotoIds.isEmpty()) {
@@ -1484,6 +2250,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 }
             }
 
+            mMetrics.recordQueryBatchSize(mPhotoIds.size());
             mStringBuilder.setLength(0);
             mStringBuilder.append(Photo._ID + " IN(");
             for (int i = 0; i < mPhotoIds.size(); i++) {
@@ -1543,75 +2310,246 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 }
             }
 
-            mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+            notifyPhotosLoaded();
         }
 
         /**
          * Loads photos referenced with Uris. Those can be remote thumbnails
-         * (from directory searches), display photos etc
+         * (from directory searches), display photos etc. They are loaded on
+         * {@link #mUriLoadExecutor}, several at once, so that a slow or big
+         * photo does not hold up the others.
          */
         private void loadUriBasedPhotos() {
-            for (Request uriRequest : mPhotoUris) {
-                // Keep the original URI and use this to key into the cache.  Failure to do so will
-                // result in an image being continually reloaded into cache if the original URI
-                // has a contact type encodedFragment (eg nearby places business photo URLs).
-                Uri originalUri = uriRequest.getUri();
-
-                // Strip off the "contact type" we added to the URI to ensure it was identifiable as
-                // a business photo -- there is no need to pass this on to the server.
-                Uri uri = ContactPhotoManager.removeContactType(originalUri);
-
-                if (mBuffer == null) {
-                    mBuffer = new byte[BUFFER_SIZE];
+            for (final Request uriRequest : mPhotoUris.values()) {
+                final Object key = uriRequest.getKey();
+                if (!mLoadingUriKeys.add(key)) {
+                    // Already being loaded. The views waiting for it are updated once it is.
+                    continue;
                 }
-                try {
-                    if (DEBUG) Log.d(TAG, "Loading " + uri);
-                    final String scheme = uri.getScheme();
-                    InputStream is = null;
-                    if (scheme.equals("http") || scheme.equals("https")) {
-                        TrafficStats.setThreadStatsTag(TrafficStatsTags.CONTACT_PHOTO_DOWNLOAD_TAG);
-                        final HttpURLConnection connection =
-                                (HttpURLConnection) new URL(uri.toString()).openConnection();
-
-                        // Include the user agent if it is specified.
-                        if (!TextUtils.isEmpty(mUserAgent)) {
-                            connection.setRequestProperty("User-Agent", mUserAgent);
-                        }
-                        try {
-                            is = connection.getInputStream();
-                        } catch (IOException e) {
-                            connection.disconnect();
-                            is = null;
-                        }
-                        TrafficStats.clearThreadStatsTag();
-                    } else {
-                        is = mResolver.openInputStream(uri);
-                    }
-                    if (is != null) {
-                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                mUriLoadExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
                         try {
-                            int size;
-                            while ((size = is.read(mBuffer)) != -1) {
-                                baos.write(mBuffer, 0, size);
-                            }
+                            loadUriBasedPhoto(uriRequest);
                         } finally {
-                            is.close();
+                            mLoadingUriKeys.remove(key);
                         }
-                        cacheBitmap(originalUri, baos.toByteArray(), false,
-                                uriRequest.getRequestedExtent());
-                        mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
-                    } else {
-                        Log.v(TAG, "Cannot load photo " + uri);
-                        cacheBitmap(originalUri, null, false, uriRequest.getRequestedExtent());
+                        notifyPhotosLoaded();
                     }
-                } catch (final Exception | OutOfMemoryError ex) {
-                    Log.v(TAG, "Cannot load photo " + uri, ex);
-                    cacheBitmap(originalUri, null, false, uriRequest.getRequestedExtent());
+                });
+            }
+        }
+    }
+
+    /**
+     * Loads the photo of the given request from its URI and caches it. The size of the photo is
+     * read first, so that big photos are decoded straight from the stream at the size they are
+     * displayed at rather than read whole into memory. Only called on {@link #mUriLoadExecutor}.
+     */
+    private void loadUriBasedPhoto(Request uriRequest) {
+        // Keep the original URI and use this to key into the cache.  Failure to do so will
+        // result in an image being continually reloaded into cache if the original URI
+        // has a contact type encodedFragment (eg nearby places business photo URLs).
+        final Uri originalUri = uriRequest.getUri();
+
+        // Strip off the "contact type" we added to the URI to ensure it was identifiable as
+        // a business photo -- there is no need to pass this on to the server.
+        final Uri uri = ContactPhotoManager.removeContactType(originalUri);
+        final int requestedExtent = uriRequest.getRequestedExtent();
+
+        InputStream is = null;
+        try {
+            if (DEBUG) Log.d(TAG, "Loading " + uri);
+            is = openPhotoStream(uri);
+            if (is == null) {
+                Log.v(TAG, "Cannot load photo " + uri);
+                cacheBitmap(originalUri, null, false, requestedExtent);
+                return;
+            }
+
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            is.mark(URI_PHOTO_HEADER_BYTES);
+            BitmapFactory.decodeStream(is, null, options);
+            final int smallerExtent = Math.min(options.outWidth, options.outHeight);
+            if (smallerExtent <= 0) {
+                Log.v(TAG, "Cannot decode photo " + uri);
+                cacheBitmap(originalUri, null, false, requestedExtent);
+                return;
+            }
+            try {
+                is.reset();
+            } catch (IOException e) {
+                // The header was bigger than what was kept of it.
+                is.close();
+                is = openPhotoStream(uri);
+                if (is == null) {
+                    cacheBitmap(originalUri, null, false, requestedExtent);
+                    return;
+                }
+            }
+
+            final int sampleSize = BitmapUtil.findOptimalSampleSize(
+                    smallerExtent, getTargetExtent(requestedExtent));
+            if (sampleSize == 1) {
+                // The photo is not much bigger than displayed: keep its bytes as they are.
+                cacheBitmap(originalUri, readFully(is), false, requestedExtent);
+            } else {
+                options.inJustDecodeBounds = false;
+                options.inSampleSize = sampleSize;
+                options.inMutable = true;
+                final long startNanos = SystemClock.elapsedRealtimeNanos();
+                final Bitmap bitmap = BitmapFactory.decodeStream(is, null, options);
+                mMetrics.recordDecodeTime(ContactPhotoMetrics.SOURCE_URI,
+                        (SystemClock.elapsedRealtimeNanos() - startNanos) / 1000);
+                cacheDecodedBitmap(originalUri, bitmap, requestedExtent);
+            }
+        } catch (final Exception | OutOfMemoryError ex) {
+            Log.v(TAG, "Cannot load photo " + uri, ex);
+            cacheBitmap(originalUri, null, false, requestedExtent);
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    // Ignore
                 }
             }
         }
     }
 
+    /**
+     * Opens the photo at the given URI, bounded to {@link #MAX_URI_PHOTO_BYTES} and able to be
+     * read again from its start after up to {@link #URI_PHOTO_HEADER_BYTES} bytes.
+     *
+     * @return the stream, or null if it could not be opened
+     */
+    private InputStream openPhotoStream(Uri uri) throws IOException {
+        final String scheme = uri.getScheme();
+        InputStream is = null;
+        if (scheme.equals("http") || scheme.equals("https")) {
+            TrafficStats.setThreadStatsTag(TrafficStatsTags.CONTACT_PHOTO_DOWNLOAD_TAG);
+            final HttpURLConnection connection =
+                    (HttpURLConnection) new URL(uri.toString()).openConnection();
+
+            // Include the user agent if it is specified.
+            if (!TextUtils.isEmpty(mUserAgent)) {
+                connection.setRequestProperty("User-Agent", mUserAgent);
+            }
+            try {
+                is = connection.getInputStream();
+            } catch (IOException e) {
+                connection.disconnect();
+                is = null;
+            }
+            TrafficStats.clearThreadStatsTag();
+        } else {
+            is = mContext.getContentResolver().openInputStream(uri);
+        }
+        if (is == null) {
+            return null;
+        }
+        return new BufferedInputStream(new LimitedInputStream(is, MAX_URI_PHOTO_BYTES),
+                BUFFER_SIZE);
+    }
+
+    private static byte[] readFully(InputStream is) throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        int size;
+        while ((size = is.read(buffer)) != -1) {
+            baos.write(buffer, 0, size);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Stores a photo decoded straight from its stream in the caches. Its original bytes were not
+     * kept, so it is cached compressed at its decoded size instead, and loaded again if it is
+     * requested at a bigger extent.
+     */
+    private void cacheDecodedBitmap(Object key, Bitmap bitmap, int requestedExtent) {
+        if (bitmap != null) {
+            bitmap = cropThumbnail(bitmap);
+        }
+        // The bytes are needed even without a disk cache: mBitmapHolderCache only keeps a soft
+        // reference to the bitmap, and decodes it again from its bytes once it is collected
+        // rather than loading the photo again from its URI, maybe from the network.
+        final byte[] bytes = bitmap == null ? null : ContactPhotoDiskCache.compress(bitmap);
+        final BitmapHolder holder = putBitmapHolder(key, bytes, true,
+                ContactPhotoMetrics.SOURCE_URI, getTargetExtent(requestedExtent));
+        if (holder == null) {
+            return;
+        }
+        synchronized (holder) {
+            // The compressed bytes are already at the decoded size.
+            holder.decodedSampleSize = 1;
+            holder.bitmap = bitmap;
+            holder.bitmapRef = new SoftReference<Bitmap>(bitmap);
+        }
+        if (mDiskCache != null) {
+            mDiskCache.put(key, requestedExtent, bytes);
+        }
+    }
+
+    /**
+     * Stream failing once more than a given number of bytes were read from it.
+     */
+    private static final class LimitedInputStream extends FilterInputStream {
+        private final long mLimit;
+        private long mCount;
+        private long mMark;
+
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            mLimit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int result = super.read();
+            if (result != -1) {
+                count(1);
+            }
+            return result;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            final int result = super.read(buffer, offset, length);
+            if (result > 0) {
+                count(result);
+            }
+            return result;
+        }
+
+        @Override
+        public long skip(long byteCount) throws IOException {
+            final long result = super.skip(byteCount);
+            count(result);
+            return result;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit) {
+            super.mark(readLimit);
+            mMark = mCount;
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            super.reset();
+            mCount = mMark;
+        }
+
+        private void count(long byteCount) throws IOException {
+            mCount += byteCount;
+            if (mCount > mLimit) {
+                throw new IOException("Photo bigger than " + mLimit + " bytes");
+            }
+        }
+    }
+
     /**
      * A holder for either a Uri or an id and a flag whether this was requested for the dark or
      * light theme
@@ -1626,9 +2564,12 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
          * Whether or not the contact photo is to be displayed as a circle
          */
         private final boolean mIsCircular;
+        /** When the photo was requested, in {@link SystemClock#uptimeMillis()} time. */
+        private final long mCreationTime;
 
         private Request(long id, Uri uri, int requestedExtent, boolean darkTheme,
                 boolean isCircular, DefaultImageProvider defaultProvider) {
+            mCreationTime = SystemClock.uptimeMillis();
             mId = id;
             mUri = uri;
             mDarkTheme = darkTheme;
@@ -1664,6 +2605,10 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             return mRequestedExtent;
         }
 
+        public long getCreationTime() {
+            return mCreationTime;
+        }
+
         @Override
         public int hashCode() {
             final int prime = 31;
@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and histograms describing how the photo pipeline of {@link ContactPhotoManager}
+ * performs: how often the caches serve photos, how long photos take to decode and to be
+ * displayed, and how much the caches evict and trim.
+ * <p>
+ * Values accumulate from the start of the process until {@link #reset()}, and can be read at
+ * any time, e.g. by tests and benchmarks, or printed with {@link #dump(String, PrintWriter)}.
+ * This class is thread-safe.
+ */
+public final class ContactPhotoMetrics {
+    /** Photos decoded from thumbnails read from the contacts provider. */
+    public static final int SOURCE_THUMBNAIL = 0;
+    /** Photos decoded from URIs, including reading the streams decoded straight from. */
+    public static final int SOURCE_URI = 1;
+    /** Photos decoded from bytes loaded ahead of time by preloading. */
+    public static final int SOURCE_PRELOAD = 2;
+    /** Photos decoded from the disk cache. */
+    public static final int SOURCE_DISK = 3;
+
+    private static final String[] SOURCE_NAMES = {"thumbnail", "uri", "preload", "disk"};
+
+    /**
+     * Distribution of values in power of two buckets: bucket i counts the values less than 2^i
+     * and at least 2^(i-1), the last bucket counts all the bigger values.
+     */
+    public static final class Histogram {
+        public static final int BUCKET_COUNT = 24;
+
+        private final String mUnit;
+        private final long[] mBuckets = new long[BUCKET_COUNT];
+        private long mCount;
+        private long mSum;
+        private long mMax;
+
+        private Histogram(String unit) {
+            mUnit = unit;
+        }
+
+        synchronized void record(long value) {
+            final long clamped = Math.max(0, value);
+            final int bucket = 64 - Long.numberOfLeadingZeros(clamped);
+            mBuckets[Math.min(bucket, BUCKET_COUNT - 1)]++;
+            mCount++;
+            mSum += clamped;
+            mMax = Math.max(mMax, clamped);
+        }
+
+        public synchronized long getCount() {
+            return mCount;
+        }
+
+        public synchronized long getSum() {
+            return mSum;
+        }
+
+        public synchronized long getMax() {
+            return mMax;
+        }
+
+        public synchronized long getMean() {
+            return mCount == 0 ? 0 : mSum / mCount;
+        }
+
+        /** Returns the number of values recorded in the given bucket. */
+        public synchronized long getBucket(int bucket) {
+            return mBuckets[bucket];
+        }
+
+        synchronized void reset() {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                mBuckets[i] = 0;
+            }
+            mCount = 0;
+            mSum = 0;
+            mMax = 0;
+        }
+
+        @Override
+        public synchronized String toString() {
+            final StringBuilder builder = new StringBuilder();
+            builder.append("count=").append(mCount)
+                    .append(" mean=").append(getMean()).append(mUnit)
+                    .append(" max=").append(mMax).append(mUnit);
+            if (mCount > 0) {
+                builder.append(" [");
+                boolean first = true;
+                for (int i = 0; i < BUCKET_COUNT; i++) {
+                    if (mBuckets[i] == 0) {
+                        continue;
+                    }
+                    if (!first) {
+                        builder.append(' ');
+                    }
+                    first = false;
+                    if (i == BUCKET_COUNT - 1) {
+                        builder.append(">=").append(1L << (i - 1));
+                    } else {
+                        builder.append('<').append(1L << i);
+                    }
+                    builder.append(':').append(mBuckets[i]);
+                }
+                builder.append(']');
+            }
+            return builder.toString();
+        }
+    }
+
+    private final AtomicLong mMemoryCacheHits = new AtomicLong();
+    private final AtomicLong mMemoryCacheMisses = new AtomicLong();
+    private final AtomicLong mDiskCacheHits = new AtomicLong();
+    private final AtomicLong mDiskCacheStaleHits = new AtomicLong();
+    private final AtomicLong mDiskCacheMisses = new AtomicLong();
+
+    private final AtomicLong mEvictedHolderBytes = new AtomicLong();
+    private final AtomicLong mEvictedBitmapBytes = new AtomicLong();
+    private final AtomicLong mEvictedDiskBytes = new AtomicLong();
+
+    private final AtomicLong mTrimCount = new AtomicLong();
+    private final AtomicLong mTrimmedBytes = new AtomicLong();
+
+    private final Histogram[] mDecodeTimes = {
+            new Histogram("us"), new Histogram("us"), new Histogram("us"), new Histogram("us")};
+    private final Histogram mQueryBatchSizes = new Histogram("");
+    private final Histogram mRequestWaitTimes = new Histogram("ms");
+    private final Histogram mDecodeQueueWaitTimes = new Histogram("us");
+
+    ContactPhotoMetrics() {
+    }
+
+    /**
+     * Records whether a requested photo was displayed right away from the memory caches.
+     */
+    void recordMemoryCacheLookup(boolean hit) {
+        (hit ? mMemoryCacheHits : mMemoryCacheMisses).incrementAndGet();
+    }
+
+    /**
+     * Records the lookup of a photo missing from memory in the disk cache.
+     *
+     * @param found whether the disk cache had the photo
+     * @param fresh whether it had the photo and the photo does not need to be loaded again
+     */
+    void recordDiskCacheLookup(boolean found, boolean fresh) {
+        if (!found) {
+            mDiskCacheMisses.incrementAndGet();
+        } else if (fresh) {
+            mDiskCacheHits.incrementAndGet();
+        } else {
+            mDiskCacheStaleHits.incrementAndGet();
+        }
+    }
+
+    /** Records how long decoding a photo from the given source took. */
+    void recordDecodeTime(int source, long micros) {
+        mDecodeTimes[source].record(micros);
+    }
+
+    /** Records how many photos one query to the contacts provider asked for. */
+    void recordQueryBatchSize(int size) {
+        mQueryBatchSizes.record(size);
+    }
+
+    /** Records how long a view waited for its photo, from its request to its display. */
+    void recordRequestWaitTime(long millis) {
+        mRequestWaitTimes.record(millis);
+    }
+
+    /** Records how long a photo waited for a decoding thread. */
+    void recordDecodeQueueWaitTime(long micros) {
+        mDecodeQueueWaitTimes.record(micros);
+    }
+
+    void recordHolderEviction(long bytes) {
+        mEvictedHolderBytes.addAndGet(bytes);
+    }
+
+    void recordBitmapEviction(long bytes) {
+        mEvictedBitmapBytes.addAndGet(bytes);
+    }
+
+    void recordDiskEviction(long bytes) {
+        mEvictedDiskBytes.addAndGet(bytes);
+    }
+
+    /** Records that the caches were trimmed, freeing the given number of bytes. */
+    void recordTrim(long freedBytes) {
+        mTrimCount.incrementAndGet();
+        mTrimmedBytes.addAndGet(freedBytes);
+    }
+
+    public long getMemoryCacheHits() {
+        return mMemoryCacheHits.get();
+    }
+
+    public long getMemoryCacheMisses() {
+        return mMemoryCacheMisses.get();
+    }
+
+    public long getDiskCacheHits() {
+        return mDiskCacheHits.get();
+    }
+
+    public long getDiskCacheStaleHits() {
+        return mDiskCacheStaleHits.get();
+    }
+
+    public long getDiskCacheMisses() {
+        return mDiskCacheMisses.get();
+    }
+
+    /** Returns the total size of the photo bytes evicted from the memory cache. */
+    public long getEvictedHolderBytes() {
+        return mEvictedHolderBytes.get();
+    }
+
+    /** Returns the total size of the decoded bitmaps evicted from memory. */
+    public long getEvictedBitmapBytes() {
+        return mEvictedBitmapBytes.get();
+    }
+
+    /** Returns the total size of the entries evicted from the disk cache. */
+    public long getEvictedDiskBytes() {
+        return mEvictedDiskBytes.get();
+    }
+
+    public long getTrimCount() {
+        return mTrimCount.get();
+    }
+
+    /** Returns the total number of bytes freed by trimming the caches. */
+    public long getTrimmedBytes() {
+        return mTrimmedBytes.get();
+    }
+
+    /** Returns the decoding times of the photos from the given source, in microseconds. */
+    public Histogram getDecodeTimes(int source) {
+        return mDecodeTimes[source];
+    }
+
+    /** Returns the number of photos asked for per query to the contacts provider. */
+    public Histogram getQueryBatchSizes() {
+        return mQueryBatchSizes;
+    }
+
+    /** Returns the times from the requests of photos to their display, in milliseconds. */
+    public Histogram getRequestWaitTimes() {
+        return mRequestWaitTimes;
+    }
+
+    /** Returns the times photos waited for a decoding thread, in microseconds. */
+    public Histogram getDecodeQueueWaitTimes() {
+        return mDecodeQueueWaitTimes;
+    }
+
+    /** Clears all the counters and histograms. */
+    public void reset() {
+        mMemoryCacheHits.set(0);
+        mMemoryCacheMisses.set(0);
+        mDiskCacheHits.set(0);
+        mDiskCacheStaleHits.set(0);
+        mDiskCacheMisses.set(0);
+        mEvictedHolderBytes.set(0);
+        mEvictedBitmapBytes.set(0);
+        mEvictedDiskBytes.set(0);
+        mTrimCount.set(0);
+        mTrimmedBytes.set(0);
+        for (Histogram histogram : mDecodeTimes) {
+            histogram.reset();
+        }
+        mQueryBatchSizes.reset();
+        mRequestWaitTimes.reset();
+        mDecodeQueueWaitTimes.reset();
+    }
+
+    public void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + "Memory cache: hits=" + getMemoryCacheHits()
+                + " misses=" + getMemoryCacheMisses()
+                + " hitRate=" + formatRate(getMemoryCacheHits(), getMemoryCacheMisses()));
+        writer.println(prefix + "Disk cache: hits=" + getDiskCacheHits()
+                + " staleHits=" + getDiskCacheStaleHits()
+                + " misses=" + getDiskCacheMisses()
+                + " hitRate=" + formatRate(getDiskCacheHits() + getDiskCacheStaleHits(),
+                        getDiskCacheMisses()));
+        for (int source = 0; source < mDecodeTimes.length; source++) {
+            writer.println(prefix + "Decode time (" + SOURCE_NAMES[source] + "): "
+                    + mDecodeTimes[source]);
+        }
+        writer.println(prefix + "Decode queue wait: " + mDecodeQueueWaitTimes);
+        writer.println(prefix + "Request wait: " + mRequestWaitTimes);
+        writer.println(prefix + "Query batch size: " + mQueryBatchSizes);
+        writer.println(prefix + "Evicted bytes: holders=" + getEvictedHolderBytes()
+                + " bitmaps=" + getEvictedBitmapBytes() + " disk=" + getEvictedDiskBytes());
+        writer.println(prefix + "Trims: count=" + getTrimCount()
+                + " freedBytes=" + getTrimmedBytes());
+    }
+
+    private static String formatRate(long hits, long misses) {
+        final long total = hits + misses;
+        return total == 0 ? "-" : (hits * 100 / total) + "%";
+    }
+}
@@ -20,12 +20,9 @@ import android.app.Application;
 import android.content.Context;
 
 import com.android.contacts.common.location.CountryDetector;
+import com.android.contacts.common.location.GeocodedLocationCache;
 
-import com.google.i18n.phonenumbers.geocoding.PhoneNumberOfflineGeocoder;
-import com.google.i18n.phonenumbers.NumberParseException;
-import com.google.i18n.phonenumbers.PhoneNumberUtil;
-import com.google.i18n.phonenumbers.Phonenumber;
-
+import java.util.Collection;
 import java.util.Locale;
 
 /**
@@ -46,15 +43,17 @@ public class GeoUtil {
     }
 
     public static String getGeocodedLocationFor(Context context,  String phoneNumber) {
-        final PhoneNumberOfflineGeocoder geocoder = PhoneNumberOfflineGeocoder.getInstance();
-        final PhoneNumberUtil phoneNumberUtil = PhoneNumberUtil.getInstance();
-        try {
-            final Phonenumber.PhoneNumber structuredPhoneNumber =
-                    phoneNumberUtil.parse(phoneNumber, getCurrentCountryIso(context));
-            final Locale locale = context.getResources().getConfiguration().locale;
-            return geocoder.getDescriptionForNumber(structuredPhoneNumber, locale);
-        } catch (NumberParseException e) {
-            return null;
-        }
+        final Locale locale = context.getResources().getConfiguration().locale;
+        return GeocodedLocationCache.getDescription(
+                phoneNumber, getCurrentCountryIso(context), locale);
+    }
+
+    /**
+     * Geocodes the given phone numbers on a background thread, so that later calls to
+     * {@link #getGeocodedLocationFor} for them do not have to.
+     */
+    public static void prefetchGeocodedLocations(Context context, Collection<String> phoneNumbers) {
+        final Locale locale = context.getResources().getConfiguration().locale;
+        GeocodedLocationCache.prefetch(phoneNumbers, getCurrentCountryIso(context), locale);
     }
 }
@@ -28,6 +28,7 @@ import android.graphics.Rect;
 import android.graphics.Typeface;
 import android.graphics.drawable.Drawable;
 import android.text.TextUtils;
+import android.util.LruCache;
 
 import com.android.contacts.common.R;
 
@@ -36,6 +37,9 @@ import junit.framework.Assert;
 /**
  * A drawable that encapsulates all the functionality needed to display a letter tile to
  * represent a contact image.
+ * <p>
+ * Tiles are rendered once into bitmaps shared by all the drawables drawing the same tile at the
+ * same size, so that drawing a tile again only draws a bitmap.
  */
 public class LetterTileDrawable extends Drawable {
 
@@ -44,7 +48,7 @@ public class LetterTileDrawable extends Drawable {
     private final Paint mPaint;
 
     /** Letter tile */
-    private static TypedArray sColors;
+    private static int[] sColors;
     private static int sDefaultColor;
     private static int sTileFontColor;
     private static float sLetterToTileRatio;
@@ -56,6 +60,23 @@ public class LetterTileDrawable extends Drawable {
     private static final Paint sPaint = new Paint();
     private static final Rect sRect = new Rect();
     private static final char[] sFirstChar = new char[1];
+    private static final Rect sTileBounds = new Rect();
+    private static final Paint sTileBitmapPaint = new Paint();
+
+    /** Maximum total size of the rendered tiles kept around for reuse. */
+    private static final int TILE_CACHE_SIZE = 2 * 1024 * 1024;
+
+    /** Tiles bigger than this are drawn directly rather than rendered into a bitmap. */
+    private static final int MAX_CACHED_TILE_BYTES = TILE_CACHE_SIZE / 8;
+
+    /** Rendered tiles, by everything which determines how they look. */
+    private static final LruCache<TileKey, Bitmap> sTileCache =
+            new LruCache<TileKey, Bitmap>(TILE_CACHE_SIZE) {
+                @Override
+                protected int sizeOf(TileKey key, Bitmap value) {
+                    return value.getByteCount();
+                }
+            };
 
     /** Contact type constants */
     public static final int TYPE_PERSON = 1;
@@ -71,10 +92,19 @@ public class LetterTileDrawable extends Drawable {
     private int mColor;
     private Character mLetter = null;
 
+    /** The rendered tile last drawn, null if it must be looked up or rendered again. */
+    private Bitmap mTileBitmap;
+
     public LetterTileDrawable(final Resources res) {
         if (sColors == null) {
-            sColors = res.obtainTypedArray(R.array.letter_tile_colors);
             sDefaultColor = res.getColor(R.color.letter_tile_default_color);
+            final TypedArray colors = res.obtainTypedArray(R.array.letter_tile_colors);
+            final int[] colorValues = new int[colors.length()];
+            for (int i = 0; i < colorValues.length; i++) {
+                colorValues[i] = colors.getColor(i, sDefaultColor);
+            }
+            colors.recycle();
+            sColors = colorValues;
             sTileFontColor = res.getColor(R.color.letter_tile_font_color);
             sLetterToTileRatio = res.getFraction(R.dimen.letter_to_tile_ratio, 1, 1);
             DEFAULT_PERSON_AVATAR = BitmapFactory.decodeResource(res,
@@ -87,6 +117,8 @@ public class LetterTileDrawable extends Drawable {
                     res.getString(R.string.letter_tile_letter_font_family), Typeface.NORMAL));
             sPaint.setTextAlign(Align.CENTER);
             sPaint.setAntiAlias(true);
+            sTileBitmapPaint.setFilterBitmap(true);
+            sTileBitmapPaint.setDither(true);
         }
         mPaint = new Paint();
         mPaint.setFilterBitmap(true);
@@ -100,18 +132,66 @@ public class LetterTileDrawable extends Drawable {
         if (!isVisible() || bounds.isEmpty()) {
             return;
         }
-        // Draw letter tile.
-        drawLetterTile(canvas);
+        if ((long) bounds.width() * bounds.height() * 4 > MAX_CACHED_TILE_BYTES
+                || mPaint.getColorFilter() != null) {
+            // Draw letter tile.
+            synchronized (sPaint) {
+                drawLetterTile(canvas, bounds, mPaint.getAlpha(), mPaint);
+            }
+            return;
+        }
+        if (mTileBitmap == null) {
+            mTileBitmap = getTileBitmap(bounds.width(), bounds.height());
+        }
+        canvas.drawBitmap(mTileBitmap, bounds.left, bounds.top, mPaint);
+    }
+
+    @Override
+    protected void onBoundsChange(Rect bounds) {
+        mTileBitmap = null;
+    }
+
+    /**
+     * Returns the tile rendered at the given size, rendering it if it is not cached.
+     */
+    private Bitmap getTileBitmap(int width, int height) {
+        final TileKey key = new TileKey(mLetter, mColor, width, height, mIsCircle,
+                mContactType, mScale, mOffset);
+        Bitmap bitmap = sTileCache.get(key);
+        if (bitmap == null) {
+            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            // The paints and rectangles are shared, and tiles may be drawn on any thread.
+            synchronized (sPaint) {
+                sTileBounds.set(0, 0, width, height);
+                drawLetterTile(new Canvas(bitmap), sTileBounds, 255, sTileBitmapPaint);
+            }
+            sTileCache.put(key, bitmap);
+        }
+        return bitmap;
     }
 
     /**
-     * Draw the bitmap onto the canvas at the current bounds taking into account the current scale.
+     * Forgets the rendered tiles. Drawables still drawing them keep them until they change.
+     */
+    public static void clearTileCache() {
+        sTileCache.evictAll();
+    }
+
+    /**
+     * Returns the total size of the rendered tiles kept around for reuse.
+     */
+    public static int getTileCacheSize() {
+        return sTileCache.size();
+    }
+
+    /**
+     * Draw the bitmap onto the canvas at the given bounds taking into account the current scale.
      */
     private void drawBitmap(final Bitmap bitmap, final int width, final int height,
-            final Canvas canvas) {
+            final Canvas canvas, final Rect bounds, final Paint paint) {
         // The bitmap should be drawn in the middle of the canvas without changing its width to
         // height ratio.
-        final Rect destRect = copyBounds();
+        final Rect destRect = new Rect(bounds);
 
         // Crop the destination bounds into a square, scaled and offset as appropriate
         final int halfLength = (int) (mScale * Math.min(destRect.width(), destRect.height()) / 2);
@@ -124,15 +204,15 @@ public class LetterTileDrawable extends Drawable {
         // Source rectangle remains the entire bounds of the source bitmap.
         sRect.set(0, 0, width, height);
 
-        canvas.drawBitmap(bitmap, sRect, destRect, mPaint);
+        canvas.drawBitmap(bitmap, sRect, destRect, paint);
     }
 
-    private void drawLetterTile(final Canvas canvas) {
+    private void drawLetterTile(final Canvas canvas, final Rect bounds, final int alpha,
+            final Paint bitmapPaint) {
         // Draw background color.
         sPaint.setColor(mColor);
 
-        sPaint.setAlpha(mPaint.getAlpha());
-        final Rect bounds = getBounds();
+        sPaint.setAlpha(alpha);
         final int minDimension = Math.min(bounds.width(), bounds.height());
 
         if (mIsCircle) {
@@ -162,7 +242,7 @@ public class LetterTileDrawable extends Drawable {
             // Draw the default image if there is no letter/digit to be drawn
             final Bitmap bitmap = getBitmapForContactType(mContactType);
             drawBitmap(bitmap, bitmap.getWidth(), bitmap.getHeight(),
-                    canvas);
+                    canvas, bounds, bitmapPaint);
         }
     }
 
@@ -180,8 +260,11 @@ public class LetterTileDrawable extends Drawable {
         // String.hashCode() implementation is not supposed to change across java versions, so
         // this should guarantee the same email address always maps to the same color.
         // The email should already have been normalized by the ContactRequest.
-        final int color = Math.abs(identifier.hashCode()) % sColors.length();
-        return sColors.getColor(color, sDefaultColor);
+        if (sColors.length == 0) {
+            return sDefaultColor;
+        }
+        final int color = Math.abs(identifier.hashCode()) % sColors.length;
+        return sColors[color];
     }
 
     private static Bitmap getBitmapForContactType(int contactType) {
@@ -224,6 +307,7 @@ public class LetterTileDrawable extends Drawable {
      */
     public LetterTileDrawable setScale(float scale) {
         mScale = scale;
+        mTileBitmap = null;
         return this;
     }
 
@@ -242,16 +326,19 @@ public class LetterTileDrawable extends Drawable {
     public LetterTileDrawable setOffset(float offset) {
         Assert.assertTrue(offset >= -0.5f && offset <= 0.5f);
         mOffset = offset;
+        mTileBitmap = null;
         return this;
     }
 
     public LetterTileDrawable setLetter(Character letter){
         mLetter = letter;
+        mTileBitmap = null;
         return this;
     }
 
     public LetterTileDrawable setColor(int color){
         mColor = color;
+        mTileBitmap = null;
         return this;
     }
 
@@ -264,16 +351,73 @@ public class LetterTileDrawable extends Drawable {
             mLetter = null;
         }
         mColor = pickColor(identifier);
+        mTileBitmap = null;
         return this;
     }
 
     public LetterTileDrawable setContactType(int contactType) {
         mContactType = contactType;
+        mTileBitmap = null;
         return this;
     }
 
     public LetterTileDrawable setIsCircular(boolean isCircle) {
         mIsCircle = isCircle;
+        mTileBitmap = null;
         return this;
     }
+
+    /**
+     * Everything which determines how a tile looks.
+     */
+    private static final class TileKey {
+        private final Character mLetter;
+        private final int mColor;
+        private final int mWidth;
+        private final int mHeight;
+        private final boolean mIsCircle;
+        private final int mContactType;
+        private final float mScale;
+        private final float mOffset;
+
+        TileKey(Character letter, int color, int width, int height, boolean isCircle,
+                int contactType, float scale, float offset) {
+            mLetter = letter;
+            mColor = color;
+            mWidth = width;
+            mHeight = height;
+            mIsCircle = isCircle;
+            mContactType = contactType;
+            mScale = scale;
+            mOffset = offset;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = mLetter != null ? mLetter.hashCode() : 0;
+            result = 31 * result + mColor;
+            result = 31 * result + mWidth;
+            result = 31 * result + mHeight;
+            result = 31 * result + (mIsCircle ? 1 : 0);
+            result = 31 * result + mContactType;
+            result = 31 * result + Float.floatToIntBits(mScale);
+            result = 31 * result + Float.floatToIntBits(mOffset);
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof TileKey)) return false;
+            final TileKey that = (TileKey) obj;
+            return (mLetter == null ? that.mLetter == null : mLetter.equals(that.mLetter))
+                    && mColor == that.mColor
+                    && mWidth == that.mWidth
+                    && mHeight == that.mHeight
+                    && mIsCircle == that.mIsCircle
+                    && mContactType == that.mContactType
+                    && Float.compare(mScale, that.mScale) == 0
+                    && Float.compare(mOffset, that.mOffset) == 0;
+        }
+    }
 }
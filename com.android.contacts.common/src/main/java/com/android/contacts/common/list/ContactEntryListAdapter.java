@@ -49,7 +49,8 @@ import java.util.HashSet;
  * Common base class for various contact-related lists, e.g. contact list, phone number list
  * etc.
  */
-public abstract class ContactEntryListAdapter extends IndexerListAdapter {
+public abstract class ContactEntryListAdapter extends IndexerListAdapter
+        implements ContactPhotoManager.RowPhotoSource {
 
     private static final String TAG = "ContactEntryListAdapter";
 
@@ -713,6 +714,59 @@ public abstract class ContactEntryListAdapter extends IndexerListAdapter {
         return true;
     }
 
+    /**
+     * Returns the index of the column holding the photo id in the cursors of this adapter, or -1
+     * if photos are not preloaded as the list is scrolled.
+     */
+    protected int getPhotoIdColumnIndex() {
+        return -1;
+    }
+
+    /**
+     * Returns the index of the column holding the photo URI in the cursors of this adapter, or
+     * -1 if photos are not preloaded as the list is scrolled.
+     */
+    protected int getPhotoUriColumnIndex() {
+        return -1;
+    }
+
+    @Override
+    public int getRowCount() {
+        return getCount();
+    }
+
+    @Override
+    public long getRowPhotoId(int position) {
+        final Cursor cursor = getPhotoCursor(position, getPhotoIdColumnIndex());
+        if (cursor == null || cursor.isNull(getPhotoIdColumnIndex())) {
+            return 0;
+        }
+        return cursor.getLong(getPhotoIdColumnIndex());
+    }
+
+    @Override
+    public Uri getRowPhotoUri(int position) {
+        final Cursor cursor = getPhotoCursor(position, getPhotoUriColumnIndex());
+        final String photoUriString =
+                cursor == null ? null : cursor.getString(getPhotoUriColumnIndex());
+        return photoUriString == null ? null : Uri.parse(photoUriString);
+    }
+
+    /**
+     * Returns the cursor moved to the row at the given position, or null if the row is a header
+     * or displays no photo, or the given column is unknown.
+     */
+    private Cursor getPhotoCursor(int position, int columnIndex) {
+        if (!mDisplayPhotos || columnIndex < 0) {
+            return null;
+        }
+        final int partitionIndex = getPartitionForPosition(position);
+        if (partitionIndex < 0 || !isPhotoSupported(partitionIndex)) {
+            return null;
+        }
+        return (Cursor) getItem(position);
+    }
+
     /**
      * Returns the currently selected filter.
      */
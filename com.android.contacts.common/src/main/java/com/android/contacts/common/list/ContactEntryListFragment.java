@@ -29,6 +29,7 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.os.Parcelable;
+import android.os.SystemClock;
 import android.provider.ContactsContract.Directory;
 import android.text.TextUtils;
 import android.util.Log;
@@ -131,6 +132,13 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
     private ContactPhotoManager mPhotoManager;
     private ContactsPreferences mContactsPrefs;
 
+    /**
+     * The first visible list position and the time it was last seen, to estimate the scrolling
+     * speed for the photo manager. The position is -1 when the list is not being scrolled.
+     */
+    private int mLastFirstVisibleItem = -1;
+    private long mLastFirstVisibleItemTime;
+
     private boolean mForceLoad;
 
     private boolean mDarkTheme;
@@ -818,10 +826,32 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
     @Override
     public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
             int totalItemCount) {
+        if (mPhotoManager == null || mAdapter == null || !isPhotoLoaderEnabled()
+                || visibleItemCount == 0 || firstVisibleItem == mLastFirstVisibleItem) {
+            return;
+        }
+        final long now = SystemClock.uptimeMillis();
+        float rowsPerSecond = 0;
+        if (mLastFirstVisibleItem >= 0 && now > mLastFirstVisibleItemTime) {
+            rowsPerSecond = (firstVisibleItem - mLastFirstVisibleItem) * 1000f
+                    / (now - mLastFirstVisibleItemTime);
+        }
+        mLastFirstVisibleItem = firstVisibleItem;
+        mLastFirstVisibleItemTime = now;
+
+        final int firstPosition = Math.max(0, firstVisibleItem - mListView.getHeaderViewsCount());
+        final int lastPosition = firstVisibleItem + visibleItemCount - 1
+                - mListView.getHeaderViewsCount();
+        if (lastPosition >= firstPosition) {
+            mPhotoManager.preloadRows(mAdapter, firstPosition, lastPosition, rowsPerSecond);
+        }
     }
 
     @Override
     public void onScrollStateChanged(AbsListView view, int scrollState) {
+        if (scrollState == OnScrollListener.SCROLL_STATE_IDLE) {
+            mLastFirstVisibleItem = -1;
+        }
         if (scrollState == OnScrollListener.SCROLL_STATE_FLING) {
             mPhotoManager.pause();
         } else if (isPhotoLoaderEnabled()) {
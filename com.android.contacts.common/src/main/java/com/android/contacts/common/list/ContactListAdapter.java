@@ -237,6 +237,16 @@ public abstract class ContactListAdapter extends ContactEntryListAdapter {
         }
     }
 
+    @Override
+    protected int getPhotoIdColumnIndex() {
+        return ContactQuery.CONTACT_PHOTO_ID;
+    }
+
+    @Override
+    protected int getPhotoUriColumnIndex() {
+        return ContactQuery.CONTACT_PHOTO_URI;
+    }
+
     protected void bindPhoto(final ContactListItemView view, int partitionIndex, Cursor cursor) {
         if (!isPhotoSupported(partitionIndex)) {
             view.removePhotoView();
@@ -155,6 +155,12 @@ public class PhoneNumberListAdapter extends ContactEntryListAdapter {
     private static final String IGNORE_NUMBER_TOO_LONG_CLAUSE =
             "length(" + Phone.NUMBER + ") < 1000";
 
+    /**
+     * Maximum number of rows of a new cursor whose geocoded location is computed ahead of binding
+     * them, roughly the number of rows which fit on a couple of screens.
+     */
+    private static final int GEOCODE_PREFETCH_ROWS = 30;
+
     private final CharSequence mUnknownNameText;
     private final String mCountryIso;
 
@@ -463,6 +469,38 @@ public class PhoneNumberListAdapter extends ContactEntryListAdapter {
         bindPhoneNumber(view, cursor, directory.isDisplayNumber(), position);
     }
 
+    @Override
+    public void changeCursor(int partitionIndex, Cursor cursor) {
+        super.changeCursor(partitionIndex, cursor);
+        if (partitionIndex < getPartitionCount()) {
+            prefetchGeocodedLocations(getPartition(partitionIndex), cursor);
+        }
+    }
+
+    /**
+     * Geocodes, off the UI thread, the numbers which {@link #bindPhoneNumber} will display the
+     * location of in the first rows of the cursor.
+     */
+    private void prefetchGeocodedLocations(Partition partition, Cursor cursor) {
+        if (cursor == null || cursor.isClosed() || !(partition instanceof DirectoryPartition)
+                || ((DirectoryPartition) partition).isDisplayNumber()) {
+            return;
+        }
+        final int position = cursor.getPosition();
+        final ArrayList<String> phoneNumbers = new ArrayList<>();
+        try {
+            cursor.moveToPosition(-1);
+            while (cursor.moveToNext() && cursor.getPosition() < GEOCODE_PREFETCH_ROWS) {
+                if (cursor.isNull(PhoneQuery.PHONE_LABEL)) {
+                    phoneNumbers.add(cursor.getString(PhoneQuery.PHONE_NUMBER));
+                }
+            }
+        } finally {
+            cursor.moveToPosition(position);
+        }
+        GeoUtil.prefetchGeocodedLocations(mContext, phoneNumbers);
+    }
+
     protected void bindPhoneNumber(ContactListItemView view, Cursor cursor, boolean displayNumber,
             int position) {
         CharSequence label = null;
@@ -530,6 +568,16 @@ public class PhoneNumberListAdapter extends ContactEntryListAdapter {
                 !isExtendedDirectory(directoryId) && userType == ContactsUtils.USER_TYPE_WORK);
     }
 
+    @Override
+    protected int getPhotoIdColumnIndex() {
+        return PhoneQuery.PHOTO_ID;
+    }
+
+    @Override
+    protected int getPhotoUriColumnIndex() {
+        return PhoneQuery.PHOTO_URI;
+    }
+
     protected void bindPhoto(final ContactListItemView view, int partitionIndex, Cursor cursor) {
         if (!isPhotoSupported(partitionIndex)) {
             view.removePhotoView();
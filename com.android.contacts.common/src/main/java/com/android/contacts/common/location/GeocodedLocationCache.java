@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.location;
+
+import android.os.AsyncTask;
+import android.text.TextUtils;
+import android.util.LruCache;
+
+import com.google.i18n.phonenumbers.NumberParseException;
+import com.google.i18n.phonenumbers.PhoneNumberUtil;
+import com.google.i18n.phonenumbers.Phonenumber;
+import com.google.i18n.phonenumbers.geocoding.PhoneNumberOfflineGeocoder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Locale;
+
+/**
+ * Process-wide cache of the geographical descriptions returned by
+ * {@link PhoneNumberOfflineGeocoder} for phone numbers.
+ * <p>
+ * Geocoding a number parses it and looks its prefix up in the geocoding data files, which may
+ * have to be loaded from disk first. Lists which show the location of numbers can call
+ * {@link #prefetch} with the numbers about to be displayed so that binding the rows only hits the
+ * cache.
+ * <p>
+ * Entries are keyed by the number as given, the country used to parse it and the locale of the
+ * description. The geocoder checks the type of the number against all of its digits before
+ * looking up its prefix, so entries cannot be shared between numbers with the same prefix.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class GeocodedLocationCache {
+    private static final int MAX_ENTRIES = 256;
+
+    /** Cached in place of a null description, which {@link LruCache} cannot hold. */
+    private static final String NO_DESCRIPTION = new String();
+
+    private static final LruCache<Key, String> sCache = new LruCache<>(MAX_ENTRIES);
+
+    private GeocodedLocationCache() {}
+
+    /**
+     * Returns the geographical description of the number, or null if it cannot be parsed.
+     *
+     * @param number the phone number, as dialed or displayed
+     * @param countryIso the country used to parse numbers without a country code
+     * @param locale the locale of the description
+     */
+    public static String getDescription(String number, String countryIso, Locale locale) {
+        if (TextUtils.isEmpty(number)) {
+            return null;
+        }
+        final Key key = new Key(number, countryIso, locale);
+        String description = sCache.get(key);
+        if (description == null) {
+            description = geocode(number, countryIso, locale);
+            sCache.put(key, description == null ? NO_DESCRIPTION : description);
+        }
+        return description == NO_DESCRIPTION ? null : description;
+    }
+
+    /**
+     * Geocodes the given numbers on a background thread and caches their descriptions.
+     */
+    public static void prefetch(Collection<String> numbers, final String countryIso,
+            final Locale locale) {
+        final ArrayList<String> uncachedNumbers = new ArrayList<>(numbers.size());
+        for (String number : numbers) {
+            if (!TextUtils.isEmpty(number)
+                    && sCache.get(new Key(number, countryIso, locale)) == null) {
+                uncachedNumbers.add(number);
+            }
+        }
+        if (uncachedNumbers.isEmpty()) {
+            return;
+        }
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (String number : uncachedNumbers) {
+                    getDescription(number, countryIso, locale);
+                }
+            }
+        });
+    }
+
+    private static String geocode(String number, String countryIso, Locale locale) {
+        final PhoneNumberUtil phoneNumberUtil = PhoneNumberUtil.getInstance();
+        try {
+            final Phonenumber.PhoneNumber structuredPhoneNumber =
+                    phoneNumberUtil.parse(number, countryIso);
+            return PhoneNumberOfflineGeocoder.getInstance()
+                    .getDescriptionForNumber(structuredPhoneNumber, locale);
+        } catch (NumberParseException e) {
+            return null;
+        }
+    }
+
+    private static final class Key {
+        public final String number;
+        public final String countryIso;
+        public final Locale locale;
+
+        public Key(String number, String countryIso, Locale locale) {
+            this.number = number;
+            this.countryIso = countryIso;
+            this.locale = locale;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return TextUtils.equals(number, other.number)
+                    && TextUtils.equals(countryIso, other.countryIso)
+                    && (locale == null ? other.locale == null : locale.equals(other.locale));
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = number.hashCode();
+            result = prime * result + ((countryIso == null) ? 0 : countryIso.hashCode());
+            result = prime * result + ((locale == null) ? 0 : locale.hashCode());
+            return result;
+        }
+    }
+}
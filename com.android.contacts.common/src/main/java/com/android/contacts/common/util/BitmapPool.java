@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.common.util;
+
+import android.graphics.Bitmap;
+import android.util.SparseArray;
+
+import java.util.ArrayDeque;
+
+/**
+ * Pool of mutable bitmaps which are no longer used, to be decoded or drawn into through
+ * {@link android.graphics.BitmapFactory.Options#inBitmap} instead of allocating new ones.
+ * <p>
+ * Bitmaps are bucketed by the power of two just below the size of their allocation, so that any
+ * bitmap taken from the bucket of the power of two just above a requested size is big enough.
+ * The bitmaps put the longest ago are dropped once the pool exceeds its size.
+ * <p>
+ * Callers must only put bitmaps which nothing references anymore. This class is thread-safe.
+ */
+public final class BitmapPool {
+    private final long mMaxSizeBytes;
+
+    /** The pooled bitmaps, by the bucket of their allocation size. */
+    private final SparseArray<ArrayDeque<Bitmap>> mBuckets = new SparseArray<>();
+    /** The pooled bitmaps, in the order they were put. */
+    private final ArrayDeque<Bitmap> mBitmaps = new ArrayDeque<>();
+    private long mSizeBytes;
+
+    public BitmapPool(long maxSizeBytes) {
+        mMaxSizeBytes = maxSizeBytes;
+    }
+
+    /**
+     * Adds the given bitmap to the pool, unless it cannot be reused or is too big.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || !bitmap.isMutable() || bitmap.isRecycled()) {
+            return;
+        }
+        final int size = bitmap.getAllocationByteCount();
+        if (size == 0 || size > mMaxSizeBytes / 4 || mBitmaps.contains(bitmap)) {
+            return;
+        }
+        ArrayDeque<Bitmap> bucket = mBuckets.get(Integer.highestOneBit(size));
+        if (bucket == null) {
+            bucket = new ArrayDeque<>();
+            mBuckets.put(Integer.highestOneBit(size), bucket);
+        }
+        bucket.addLast(bitmap);
+        mBitmaps.addLast(bitmap);
+        mSizeBytes += size;
+        trimToSize(mMaxSizeBytes);
+    }
+
+    /**
+     * Removes and returns a bitmap whose allocation is at least the given number of bytes, or
+     * returns null if there is none.
+     */
+    public synchronized Bitmap get(int byteCount) {
+        if (byteCount <= 0) {
+            return null;
+        }
+        final int highestOneBit = Integer.highestOneBit(byteCount);
+        final int bucketSize = highestOneBit == byteCount ? highestOneBit : highestOneBit << 1;
+        final ArrayDeque<Bitmap> bucket = mBuckets.get(bucketSize);
+        if (bucket == null || bucket.isEmpty()) {
+            return null;
+        }
+        final Bitmap bitmap = bucket.pollLast();
+        mBitmaps.remove(bitmap);
+        mSizeBytes -= bitmap.getAllocationByteCount();
+        return bitmap;
+    }
+
+    /**
+     * Returns a bitmap of the given size and configuration, reused from the pool if possible.
+     * The content of the returned bitmap is undefined.
+     */
+    public Bitmap obtain(int width, int height, Bitmap.Config config) {
+        final Bitmap bitmap = get(width * height * getBytesPerPixel(config));
+        if (bitmap != null) {
+            try {
+                bitmap.reconfigure(width, height, config);
+                return bitmap;
+            } catch (IllegalArgumentException e) {
+                // Fall through and allocate a new bitmap.
+            }
+        }
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Drops the bitmaps put the longest ago until the pool is no bigger than the given size.
+     */
+    public synchronized void trimToSize(long maxSizeBytes) {
+        while (mSizeBytes > maxSizeBytes && !mBitmaps.isEmpty()) {
+            final Bitmap bitmap = mBitmaps.pollFirst();
+            final int size = bitmap.getAllocationByteCount();
+            mBuckets.get(Integer.highestOneBit(size)).remove(bitmap);
+            mSizeBytes -= size;
+        }
+    }
+
+    public void clear() {
+        trimToSize(0);
+    }
+
+    /** Returns the size the pool is bounded to. */
+    public long maxSize() {
+        return mMaxSizeBytes;
+    }
+
+    /** Returns the total allocation size of the pooled bitmaps. */
+    public synchronized long size() {
+        return mSizeBytes;
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        } else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        return 4;
+    }
+}
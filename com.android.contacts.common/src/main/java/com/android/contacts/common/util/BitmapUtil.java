@@ -89,6 +89,51 @@ public class BitmapUtil {
         return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
     }
 
+    /**
+     * Decodes the bitmap with the given sample size, into a bitmap taken from the given pool if
+     * one is big enough. The returned bitmap is mutable, so that it can be put back in the pool
+     * once it is no longer used.
+     */
+    public static Bitmap decodeBitmapFromBytes(byte[] bytes, int sampleSize, BitmapPool pool) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = Math.max(1, sampleSize);
+        options.inMutable = true;
+        // Round up, the decoder may do the same.
+        final int width = (options.outWidth + options.inSampleSize - 1) / options.inSampleSize;
+        final int height = (options.outHeight + options.inSampleSize - 1) / options.inSampleSize;
+        options.inBitmap = pool.get(width * height * 4 /* ARGB_8888 */);
+        try {
+            return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap could not be reused after all.
+            options.inBitmap = null;
+            return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        }
+    }
+
+    /**
+     * Crops the center of the given bitmap to the given size, into a bitmap taken from the given
+     * pool if possible. The input bitmap is left untouched.
+     */
+    public static Bitmap cropCenter(Bitmap input, int width, int height, BitmapPool pool) {
+        final Bitmap.Config config = input.getConfig() != null
+                ? input.getConfig() : Bitmap.Config.ARGB_8888;
+        final Bitmap result = pool.obtain(width, height, config);
+        result.eraseColor(0);
+        final int left = (input.getWidth() - width) / 2;
+        final int top = (input.getHeight() - height) / 2;
+        new Canvas(result).drawBitmap(input, new Rect(left, top, left + width, top + height),
+                new Rect(0, 0, width, height), null);
+        return result;
+    }
+
     /**
      * Retrieves a copy of the specified drawable resource, rotated by a specified angle.
      *
@@ -195,6 +195,13 @@ public class CallDetailActivity extends AppCompatActivity
             findViewById(R.id.call_detail).setVisibility(View.VISIBLE);
         }
 
+        @Override
+        public void onGetAllCallDetails(PhoneCallDetails[] details) {
+            // The header was bound from the first calls, only the history needs updating.
+            mHistoryList.setAdapter(
+                    new CallDetailHistoryAdapter(mContext, mInflater, mCallTypeHelper, details));
+        }
+
         /**
          * Determines the location geocode text for a call, or the phone number type
          * (if available).
@@ -385,15 +392,12 @@ public class CallDetailActivity extends AppCompatActivity
                 CallLogAsyncTaskUtil.deleteVoicemail(
                         this, mVoicemailUri, mCallLogAsyncTaskListener);
             } else {
-                final StringBuilder callIds = new StringBuilder();
-                for (Uri callUri : getCallLogEntryUris()) {
-                    if (callIds.length() != 0) {
-                        callIds.append(",");
-                    }
-                    callIds.append(ContentUris.parseId(callUri));
+                final Uri[] callUris = getCallLogEntryUris();
+                final long[] callIds = new long[callUris.length];
+                for (int index = 0; index < callUris.length; ++index) {
+                    callIds[index] = ContentUris.parseId(callUris[index]);
                 }
-                CallLogAsyncTaskUtil.deleteCalls(
-                        this, callIds.toString(), mCallLogAsyncTaskListener);
+                CallLogAsyncTaskUtil.deleteCalls(this, callIds, mCallLogAsyncTaskListener);
             }
         }
         return true;
@@ -22,8 +22,10 @@ import android.os.Bundle;
 import android.provider.CallLog;
 import android.provider.CallLog.Calls;
 import android.support.v13.app.FragmentPagerAdapter;
+import android.support.v4.view.MenuItemCompat;
 import android.support.v4.view.ViewPager;
 import android.support.v7.app.ActionBar;
+import android.support.v7.widget.SearchView;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
@@ -56,6 +58,9 @@ public class CallLogActivity extends TransactionSafeActivity implements ViewPage
 
     private boolean mIsResumed;
 
+    /** The query the calls shown are searched for, or null if they are not. */
+    private String mSearchQuery;
+
     public class ViewPagerAdapter extends FragmentPagerAdapter {
         public ViewPagerAdapter(FragmentManager fm) {
             super(fm);
@@ -82,6 +87,7 @@ public class CallLogActivity extends TransactionSafeActivity implements ViewPage
         public Object instantiateItem(ViewGroup container, int position) {
             final CallLogFragment fragment =
                     (CallLogFragment) super.instantiateItem(container, position);
+            fragment.setSearchQuery(mSearchQuery);
             switch (position) {
                 case TAB_INDEX_ALL:
                     mAllCallsFragment = fragment;
@@ -170,9 +176,49 @@ public class CallLogActivity extends TransactionSafeActivity implements ViewPage
     public boolean onCreateOptionsMenu(Menu menu) {
         final MenuInflater inflater = getMenuInflater();
         inflater.inflate(R.menu.call_log_options, menu);
+
+        final MenuItem searchItem = menu.findItem(R.id.search_call_log);
+        final SearchView searchView = (SearchView) MenuItemCompat.getActionView(searchItem);
+        searchView.setQueryHint(getString(R.string.call_log_search_hint));
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                searchView.clearFocus();
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                setSearchQuery(newText);
+                return true;
+            }
+        });
+        MenuItemCompat.setOnActionExpandListener(searchItem,
+                new MenuItemCompat.OnActionExpandListener() {
+                    @Override
+                    public boolean onMenuItemActionExpand(MenuItem item) {
+                        return true;
+                    }
+
+                    @Override
+                    public boolean onMenuItemActionCollapse(MenuItem item) {
+                        setSearchQuery(null);
+                        return true;
+                    }
+                });
         return true;
     }
 
+    private void setSearchQuery(String searchQuery) {
+        mSearchQuery = searchQuery;
+        if (mAllCallsFragment != null) {
+            mAllCallsFragment.setSearchQuery(searchQuery);
+        }
+        if (mMissedCallsFragment != null) {
+            mMissedCallsFragment.setSearchQuery(searchQuery);
+        }
+    }
+
     @Override
     public boolean onPrepareOptionsMenu(Menu menu) {
         final MenuItem itemDeleteAll = menu.findItem(R.id.delete_all);
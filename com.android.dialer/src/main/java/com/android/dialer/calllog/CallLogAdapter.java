@@ -32,10 +32,9 @@ import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.support.v7.widget.RecyclerView;
 import android.support.v7.widget.RecyclerView.ViewHolder;
 import android.telecom.PhoneAccountHandle;
-import android.telephony.PhoneNumberUtils;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
-import android.util.ArrayMap;
+import android.view.Choreographer;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.View.AccessibilityDelegate;
@@ -53,17 +52,23 @@ import com.android.dialer.R;
 import com.android.dialer.calllog.calllogcache.CallLogCache;
 import com.android.dialer.contactinfo.ContactInfoCache;
 import com.android.dialer.contactinfo.ContactInfoCache.OnContactInfoChangedListener;
+import com.android.dialer.contactinfo.NumberWithCountryIso;
+import com.android.dialer.contactinfo.PersistentContactInfoCache;
 import com.android.dialer.database.FilteredNumberAsyncQueryHandler;
 import com.android.dialer.database.VoicemailArchiveContract;
 import com.android.dialer.filterednumber.BlockNumberDialogFragment.Callback;
+import com.android.dialer.filterednumber.BlockedNumberCache;
 import com.android.dialer.logging.InteractionEvent;
 import com.android.dialer.logging.Logger;
 import com.android.dialer.service.ExtendedBlockingButtonRenderer;
 import com.android.dialer.util.PhoneNumberUtil;
 import com.android.dialer.voicemail.VoicemailPlaybackPresenter;
 
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Map;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * Adapter class to fill in data for the Call Log.
@@ -89,6 +94,12 @@ public class CallLogAdapter extends GroupingListAdapter
 
     private static final int VOICEMAIL_PROMO_CARD_POSITION = 0;
 
+    /**
+     * Payload of the changes notified when the contact info of a row changed. Notifying a change
+     * with a payload lets the item animator rebind the row in place instead of cross-fading it.
+     */
+    private static final Object CONTACT_INFO_CHANGED = new Object();
+
     protected static final int VIEW_TYPE_NORMAL = 0;
     private static final int VIEW_TYPE_VOICEMAIL_PROMO_CARD = 1;
 
@@ -104,7 +115,7 @@ public class CallLogAdapter extends GroupingListAdapter
     protected final VoicemailPlaybackPresenter mVoicemailPlaybackPresenter;
     private final CallFetcher mCallFetcher;
     private final FilteredNumberAsyncQueryHandler mFilteredNumberAsyncQueryHandler;
-    private final Map<String, Boolean> mBlockedNumberCache = new ArrayMap<>();
+    private final BlockedNumberCache mBlockedNumberCache;
 
     protected ContactInfoCache mContactInfoCache;
 
@@ -122,6 +133,12 @@ public class CallLogAdapter extends GroupingListAdapter
     private Uri mHiddenItemUri = null;
     private boolean mPendingHide = false;
 
+    /** The call log entries currently bound, used to find the rows showing a given number. */
+    private final Set<CallLogListItemViewHolder> mBoundViewHolders = new HashSet<>();
+    /** Numbers whose contact info changed and whose rows are to be redrawn on the next frame. */
+    private final Set<NumberWithCountryIso> mChangedNumbers = new HashSet<>();
+    private boolean mRedrawScheduled = false;
+
     /**
      *  Hashmap, keyed by call Id, used to track the day group for a call.  As call log entries are
      *  put into the primary call groups in {@link com.android.dialer.calllog.CallLogGroupBuilder},
@@ -251,8 +268,22 @@ public class CallLogAdapter extends GroupingListAdapter
     protected final OnContactInfoChangedListener mOnContactInfoChangedListener =
             new OnContactInfoChangedListener() {
                 @Override
-                public void onContactInfoChanged() {
-                    notifyDataSetChanged();
+                public void onContactInfoChanged(Set<NumberWithCountryIso> changedNumbers) {
+                    // Lookups complete in bursts, coalesce the changes reported within a frame.
+                    mChangedNumbers.addAll(changedNumbers);
+                    if (!mRedrawScheduled) {
+                        mRedrawScheduled = true;
+                        Choreographer.getInstance().postFrameCallback(mRedrawFrameCallback);
+                    }
+                }
+            };
+
+    private final Choreographer.FrameCallback mRedrawFrameCallback =
+            new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    mRedrawScheduled = false;
+                    redrawChangedNumbers();
                 }
             };
 
@@ -278,6 +309,8 @@ public class CallLogAdapter extends GroupingListAdapter
                 mContactInfoHelper, mOnContactInfoChangedListener);
         if (!PermissionsUtil.hasContactsPermissions(context)) {
             mContactInfoCache.disableRequestProcessing();
+        } else if (mActivityType != ACTIVITY_TYPE_ARCHIVE) {
+            mContactInfoCache.setPersistentCache(PersistentContactInfoCache.getInstance(context));
         }
 
         Resources resources = mContext.getResources();
@@ -292,6 +325,7 @@ public class CallLogAdapter extends GroupingListAdapter
         mCallLogGroupBuilder = new CallLogGroupBuilder(this);
         mFilteredNumberAsyncQueryHandler =
                 new FilteredNumberAsyncQueryHandler(mContext.getContentResolver());
+        mBlockedNumberCache = BlockedNumberCache.getInstance(mContext);
 
         mPrefs = PreferenceManager.getDefaultSharedPreferences(context);
         mContactsPreferences = new ContactsPreferences(mContext);
@@ -314,20 +348,13 @@ public class CallLogAdapter extends GroupingListAdapter
 
     @Override
     public void onBlockedNumber(String number,String countryIso) {
-        String cacheKey = PhoneNumberUtils.formatNumberToE164(number, countryIso);
-        if (!TextUtils.isEmpty(cacheKey)) {
-            mBlockedNumberCache.put(cacheKey, true);
-            notifyDataSetChanged();
-        }
+        // No row displays whether its number is blocked, only the context menu reads it.
+        mBlockedNumberCache.reload();
     }
 
     @Override
     public void onUnblockedNumber( String number, String countryIso) {
-        String cacheKey = PhoneNumberUtils.formatNumberToE164(number, countryIso);
-        if (!TextUtils.isEmpty(cacheKey)) {
-            mBlockedNumberCache.put(cacheKey, false);
-            notifyDataSetChanged();
-        }
+        mBlockedNumberCache.reload();
     }
 
     /**
@@ -461,6 +488,19 @@ public class CallLogAdapter extends GroupingListAdapter
         Trace.endSection();
     }
 
+    @Override
+    public void onViewRecycled(ViewHolder viewHolder) {
+        if (viewHolder instanceof CallLogListItemViewHolder) {
+            final CallLogListItemViewHolder views = (CallLogListItemViewHolder) viewHolder;
+            mBoundViewHolders.remove(views);
+            if (views.number != null) {
+                // The row is no longer on screen, don't let its lookup delay the visible ones.
+                mContactInfoCache.cancelRequest(views.number + views.postDialDigits,
+                        views.countryIso);
+            }
+        }
+    }
+
     /**
      * Binds the promo card view holder.
      *
@@ -553,6 +593,7 @@ public class CallLogAdapter extends GroupingListAdapter
         // Store values used when the actions ViewStub is inflated on expansion.
         views.number = number;
         views.postDialDigits = details.postDialDigits;
+        views.countryIso = countryIso;
         views.displayNumber = details.displayNumber;
         views.numberPresentation = numberPresentation;
 
@@ -605,6 +646,34 @@ public class CallLogAdapter extends GroupingListAdapter
         views.updatePhoto();
 
         mCallLogListItemHelper.setPhoneCallDetails(views, details);
+        mBoundViewHolders.add(views);
+    }
+
+    /**
+     * Rebinds the rows showing the numbers whose contact info changed, rather than the whole
+     * list.
+     */
+    private void redrawChangedNumbers() {
+        if (mChangedNumbers.isEmpty()) {
+            return;
+        }
+        final List<Integer> positions = new ArrayList<>();
+        for (CallLogListItemViewHolder views : mBoundViewHolders) {
+            if (views.number == null) {
+                continue;
+            }
+            final NumberWithCountryIso numberCountryIso = new NumberWithCountryIso(
+                    views.number + views.postDialDigits, views.countryIso);
+            final int position = views.getAdapterPosition();
+            if (position != RecyclerView.NO_POSITION
+                    && mChangedNumbers.contains(numberCountryIso)) {
+                positions.add(position);
+            }
+        }
+        mChangedNumbers.clear();
+        for (int position : positions) {
+            notifyItemChanged(position, CONTACT_INFO_CHANGED);
+        }
     }
 
     private String getPreferredDisplayName(ContactInfo contactInfo) {
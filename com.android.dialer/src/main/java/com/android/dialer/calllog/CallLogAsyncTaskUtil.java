@@ -19,6 +19,7 @@ package com.android.dialer.calllog;
 import com.google.common.annotations.VisibleForTesting;
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
@@ -27,6 +28,7 @@ import android.net.Uri;
 import android.os.AsyncTask;
 import android.provider.CallLog;
 import android.provider.VoicemailContract.Voicemails;
+import android.support.v4.util.Pair;
 import android.telecom.PhoneAccountHandle;
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
@@ -37,6 +39,7 @@ import com.android.contacts.common.compat.CompatUtils;
 import com.android.contacts.common.util.PermissionsUtil;
 import com.android.dialer.PhoneCallDetails;
 import com.android.dialer.compat.CallsSdkCompat;
+import com.android.dialer.contactinfo.NumberWithCountryIso;
 import com.android.dialer.database.VoicemailArchiveContract;
 import com.android.dialer.util.AsyncTaskExecutor;
 import com.android.dialer.util.AsyncTaskExecutors;
@@ -45,7 +48,9 @@ import com.android.dialer.util.TelecomUtil;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
 
 public class CallLogAsyncTaskUtil {
     private static String TAG = CallLogAsyncTaskUtil.class.getSimpleName();
@@ -64,6 +69,7 @@ public class CallLogAsyncTaskUtil {
     private static final class CallDetailQuery {
 
         private static final String[] CALL_LOG_PROJECTION_INTERNAL = new String[] {
+            CallLog.Calls._ID,
             CallLog.Calls.DATE,
             CallLog.Calls.DURATION,
             CallLog.Calls.NUMBER,
@@ -79,20 +85,21 @@ public class CallLogAsyncTaskUtil {
         };
         public static final String[] CALL_LOG_PROJECTION;
 
-        static final int DATE_COLUMN_INDEX = 0;
-        static final int DURATION_COLUMN_INDEX = 1;
-        static final int NUMBER_COLUMN_INDEX = 2;
-        static final int CALL_TYPE_COLUMN_INDEX = 3;
-        static final int COUNTRY_ISO_COLUMN_INDEX = 4;
-        static final int GEOCODED_LOCATION_COLUMN_INDEX = 5;
-        static final int NUMBER_PRESENTATION_COLUMN_INDEX = 6;
-        static final int ACCOUNT_COMPONENT_NAME = 7;
-        static final int ACCOUNT_ID = 8;
-        static final int FEATURES = 9;
-        static final int DATA_USAGE = 10;
-        static final int TRANSCRIPTION_COLUMN_INDEX = 11;
-        static final int POST_DIAL_DIGITS = 12;
-        static final int VIA_NUMBER = 13;
+        static final int ID_COLUMN_INDEX = 0;
+        static final int DATE_COLUMN_INDEX = 1;
+        static final int DURATION_COLUMN_INDEX = 2;
+        static final int NUMBER_COLUMN_INDEX = 3;
+        static final int CALL_TYPE_COLUMN_INDEX = 4;
+        static final int COUNTRY_ISO_COLUMN_INDEX = 5;
+        static final int GEOCODED_LOCATION_COLUMN_INDEX = 6;
+        static final int NUMBER_PRESENTATION_COLUMN_INDEX = 7;
+        static final int ACCOUNT_COMPONENT_NAME = 8;
+        static final int ACCOUNT_ID = 9;
+        static final int FEATURES = 10;
+        static final int DATA_USAGE = 11;
+        static final int TRANSCRIPTION_COLUMN_INDEX = 12;
+        static final int POST_DIAL_DIGITS = 13;
+        static final int VIA_NUMBER = 14;
 
         static {
             ArrayList<String> projectionList = new ArrayList<>();
@@ -120,6 +127,12 @@ public class CallLogAsyncTaskUtil {
         void onDeleteCall();
         void onDeleteVoicemail();
         void onGetCallDetails(PhoneCallDetails[] details);
+
+        /**
+         * Called after {@link #onGetCallDetails} was called with the first calls of a large
+         * group, with the details of all the calls once they have been loaded.
+         */
+        void onGetAllCallDetails(PhoneCallDetails[] details);
     }
 
     public interface OnCallLogQueryFinishedListener {
@@ -131,12 +144,26 @@ public class CallLogAsyncTaskUtil {
     // fall within a certain threshold.
     private static final int MATCH_BLOCKED_CALL_THRESHOLD_MS = 3000;
 
+    /**
+     * Number of calls whose details are delivered before the others have been read, enough to
+     * fill the call details screen.
+     */
+    private static final int CALL_DETAILS_FIRST_BATCH_SIZE = 5;
+
     private static AsyncTaskExecutor sAsyncTaskExecutor;
 
     private static void initTaskExecutor() {
         sAsyncTaskExecutor = AsyncTaskExecutors.createThreadPoolExecutor();
     }
 
+    /**
+     * Loads the details of the given calls, which all correspond to the same number.
+     * <p>
+     * The calls are read with a single query and the number is looked up once. When there are
+     * more than {@link #CALL_DETAILS_FIRST_BATCH_SIZE} calls, the listener gets the first ones
+     * through {@link CallLogAsyncTaskListener#onGetCallDetails} as soon as they are read, and
+     * all of them through {@link CallLogAsyncTaskListener#onGetAllCallDetails} afterwards.
+     */
     public static void getCallDetails(
             final Context context,
             final Uri[] callUris,
@@ -146,17 +173,32 @@ public class CallLogAsyncTaskUtil {
         }
 
         sAsyncTaskExecutor.submit(Tasks.GET_CALL_DETAILS,
-                new AsyncTask<Void, Void, PhoneCallDetails[]>() {
+                new AsyncTask<Void, PhoneCallDetails[], PhoneCallDetails[]>() {
+                    private boolean mPublishedFirstBatch;
+
                     @Override
                     public PhoneCallDetails[] doInBackground(Void... params) {
-                        // TODO: All calls correspond to the same person, so make a single lookup.
                         final int numCalls = callUris.length;
-                        PhoneCallDetails[] details = new PhoneCallDetails[numCalls];
+                        final PhoneCallDetails[] details = new PhoneCallDetails[numCalls];
+                        final CallDetailsLoader loader = new CallDetailsLoader(context);
                         try {
-                            for (int index = 0; index < numCalls; ++index) {
-                                details[index] =
-                                        getPhoneCallDetailsForUri(context, callUris[index]);
+                            final long[] callIds = getCallIds(context, callUris);
+                            if (callIds == null) {
+                                for (int index = 0; index < numCalls; ++index) {
+                                    details[index] =
+                                            loader.getPhoneCallDetailsForUri(callUris[index]);
+                                }
+                                return details;
                             }
+                            loader.getPhoneCallDetailsForIds(callIds, details,
+                                    new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            mPublishedFirstBatch = true;
+                                            publishProgress(Arrays.copyOf(details,
+                                                    CALL_DETAILS_FIRST_BATCH_SIZE));
+                                        }
+                                    });
                             return details;
                         } catch (IllegalArgumentException e) {
                             // Something went wrong reading in our primary data.
@@ -166,8 +208,20 @@ public class CallLogAsyncTaskUtil {
                     }
 
                     @Override
-                    public void onPostExecute(PhoneCallDetails[] phoneCallDetails) {
+                    public void onProgressUpdate(PhoneCallDetails[]... firstBatch) {
                         if (callLogAsyncTaskListener != null) {
+                            callLogAsyncTaskListener.onGetCallDetails(firstBatch[0]);
+                        }
+                    }
+
+                    @Override
+                    public void onPostExecute(PhoneCallDetails[] phoneCallDetails) {
+                        if (callLogAsyncTaskListener == null) {
+                            return;
+                        }
+                        if (mPublishedFirstBatch && phoneCallDetails != null) {
+                            callLogAsyncTaskListener.onGetAllCallDetails(phoneCallDetails);
+                        } else {
                             callLogAsyncTaskListener.onGetCallDetails(phoneCallDetails);
                         }
                     }
@@ -175,17 +229,124 @@ public class CallLogAsyncTaskUtil {
     }
 
     /**
-     * Return the phone call details for a given call log URI.
+     * Returns the ids of the given call log URIs, or null if any of them is not the URI of a call
+     * in the call log.
      */
-    private static PhoneCallDetails getPhoneCallDetailsForUri(Context context, Uri callUri) {
-        Cursor cursor = context.getContentResolver().query(
-                callUri, CallDetailQuery.CALL_LOG_PROJECTION, null, null, null);
+    private static long[] getCallIds(Context context, Uri[] callUris) {
+        final String callLogPath = TelecomUtil.getCallLogUri(context).getPath();
+        final long[] callIds = new long[callUris.length];
+        for (int index = 0; index < callUris.length; ++index) {
+            final Uri callUri = callUris[index];
+            if (!TextUtils.equals(callLogPath, getParentPath(callUri))) {
+                return null;
+            }
+            try {
+                callIds[index] = ContentUris.parseId(callUri);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return callIds;
+    }
+
+    private static String getParentPath(Uri uri) {
+        final String path = uri.getPath();
+        final int lastSlash = path == null ? -1 : path.lastIndexOf('/');
+        return lastSlash < 0 ? null : path.substring(0, lastSlash);
+    }
+
+    /**
+     * Reads the details of calls, looking up each distinct number only once.
+     */
+    private static final class CallDetailsLoader {
+        private final Context mContext;
+        private final String mCurrentCountryIso;
+        private final ContactInfoHelper mContactInfoHelper;
+        private final Map<NumberWithCountryIso, ContactInfo> mContactInfos = new HashMap<>();
+        private final Map<Pair<PhoneAccountHandle, String>, Boolean> mIsVoicemailNumber =
+                new HashMap<>();
+
+        public CallDetailsLoader(Context context) {
+            mContext = context;
+            mCurrentCountryIso = GeoUtil.getCurrentCountryIso(context);
+            mContactInfoHelper = new ContactInfoHelper(context, mCurrentCountryIso);
+        }
+
+        /**
+         * Return the phone call details for a given call log URI.
+         */
+        public PhoneCallDetails getPhoneCallDetailsForUri(Uri callUri) {
+            Cursor cursor = mContext.getContentResolver().query(
+                    callUri, CallDetailQuery.CALL_LOG_PROJECTION, null, null, null);
 
-        try {
-            if (cursor == null || !cursor.moveToFirst()) {
-                throw new IllegalArgumentException("Cannot find content: " + callUri);
+            try {
+                if (cursor == null || !cursor.moveToFirst()) {
+                    throw new IllegalArgumentException("Cannot find content: " + callUri);
+                }
+                return createPhoneCallDetails(cursor);
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+
+        /**
+         * Fills {@code details} with the phone call details of the calls with the given ids, in
+         * the same order, reading all of them with a single query.
+         *
+         * @param onFirstBatchLoaded run once the first {@link #CALL_DETAILS_FIRST_BATCH_SIZE}
+         *        details have been read, if there are more calls than that
+         */
+        public void getPhoneCallDetailsForIds(long[] callIds, PhoneCallDetails[] details,
+                Runnable onFirstBatchLoaded) {
+            final Map<Long, Integer> indexes = new HashMap<>();
+            final StringBuilder selection = new StringBuilder();
+            selection.append(CallLog.Calls._ID).append(" IN (");
+            for (int index = 0; index < callIds.length; ++index) {
+                indexes.put(callIds[index], index);
+                selection.append(index == 0 ? "" : ",").append(callIds[index]);
+            }
+            selection.append(")");
+
+            // The calls of a group are listed most recent first, read them in that order.
+            Cursor cursor = mContext.getContentResolver().query(
+                    TelecomUtil.getCallLogUri(mContext), CallDetailQuery.CALL_LOG_PROJECTION,
+                    selection.toString(), null, CallLog.Calls.DEFAULT_SORT_ORDER);
+            if (cursor == null) {
+                throw new IllegalArgumentException("Cannot find content: " + selection);
             }
 
+            try {
+                final boolean streamFirstBatch =
+                        callIds.length > CALL_DETAILS_FIRST_BATCH_SIZE;
+                int firstBatchRemaining = CALL_DETAILS_FIRST_BATCH_SIZE;
+                while (cursor.moveToNext()) {
+                    final Integer index =
+                            indexes.remove(cursor.getLong(CallDetailQuery.ID_COLUMN_INDEX));
+                    if (index == null) {
+                        continue;
+                    }
+                    details[index] = createPhoneCallDetails(cursor);
+                    if (index < CALL_DETAILS_FIRST_BATCH_SIZE && --firstBatchRemaining == 0
+                            && streamFirstBatch) {
+                        onFirstBatchLoaded.run();
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+
+            if (!indexes.isEmpty()) {
+                throw new IllegalArgumentException(
+                        "Cannot find content for calls: " + indexes.keySet());
+            }
+        }
+
+        /**
+         * Returns the phone call details of the call at the current position of the cursor.
+         */
+        private PhoneCallDetails createPhoneCallDetails(Cursor cursor) {
             // Read call log.
             final String countryIso = cursor.getString(CallDetailQuery.COUNTRY_ISO_COLUMN_INDEX);
             final String number = cursor.getString(CallDetailQuery.NUMBER_COLUMN_INDEX);
@@ -201,20 +362,17 @@ public class CallLogAsyncTaskUtil {
                     cursor.getString(CallDetailQuery.ACCOUNT_ID));
 
             // If this is not a regular number, there is no point in looking it up in the contacts.
-            ContactInfoHelper contactInfoHelper =
-                    new ContactInfoHelper(context, GeoUtil.getCurrentCountryIso(context));
-            boolean isVoicemail = PhoneNumberUtil.isVoicemailNumber(context, accountHandle, number);
+            boolean isVoicemail = isVoicemailNumber(accountHandle, number);
             boolean shouldLookupNumber =
                     PhoneNumberUtil.canPlaceCallsTo(number, numberPresentation) && !isVoicemail;
             ContactInfo info = ContactInfo.EMPTY;
 
             if (shouldLookupNumber) {
-                ContactInfo lookupInfo = contactInfoHelper.lookupNumber(number, countryIso);
-                info = lookupInfo != null ? lookupInfo : ContactInfo.EMPTY;
+                info = lookupNumber(number, countryIso);
             }
 
             PhoneCallDetails details = new PhoneCallDetails(
-                    context, number, numberPresentation, info.formattedNumber,
+                    mContext, number, numberPresentation, info.formattedNumber,
                     postDialDigits, isVoicemail);
 
             details.viaNumber = viaNumber;
@@ -238,17 +396,34 @@ public class CallLogAsyncTaskUtil {
             details.transcription = cursor.getString(CallDetailQuery.TRANSCRIPTION_COLUMN_INDEX);
 
             details.countryIso = !TextUtils.isEmpty(countryIso) ? countryIso
-                    : GeoUtil.getCurrentCountryIso(context);
+                    : mCurrentCountryIso;
 
             if (!cursor.isNull(CallDetailQuery.DATA_USAGE)) {
                 details.dataUsage = cursor.getLong(CallDetailQuery.DATA_USAGE);
             }
 
             return details;
-        } finally {
-            if (cursor != null) {
-                cursor.close();
+        }
+
+        private boolean isVoicemailNumber(PhoneAccountHandle accountHandle, String number) {
+            final Pair<PhoneAccountHandle, String> key = new Pair<>(accountHandle, number);
+            Boolean isVoicemail = mIsVoicemailNumber.get(key);
+            if (isVoicemail == null) {
+                isVoicemail = PhoneNumberUtil.isVoicemailNumber(mContext, accountHandle, number);
+                mIsVoicemailNumber.put(key, isVoicemail);
+            }
+            return isVoicemail;
+        }
+
+        private ContactInfo lookupNumber(String number, String countryIso) {
+            final NumberWithCountryIso key = new NumberWithCountryIso(number, countryIso);
+            ContactInfo info = mContactInfos.get(key);
+            if (info == null) {
+                final ContactInfo lookupInfo = mContactInfoHelper.lookupNumber(number, countryIso);
+                info = lookupInfo != null ? lookupInfo : ContactInfo.EMPTY;
+                mContactInfos.put(key, info);
             }
+            return info;
         }
     }
 
@@ -257,12 +432,12 @@ public class CallLogAsyncTaskUtil {
      * Delete specified calls from the call log.
      *
      * @param context The context.
-     * @param callIds String of the callIds to delete from the call log, delimited by commas (",").
+     * @param callIds The ids of the calls to delete from the call log.
      * @param callLogAsyncTaskListener The listener to invoke after the entries have been deleted.
      */
     public static void deleteCalls(
             final Context context,
-            final String callIds,
+            final long[] callIds,
             final CallLogAsyncTaskListener callLogAsyncTaskListener) {
         if (sAsyncTaskExecutor == null) {
             initTaskExecutor();
@@ -271,9 +446,7 @@ public class CallLogAsyncTaskUtil {
         sAsyncTaskExecutor.submit(Tasks.DELETE_CALL, new AsyncTask<Void, Void, Void>() {
             @Override
             public Void doInBackground(Void... params) {
-                context.getContentResolver().delete(
-                        TelecomUtil.getCallLogUri(context),
-                        CallLog.Calls._ID + " IN (" + callIds + ")", null);
+                new CallLogMutationBatch(context).deleteCalls(callIds).apply();
                 return null;
             }
 
@@ -400,22 +573,7 @@ public class CallLogAsyncTaskUtil {
         sAsyncTaskExecutor.submit(Tasks.MARK_CALL_READ, new AsyncTask<Void, Void, Void>() {
             @Override
             public Void doInBackground(Void... params) {
-
-                StringBuilder where = new StringBuilder();
-                where.append(CallLog.Calls.TYPE).append(" = ").append(CallLog.Calls.MISSED_TYPE);
-                where.append(" AND ");
-
-                Long[] callIdLongs = new Long[callIds.length];
-                for (int i = 0; i < callIds.length; i++) {
-                    callIdLongs[i] = callIds[i];
-                }
-                where.append(CallLog.Calls._ID).append(
-                        " IN (" + TextUtils.join(",", callIdLongs) + ")");
-
-                ContentValues values = new ContentValues(1);
-                values.put(CallLog.Calls.IS_READ, "1");
-                context.getContentResolver().update(
-                        CallLog.Calls.CONTENT_URI, values, where.toString(), null);
+                new CallLogMutationBatch(context).markMissedCallsAsRead(callIds).apply();
                 return null;
             }
         });
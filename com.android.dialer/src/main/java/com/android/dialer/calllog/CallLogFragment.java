@@ -34,6 +34,7 @@ import android.support.annotation.Nullable;
 import android.support.v13.app.FragmentCompat;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -139,6 +140,9 @@ public class CallLogFragment extends Fragment implements CallLogQueryHandler.Lis
     // the date filter are included.  If zero, no date-based filtering occurs.
     private long mDateLimit = NO_DATE_LIMIT;
 
+    // Search query - when not empty, only the calls matching it are included.
+    private String mSearchQuery;
+
     /*
      * True if this instance of the CallLogFragment shown in the CallLogActivity.
      */
@@ -387,12 +391,27 @@ public class CallLogFragment extends Fragment implements CallLogQueryHandler.Lis
 
     @Override
     public void fetchCalls() {
-        mCallLogQueryHandler.fetchCalls(mCallTypeFilter, mDateLimit);
+        mCallLogQueryHandler.fetchCalls(mCallTypeFilter, mDateLimit, mSearchQuery);
         if (!mIsCallLogActivity) {
             ((ListsFragment) getParentFragment()).updateTabUnreadCounts();
         }
     }
 
+    /**
+     * Only shows the calls whose number, name or location matches the given query, or all the
+     * calls if it is null or empty.
+     */
+    public void setSearchQuery(String searchQuery) {
+        if (TextUtils.equals(mSearchQuery, searchQuery)) {
+            return;
+        }
+        mSearchQuery = searchQuery;
+        if (mCallLogQueryHandler != null) {
+            updateEmptyMessage(mCallTypeFilter);
+            fetchCalls();
+        }
+    }
+
     private void updateEmptyMessage(int filterType) {
         final Context context = getActivity();
         if (context == null) {
@@ -420,7 +439,8 @@ public class CallLogFragment extends Fragment implements CallLogQueryHandler.Lis
                 throw new IllegalArgumentException("Unexpected filter type in CallLogFragment: "
                         + filterType);
         }
-        mEmptyListView.setDescription(messageId);
+        mEmptyListView.setDescription(
+                TextUtils.isEmpty(mSearchQuery) ? messageId : R.string.call_log_search_empty);
         if (mIsCallLogActivity) {
             mEmptyListView.setActionLabel(EmptyContentView.NO_LABEL);
         } else if (filterType == CallLogQueryHandler.CALL_TYPE_ALL) {
@@ -54,6 +54,7 @@ import com.android.dialer.calllog.calllogcache.CallLogCache;
 import com.android.dialer.compat.FilteredNumberCompat;
 import com.android.dialer.database.FilteredNumberAsyncQueryHandler;
 import com.android.dialer.filterednumber.BlockNumberDialogFragment;
+import com.android.dialer.filterednumber.BlockedNumberCache;
 import com.android.dialer.filterednumber.FilteredNumbersUtil;
 import com.android.dialer.logging.Logger;
 import com.android.dialer.logging.ScreenEvent;
@@ -197,11 +198,6 @@ public final class CallLogListItemViewHolder extends RecyclerView.ViewHolder
      */
     public ContactInfo info;
 
-    /**
-     * Whether the current log entry is a blocked number or not. Used in updatePhoto()
-     */
-    public boolean isBlocked;
-
     /**
      * Whether this is the archive tab or not.
      */
@@ -347,27 +343,35 @@ public final class CallLogListItemViewHolder extends RecyclerView.ViewHolder
 
         if (FilteredNumberCompat.canAttemptBlockOperations(mContext)
                 && FilteredNumbersUtil.canBlockNumber(mContext, number, countryIso)) {
-            mFilteredNumberAsyncQueryHandler.isBlockedNumber(
-                    new FilteredNumberAsyncQueryHandler.OnCheckBlockedListener() {
-                        @Override
-                        public void onCheckComplete(Integer id) {
-                            blockId = id;
-                            int blockTitleId = blockId == null ? R.string.action_block_number
-                                    : R.string.action_unblock_number;
-                            final MenuItem blockItem = menu.add(
-                                    ContextMenu.NONE,
-                                    R.id.context_menu_block_number,
-                                    ContextMenu.NONE,
-                                    blockTitleId);
-                            blockItem.setOnMenuItemClickListener(
-                                    CallLogListItemViewHolder.this);
-                        }
-                    }, number, countryIso);
+            final BlockedNumberCache blockedNumberCache = BlockedNumberCache.getInstance(mContext);
+            if (blockedNumberCache.isLoaded()) {
+                addBlockNumberMenuItem(menu, blockedNumberCache.getBlockId(number, countryIso));
+            } else {
+                mFilteredNumberAsyncQueryHandler.isBlockedNumber(
+                        new FilteredNumberAsyncQueryHandler.OnCheckBlockedListener() {
+                            @Override
+                            public void onCheckComplete(Integer id) {
+                                addBlockNumberMenuItem(menu, id);
+                            }
+                        }, number, countryIso);
+            }
         }
 
         Logger.logScreenView(ScreenEvent.CALL_LOG_CONTEXT_MENU, (Activity) mContext);
     }
 
+    private void addBlockNumberMenuItem(ContextMenu menu, Integer id) {
+        blockId = id;
+        int blockTitleId = blockId == null ? R.string.action_block_number
+                : R.string.action_unblock_number;
+        final MenuItem blockItem = menu.add(
+                ContextMenu.NONE,
+                R.id.context_menu_block_number,
+                ContextMenu.NONE,
+                blockTitleId);
+        blockItem.setOnMenuItemClickListener(this);
+    }
+
     @Override
     public boolean onMenuItemClick(MenuItem item) {
         int resId = item.getItemId();
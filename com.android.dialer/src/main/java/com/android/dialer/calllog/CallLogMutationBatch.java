@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.calllog;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.sqlite.SQLiteFullException;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.provider.CallLog;
+import android.provider.CallLog.Calls;
+import android.util.Log;
+
+import com.android.dialer.util.TelecomUtil;
+
+import java.util.ArrayList;
+
+/**
+ * Collects the changes to the call log made by a single user action, and applies them with one
+ * {@link android.content.ContentResolver#applyBatch} call rather than one provider call each.
+ * <p>
+ * Changes to a set of calls are expressed as a single statement over their ids, only split to
+ * bound the length of the statement, so that clearing a large selection runs a handful of
+ * statements instead of one per call.
+ * <p>
+ * {@link #apply()} performs I/O and must not be called on the UI thread.
+ */
+public class CallLogMutationBatch {
+    private static final String TAG = "CallLogMutationBatch";
+
+    /** Maximum number of call ids in the selection of a single operation. */
+    private static final int MAX_IDS_PER_OPERATION = 500;
+
+    private final Context mContext;
+    private final Uri mCallLogUri;
+    private final ArrayList<ContentProviderOperation> mOperations = new ArrayList<>();
+
+    public CallLogMutationBatch(Context context) {
+        mContext = context;
+        mCallLogUri = TelecomUtil.getCallLogUri(context);
+    }
+
+    /** Deletes the calls with the given ids. */
+    public CallLogMutationBatch deleteCalls(long[] callIds) {
+        for (int start = 0; start < callIds.length; start += MAX_IDS_PER_OPERATION) {
+            mOperations.add(ContentProviderOperation.newDelete(mCallLogUri)
+                    .withSelection(getIdSelection(callIds, start), null)
+                    .build());
+        }
+        return this;
+    }
+
+    /** Marks the missed calls among the calls with the given ids as read. */
+    public CallLogMutationBatch markMissedCallsAsRead(long[] callIds) {
+        final ContentValues values = new ContentValues(1);
+        values.put(Calls.IS_READ, "1");
+        for (int start = 0; start < callIds.length; start += MAX_IDS_PER_OPERATION) {
+            mOperations.add(ContentProviderOperation.newUpdate(mCallLogUri)
+                    .withValues(values)
+                    .withSelection(Calls.TYPE + " = " + Calls.MISSED_TYPE + " AND "
+                            + getIdSelection(callIds, start), null)
+                    .build());
+        }
+        return this;
+    }
+
+    /** Marks all the new missed calls as old and read. */
+    public CallLogMutationBatch markNewMissedCallsAsOld() {
+        final ContentValues values = new ContentValues(2);
+        values.put(Calls.NEW, 0);
+        values.put(Calls.IS_READ, 1);
+        mOperations.add(ContentProviderOperation.newUpdate(mCallLogUri)
+                .withValues(values)
+                .withSelection(Calls.NEW + " = 1 AND " + Calls.TYPE + " = ?",
+                        new String[] {Integer.toString(Calls.MISSED_TYPE)})
+                .build());
+        return this;
+    }
+
+    /**
+     * Applies the collected changes in a single batch.
+     *
+     * @return whether the changes were applied
+     */
+    public boolean apply() {
+        if (mOperations.isEmpty()) {
+            return true;
+        }
+        try {
+            mContext.getContentResolver().applyBatch(CallLog.AUTHORITY, mOperations);
+            return true;
+        } catch (RemoteException | OperationApplicationException | SQLiteFullException
+                | IllegalArgumentException e) {
+            Log.w(TAG, "Unable to apply call log changes", e);
+            return false;
+        }
+    }
+
+    /** Returns the selection of the calls with the ids starting at the given index. */
+    private static String getIdSelection(long[] callIds, int start) {
+        final int end = Math.min(start + MAX_IDS_PER_OPERATION, callIds.length);
+        final StringBuilder selection = new StringBuilder();
+        selection.append(Calls._ID).append(" IN (");
+        for (int i = start; i < end; i++) {
+            if (i > start) {
+                selection.append(",");
+            }
+            selection.append(callIds[i]);
+        }
+        selection.append(")");
+        return selection.toString();
+    }
+}
@@ -35,10 +35,20 @@ import android.util.Log;
 import com.android.contacts.common.GeoUtil;
 import com.android.contacts.common.util.PermissionsUtil;
 import com.android.dialer.R;
+import com.android.dialer.contactinfo.NumberWithCountryIso;
+import com.android.dialer.contactinfo.PersistentContactInfoCache;
+import com.android.dialer.util.PhoneNumberFormatCache;
 import com.android.dialer.util.TelecomUtil;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Helper class operating on call log notifications.
@@ -56,6 +66,7 @@ public class CallLogNotificationsHelper {
                     createNewCallsQuery(context, contentResolver),
                     createNameLookupQuery(context, contentResolver),
                     new ContactInfoHelper(context, countryIso),
+                    PersistentContactInfoCache.getInstance(context),
                     countryIso);
         }
         return sInstance;
@@ -65,15 +76,17 @@ public class CallLogNotificationsHelper {
     private final NewCallsQuery mNewCallsQuery;
     private final NameLookupQuery mNameLookupQuery;
     private final ContactInfoHelper mContactInfoHelper;
+    private final PersistentContactInfoCache mPersistentContactInfoCache;
     private final String mCurrentCountryIso;
 
     CallLogNotificationsHelper(Context context, NewCallsQuery newCallsQuery,
             NameLookupQuery nameLookupQuery, ContactInfoHelper contactInfoHelper,
-            String countryIso) {
+            PersistentContactInfoCache persistentContactInfoCache, String countryIso) {
         mContext = context;
         mNewCallsQuery = newCallsQuery;
         mNameLookupQuery = nameLookupQuery;
         mContactInfoHelper = contactInfoHelper;
+        mPersistentContactInfoCache = persistentContactInfoCache;
         mCurrentCountryIso = countryIso;
     }
 
@@ -119,42 +132,123 @@ public class CallLogNotificationsHelper {
         if (countryIso == null) {
             countryIso = mCurrentCountryIso;
         }
-
         number = Strings.nullToEmpty(number);
-        ContactInfo contactInfo = new ContactInfo();
-        contactInfo.number = number;
-        contactInfo.formattedNumber = PhoneNumberUtils.formatNumber(number, countryIso);
-        // contactInfo.normalizedNumber is not PhoneNumberUtils.normalizeNumber. Read ContactInfo.
-        contactInfo.normalizedNumber = PhoneNumberUtils.formatNumberToE164(number, countryIso);
 
         // 1. Special number representation.
-        contactInfo.name = PhoneNumberDisplayUtil.getDisplayName(
-                mContext,
-                number,
-                numberPresentation,
-                false).toString();
+        ContactInfo contactInfo = createContactInfo(number, numberPresentation, countryIso);
         if (!TextUtils.isEmpty(contactInfo.name)) {
             return contactInfo;
         }
 
         // 2. Look it up in the cache.
-        ContactInfo cachedContactInfo = mContactInfoHelper.lookupNumber(number, countryIso);
+        final NumberWithCountryIso numberCountryIso = new NumberWithCountryIso(number, countryIso);
+        ContactInfo cachedContactInfo = lookupNumbers(
+                Collections.singletonList(numberCountryIso)).get(numberCountryIso);
 
         if (cachedContactInfo != null && !TextUtils.isEmpty(cachedContactInfo.name)) {
             return cachedContactInfo;
         }
 
+        setFallbackName(contactInfo);
+        return contactInfo;
+    }
+
+    /**
+     * Same as {@link #getContactInfo(String, int, String)} for each of the given calls, but looks
+     * up each distinct number only once and all of them together with
+     * {@link ContactInfoHelper#lookupNumbers}, rather than one query per call.
+     *
+     * @return the {@link ContactInfo} of each call, keyed by the call itself
+     */
+    public Map<NewCall, ContactInfo> getContactInfos(List<NewCall> newCalls) {
+        final Map<NewCall, ContactInfo> results = new IdentityHashMap<>();
+        final Map<NewCall, NumberWithCountryIso> callsToLookUp = new IdentityHashMap<>();
+        for (NewCall newCall : newCalls) {
+            final String number = Strings.nullToEmpty(newCall.number);
+            final String countryIso =
+                    newCall.countryIso == null ? mCurrentCountryIso : newCall.countryIso;
+            final ContactInfo contactInfo =
+                    createContactInfo(number, newCall.numberPresentation, countryIso);
+            results.put(newCall, contactInfo);
+            if (TextUtils.isEmpty(contactInfo.name)) {
+                callsToLookUp.put(newCall, new NumberWithCountryIso(number, countryIso));
+            }
+        }
+
+        final Map<NumberWithCountryIso, ContactInfo> cachedContactInfos =
+                lookupNumbers(callsToLookUp.values());
+        for (Map.Entry<NewCall, NumberWithCountryIso> entry : callsToLookUp.entrySet()) {
+            final ContactInfo cachedContactInfo = cachedContactInfos.get(entry.getValue());
+            if (cachedContactInfo != null && !TextUtils.isEmpty(cachedContactInfo.name)) {
+                results.put(entry.getKey(), cachedContactInfo);
+            } else {
+                setFallbackName(results.get(entry.getKey()));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Creates the {@link ContactInfo} of a number which has not been looked up yet, named after
+     * its presentation if it is a special number.
+     */
+    private ContactInfo createContactInfo(String number, int numberPresentation,
+            String countryIso) {
+        ContactInfo contactInfo = new ContactInfo();
+        contactInfo.number = number;
+        contactInfo.formattedNumber = PhoneNumberFormatCache.formatNumber(number, countryIso);
+        // contactInfo.normalizedNumber is not PhoneNumberUtils.normalizeNumber. Read ContactInfo.
+        contactInfo.normalizedNumber =
+                PhoneNumberFormatCache.formatNumberToE164(number, countryIso);
+        contactInfo.name = PhoneNumberDisplayUtil.getDisplayName(
+                mContext,
+                number,
+                numberPresentation,
+                false).toString();
+        return contactInfo;
+    }
+
+    /**
+     * Looks up the distinct given numbers, starting with the contact info persisted by the call
+     * log, and persists the results of the lookups. Only persisted info matched to a contact is
+     * used as is: numbers without one are looked up again, in case a contact was saved for them.
+     */
+    private Map<NumberWithCountryIso, ContactInfo> lookupNumbers(
+            Collection<NumberWithCountryIso> numbers) {
+        final Map<NumberWithCountryIso, ContactInfo> results = new HashMap<>();
+        final Set<NumberWithCountryIso> numbersToLookUp = new HashSet<>();
+        for (NumberWithCountryIso numberCountryIso : numbers) {
+            final ContactInfo persistedInfo = mPersistentContactInfoCache.get(numberCountryIso);
+            if (persistedInfo != null && !TextUtils.isEmpty(persistedInfo.lookupKey)) {
+                results.put(numberCountryIso, persistedInfo);
+            } else {
+                numbersToLookUp.add(numberCountryIso);
+            }
+        }
+        if (numbersToLookUp.isEmpty()) {
+            return results;
+        }
+
+        final int generation = mPersistentContactInfoCache.getGeneration();
+        final Map<NumberWithCountryIso, ContactInfo> lookedUpInfos =
+                mContactInfoHelper.lookupNumbers(numbersToLookUp);
+        mPersistentContactInfoCache.put(lookedUpInfos, generation);
+        results.putAll(lookedUpInfos);
+        return results;
+    }
+
+    /** Names a contact info which was not found after its number. */
+    private void setFallbackName(ContactInfo contactInfo) {
         if (!TextUtils.isEmpty(contactInfo.formattedNumber)) {
             // 3. If we cannot lookup the contact, use the formatted number instead.
             contactInfo.name = contactInfo.formattedNumber;
-        } else if (!TextUtils.isEmpty(number)) {
+        } else if (!TextUtils.isEmpty(contactInfo.number)) {
             // 4. If number can't be formatted, use number.
-            contactInfo.name = number;
+            contactInfo.name = contactInfo.number;
         } else {
             // 5. Otherwise, it's unknown number.
             contactInfo.name = mContext.getResources().getString(R.string.unknown);
         }
-        return contactInfo;
     }
 
     /** Removes the missed call notifications. */
@@ -25,6 +25,8 @@ import android.util.Log;
 import com.android.contacts.common.util.PermissionsUtil;
 import com.android.dialer.util.TelecomUtil;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Provides operations for managing call-related notifications.
  * <p>
@@ -102,8 +104,24 @@ public class CallLogNotificationsService extends IntentService {
 
     public static final int UNKNOWN_MISSED_CALL_COUNT = -1;
 
+    /**
+     * Extra included with the update actions started by {@link #updateVoicemailNotifications} and
+     * {@link #updateMissedCallNotifications}, identifying the request so that queued requests can
+     * be coalesced: only the latest request of each kind rebuilds the notification.
+     * <p>
+     * It must be an {@link Integer}.
+     */
+    private static final String EXTRA_UPDATE_SEQUENCE = "UPDATE_SEQUENCE";
+
+    /** The sequence number of the latest request of each kind, see EXTRA_UPDATE_SEQUENCE. */
+    private static final AtomicInteger sVoicemailUpdateSequence = new AtomicInteger(0);
+    private static final AtomicInteger sMissedCallUpdateSequence = new AtomicInteger(0);
+
     private VoicemailQueryHandler mVoicemailQueryHandler;
 
+    /** The new voicemail of a skipped update, to be notified about by the next update. */
+    private Uri mSkippedVoicemailUri;
+
     public CallLogNotificationsService() {
         super("CallLogNotificationsService");
     }
@@ -129,9 +147,21 @@ public class CallLogNotificationsService extends IntentService {
                 break;
             case ACTION_UPDATE_VOICEMAIL_NOTIFICATIONS:
                 Uri voicemailUri = (Uri) intent.getParcelableExtra(EXTRA_NEW_VOICEMAIL_URI);
+                if (voicemailUri == null) {
+                    voicemailUri = mSkippedVoicemailUri;
+                }
+                if (isSupersededUpdate(intent, sVoicemailUpdateSequence)) {
+                    // The latest update will also notify about this voicemail.
+                    mSkippedVoicemailUri = voicemailUri;
+                    break;
+                }
+                mSkippedVoicemailUri = null;
                 DefaultVoicemailNotifier.getInstance(this).updateNotification(voicemailUri);
                 break;
             case ACTION_UPDATE_MISSED_CALL_NOTIFICATIONS:
+                if (isSupersededUpdate(intent, sMissedCallUpdateSequence)) {
+                    break;
+                }
                 int count = intent.getIntExtra(EXTRA_MISSED_CALL_COUNT,
                         UNKNOWN_MISSED_CALL_COUNT);
                 String number = intent.getStringExtra(EXTRA_MISSED_CALL_NUMBER);
@@ -154,6 +184,16 @@ public class CallLogNotificationsService extends IntentService {
         }
     }
 
+    /**
+     * Returns whether a more recent update of the same kind was requested after the given one,
+     * and is queued behind it. Both notifications are rebuilt from the call log, so the given
+     * update can then be skipped.
+     */
+    private static boolean isSupersededUpdate(Intent intent, AtomicInteger latestSequence) {
+        final int sequence = intent.getIntExtra(EXTRA_UPDATE_SEQUENCE, -1);
+        return sequence != -1 && sequence != latestSequence.get();
+    }
+
     /**
      * Updates notifications for any new voicemails.
      *
@@ -171,6 +211,8 @@ public class CallLogNotificationsService extends IntentService {
                 serviceIntent.putExtra(
                         CallLogNotificationsService.EXTRA_NEW_VOICEMAIL_URI, voicemailUri);
             }
+            serviceIntent.putExtra(EXTRA_UPDATE_SEQUENCE,
+                    sVoicemailUpdateSequence.incrementAndGet());
             context.startService(serviceIntent);
         }
     }
@@ -189,6 +231,7 @@ public class CallLogNotificationsService extends IntentService {
                 CallLogNotificationsService.ACTION_UPDATE_MISSED_CALL_NOTIFICATIONS);
         serviceIntent.putExtra(EXTRA_MISSED_CALL_COUNT, count);
         serviceIntent.putExtra(EXTRA_MISSED_CALL_NUMBER, number);
+        serviceIntent.putExtra(EXTRA_UPDATE_SEQUENCE, sMissedCallUpdateSequence.incrementAndGet());
         context.startService(serviceIntent);
     }
 }
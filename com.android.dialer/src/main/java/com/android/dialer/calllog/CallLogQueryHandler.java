@@ -33,11 +33,13 @@ import android.os.Message;
 import android.provider.CallLog.Calls;
 import android.provider.VoicemailContract.Status;
 import android.provider.VoicemailContract.Voicemails;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.contacts.common.compat.SdkVersionOverride;
 import com.android.contacts.common.database.NoNullCursorAsyncQueryHandler;
 import com.android.contacts.common.util.PermissionsUtil;
+import com.android.dialer.database.DialerDatabaseHelper;
 import com.android.dialer.database.VoicemailArchiveContract;
 import com.android.dialer.util.AppCompatConstants;
 import com.android.dialer.util.TelecomUtil;
@@ -46,6 +48,7 @@ import com.android.dialer.voicemail.VoicemailStatusHelperImpl;
 import com.google.common.collect.Lists;
 
 import java.lang.ref.WeakReference;
+import java.util.Collections;
 import java.util.List;
 
 /** Handles asynchronous queries to the call log. */
@@ -80,6 +83,12 @@ public class CallLogQueryHandler extends NoNullCursorAsyncQueryHandler {
 
     private final Context mContext;
 
+    /**
+     * Incremented whenever a fetch is cancelled, so that the calls matching a search which was
+     * superseded are not fetched. Only accessed on the UI thread.
+     */
+    private int mSearchGeneration;
+
     /**
      * Simple handler that wraps background calls to catch
      * {@link SQLiteException}, such as when the disk is full.
@@ -147,12 +156,55 @@ public class CallLogQueryHandler extends NoNullCursorAsyncQueryHandler {
      * It will asynchronously update the content of the list view when the fetch completes.
      */
     public void fetchCalls(int callType, long newerThan) {
+        fetchCalls(callType, newerThan, null);
+    }
+
+    /**
+     * Same as {@link #fetchCalls(int, long)}, only fetching the calls whose number contains the
+     * digits of the given query, or whose name or location has a word starting with it. The
+     * matching calls are looked up in the call log search index of {@link DialerDatabaseHelper}.
+     *
+     * @param searchQuery the query, or null or empty to fetch all the calls
+     */
+    public void fetchCalls(final int callType, final long newerThan, final String searchQuery) {
         cancelFetch();
-        if (PermissionsUtil.hasPhonePermissions(mContext)) {
-            fetchCalls(QUERY_CALLLOG_TOKEN, callType, false /* newOnly */, newerThan);
-        } else {
+        if (!PermissionsUtil.hasPhonePermissions(mContext)) {
             updateAdapterData(null);
+            return;
+        }
+        if (TextUtils.isEmpty(searchQuery)) {
+            fetchCalls(QUERY_CALLLOG_TOKEN, callType, false /* newOnly */, newerThan, null);
+            return;
         }
+
+        final int searchGeneration = mSearchGeneration;
+        final DialerDatabaseHelper dbHelper = DialerDatabaseHelper.getInstance(mContext);
+        dbHelper.startCallLogSearchIndexUpdate();
+        final int limit = getLogLimit();
+        // Runs after the pending batch of the index update, so that the latest calls are found.
+        DialerDatabaseHelper.getCallLogSearchExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                List<Long> callIds;
+                try {
+                    callIds = dbHelper.getCallLogSearchMatches(searchQuery, callType, newerThan,
+                            limit);
+                } catch (SQLiteException e) {
+                    Log.w(TAG, "Unable to search the call log", e);
+                    callIds = Collections.emptyList();
+                }
+                final List<Long> matchingCallIds = callIds;
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (searchGeneration == mSearchGeneration) {
+                            fetchCalls(QUERY_CALLLOG_TOKEN, callType, false /* newOnly */,
+                                    newerThan, matchingCallIds);
+                        }
+                    }
+                });
+            }
+        });
     }
 
     public void fetchCalls(int callType) {
@@ -175,8 +227,13 @@ public class CallLogQueryHandler extends NoNullCursorAsyncQueryHandler {
         }
     }
 
-    /** Fetches the list of calls in the call log. */
-    private void fetchCalls(int token, int callType, boolean newOnly, long newerThan) {
+    /**
+     * Fetches the list of calls in the call log.
+     *
+     * @param callIds if not null, only the calls with these ids are fetched
+     */
+    private void fetchCalls(int token, int callType, boolean newOnly, long newerThan,
+            List<Long> callIds) {
         StringBuilder where = new StringBuilder();
         List<String> selectionArgs = Lists.newArrayList();
 
@@ -207,20 +264,36 @@ public class CallLogQueryHandler extends NoNullCursorAsyncQueryHandler {
             selectionArgs.add(Long.toString(newerThan));
         }
 
-        final int limit = (mLogLimit == -1) ? NUM_LOGS_TO_DISPLAY : mLogLimit;
+        if (callIds != null) {
+            // The ids are numbers, inlined rather than bound as there can be more of them than
+            // SQLite accepts arguments.
+            where.append(" AND (").append(Calls._ID).append(" IN (")
+                    .append(callIds.isEmpty() ? "-1" : TextUtils.join(",", callIds))
+                    .append("))");
+        }
+
+        final int limit = getLogLimit();
         final String selection = where.length() > 0 ? where.toString() : null;
         Uri uri = TelecomUtil.getCallLogUri(mContext).buildUpon()
                 .appendQueryParameter(Calls.LIMIT_PARAM_KEY, Integer.toString(limit))
                 .build();
         startQuery(token, null, uri, CallLogQuery._PROJECTION, selection, selectionArgs.toArray(
                 new String[selectionArgs.size()]), Calls.DEFAULT_SORT_ORDER);
+
+        // The call log is fetched again whenever it changes, keep the search index in step.
+        DialerDatabaseHelper.getInstance(mContext).startCallLogSearchIndexUpdate();
     }
 
     /** Cancel any pending fetch request. */
     private void cancelFetch() {
+        mSearchGeneration++;
         cancelOperation(QUERY_CALLLOG_TOKEN);
     }
 
+    private int getLogLimit() {
+        return (mLogLimit == -1) ? NUM_LOGS_TO_DISPLAY : mLogLimit;
+    }
+
     /** Updates all new calls to mark them as old. */
     public void markNewCallsAsOld() {
         if (!PermissionsUtil.hasPhonePermissions(mContext)) {
@@ -14,11 +14,15 @@
 
 package com.android.dialer.calllog;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteFullException;
 import android.net.Uri;
+import android.os.RemoteException;
+import android.provider.CallLog;
 import android.provider.CallLog.Calls;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
@@ -38,20 +42,34 @@ import com.android.contacts.common.util.PermissionsUtil;
 import com.android.contacts.common.util.PhoneNumberHelper;
 import com.android.contacts.common.util.UriUtils;
 import com.android.dialer.compat.DialerCompatUtils;
+import com.android.dialer.contactinfo.NumberWithCountryIso;
 import com.android.dialer.service.CachedNumberLookupService;
 import com.android.dialer.service.CachedNumberLookupService.CachedContactInfo;
+import com.android.dialer.util.PhoneNumberFormatCache;
 import com.android.dialer.util.TelecomUtil;
 import com.android.dialerbind.ObjectFactory;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * Utility class to look up the contact information for a given number.
  */
 public class ContactInfoHelper {
     private static final String TAG = ContactInfoHelper.class.getSimpleName();
 
+    /**
+     * Maximum number of normalized numbers matched by a single query in
+     * {@link #lookupNumbers(Collection)}, to stay well below the SQLite bound arguments limit.
+     */
+    private static final int MAX_NUMBERS_PER_QUERY = 100;
+
     private final Context mContext;
     private final String mCurrentCountryIso;
 
@@ -108,7 +126,7 @@ public class ContactInfoHelper {
                 updatedInfo = new ContactInfo();
                 updatedInfo.number = number;
                 updatedInfo.formattedNumber = formatPhoneNumber(number, null, countryIso);
-                updatedInfo.normalizedNumber = PhoneNumberUtils.formatNumberToE164(
+                updatedInfo.normalizedNumber = PhoneNumberFormatCache.formatNumberToE164(
                         number, countryIso);
                 updatedInfo.lookupUri = createTemporaryContactUri(updatedInfo.formattedNumber);
             } else {
@@ -118,6 +136,116 @@ public class ContactInfoHelper {
         return updatedInfo;
     }
 
+    /**
+     * Returns the contact information for each of the given numbers.
+     * <p>
+     * The numbers are first matched against the normalized numbers of the contacts with as few
+     * queries as possible. Only the numbers which could not be matched this way, such as SIP
+     * addresses, numbers which cannot be normalized or numbers of work contacts, are then looked
+     * up one at a time with {@link #lookupNumber(String, String)}.
+     * <p>
+     * Numbers whose lookup fails are not included in the returned map.
+     *
+     * @param numbers the numbers to look up, with the country associated with each of them
+     */
+    public Map<NumberWithCountryIso, ContactInfo> lookupNumbers(
+            Collection<NumberWithCountryIso> numbers) {
+        final Map<NumberWithCountryIso, ContactInfo> results = new HashMap<>();
+        if (numbers.size() > 1 && PermissionsUtil.hasContactsPermissions(mContext)) {
+            final Map<String, List<NumberWithCountryIso>> numbersByNormalizedNumber =
+                    new HashMap<>();
+            for (NumberWithCountryIso number : numbers) {
+                if (TextUtils.isEmpty(number.number)
+                        || PhoneNumberHelper.isUriNumber(number.number)) {
+                    continue;
+                }
+                final String normalizedNumber = PhoneNumberFormatCache.formatNumberToE164(
+                        number.number, TextUtils.isEmpty(number.countryIso)
+                                ? mCurrentCountryIso : number.countryIso);
+                if (TextUtils.isEmpty(normalizedNumber)) {
+                    continue;
+                }
+                List<NumberWithCountryIso> sameNumbers =
+                        numbersByNormalizedNumber.get(normalizedNumber);
+                if (sameNumbers == null) {
+                    sameNumbers = new ArrayList<>();
+                    numbersByNormalizedNumber.put(normalizedNumber, sameNumbers);
+                }
+                sameNumbers.add(number);
+            }
+            lookupContactsFromNormalizedNumbers(numbersByNormalizedNumber, results);
+        }
+
+        for (NumberWithCountryIso number : numbers) {
+            if (!results.containsKey(number)) {
+                final ContactInfo info = lookupNumber(number.number, number.countryIso);
+                if (info != null) {
+                    results.put(number, info);
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Matches the given normalized numbers against the phone numbers of the contacts, in batches
+     * of at most {@link #MAX_NUMBERS_PER_QUERY}, and adds the contact info of the numbers which
+     * matched to {@code results}.
+     */
+    private void lookupContactsFromNormalizedNumbers(
+            Map<String, List<NumberWithCountryIso>> numbersByNormalizedNumber,
+            Map<NumberWithCountryIso, ContactInfo> results) {
+        final List<String> normalizedNumbers = new ArrayList<>(numbersByNormalizedNumber.keySet());
+        for (int start = 0; start < normalizedNumbers.size(); start += MAX_NUMBERS_PER_QUERY) {
+            final List<String> selectionArgs = normalizedNumbers.subList(start,
+                    Math.min(start + MAX_NUMBERS_PER_QUERY, normalizedNumbers.size()));
+            final StringBuilder selection = new StringBuilder();
+            selection.append(Phone.NORMALIZED_NUMBER).append(" IN (");
+            for (int i = 0; i < selectionArgs.size(); i++) {
+                selection.append(i == 0 ? "?" : ",?");
+            }
+            selection.append(")");
+
+            Cursor cursor = null;
+            try {
+                cursor = mContext.getContentResolver().query(Phone.CONTENT_URI,
+                        PhoneQuery.PHONE_NORMALIZED_NUMBER_PROJECTION, selection.toString(),
+                        selectionArgs.toArray(new String[selectionArgs.size()]), null);
+            } catch (NullPointerException e) {
+                // Trap NPE from pre-N CP2
+                return;
+            }
+            if (cursor == null) {
+                return;
+            }
+
+            try {
+                while (cursor.moveToNext()) {
+                    final List<NumberWithCountryIso> matchedNumbers = numbersByNormalizedNumber
+                            .get(cursor.getString(PhoneQuery.NORMALIZED_NUMBER));
+                    if (matchedNumbers == null) {
+                        continue;
+                    }
+                    final String lookupKey = cursor.getString(PhoneQuery.LOOKUP_KEY);
+                    for (NumberWithCountryIso number : matchedNumbers) {
+                        // Several contacts may share a number, keep the first one like
+                        // PhoneLookup does.
+                        if (results.containsKey(number)) {
+                            continue;
+                        }
+                        final ContactInfo info = createPhoneLookupContactInfo(cursor, lookupKey);
+                        info.nameAlternative = cursor.getString(PhoneQuery.DATA_NAME_ALTERNATIVE);
+                        info.formattedNumber =
+                                formatPhoneNumber(number.number, null, number.countryIso);
+                        results.put(number, info);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
     /**
      * Creates a JSON-encoded lookup uri for a unknown number without an associated contact
      *
@@ -286,7 +414,7 @@ public class ContactInfoHelper {
         if (TextUtils.isEmpty(countryIso)) {
             countryIso = mCurrentCountryIso;
         }
-        return PhoneNumberUtils.formatNumber(number, normalizedNumber, countryIso);
+        return PhoneNumberFormatCache.formatNumber(number, normalizedNumber, countryIso);
     }
 
     /**
@@ -303,6 +431,88 @@ public class ContactInfoHelper {
             return;
         }
 
+        final ContentValues values = getCallLogUpdateValues(updatedInfo, callLogInfo);
+        if (values == null) {
+            return;
+        }
+
+        try {
+            if (countryIso == null) {
+                mContext.getContentResolver().update(
+                        TelecomUtil.getCallLogUri(mContext),
+                        values,
+                        Calls.NUMBER + " = ? AND " + Calls.COUNTRY_ISO + " IS NULL",
+                        new String[]{ number });
+            } else {
+                mContext.getContentResolver().update(
+                        TelecomUtil.getCallLogUri(mContext),
+                        values,
+                        Calls.NUMBER + " = ? AND " + Calls.COUNTRY_ISO + " = ?",
+                        new String[]{ number, countryIso });
+            }
+        } catch (SQLiteFullException e) {
+            Log.e(TAG, "Unable to update contact info in call log db", e);
+        }
+    }
+
+    /**
+     * Returns an operation storing the differences between the updated contact info and the
+     * current call log contact info, to be applied later with
+     * {@link #applyCallLogUpdates(ArrayList)}.
+     *
+     * @param number The number of the contact.
+     * @param countryIso The country associated with this number.
+     * @param updatedInfo The updated contact info.
+     * @param callLogInfo The call log entry's current contact info.
+     * @return the update operation, or null if the call log is up to date or cannot be written.
+     */
+    @Nullable
+    public ContentProviderOperation getCallLogUpdateOperation(String number, String countryIso,
+            ContactInfo updatedInfo, ContactInfo callLogInfo) {
+        if (!PermissionsUtil.hasPermission(mContext, android.Manifest.permission.WRITE_CALL_LOG)) {
+            return null;
+        }
+
+        final ContentValues values = getCallLogUpdateValues(updatedInfo, callLogInfo);
+        if (values == null) {
+            return null;
+        }
+
+        final ContentProviderOperation.Builder builder =
+                ContentProviderOperation.newUpdate(TelecomUtil.getCallLogUri(mContext))
+                        .withValues(values);
+        if (countryIso == null) {
+            builder.withSelection(Calls.NUMBER + " = ? AND " + Calls.COUNTRY_ISO + " IS NULL",
+                    new String[]{ number });
+        } else {
+            builder.withSelection(Calls.NUMBER + " = ? AND " + Calls.COUNTRY_ISO + " = ?",
+                    new String[]{ number, countryIso });
+        }
+        return builder.build();
+    }
+
+    /**
+     * Applies the given call log updates, obtained from
+     * {@link #getCallLogUpdateOperation(String, String, ContactInfo, ContactInfo)}, in a single
+     * batch.
+     */
+    public void applyCallLogUpdates(ArrayList<ContentProviderOperation> operations) {
+        if (operations.isEmpty()) {
+            return;
+        }
+        try {
+            mContext.getContentResolver().applyBatch(CallLog.AUTHORITY, operations);
+        } catch (RemoteException | OperationApplicationException | SQLiteFullException e) {
+            Log.e(TAG, "Unable to update contact info in call log db", e);
+        }
+    }
+
+    /**
+     * Returns the call log columns which differ between the updated contact info and the current
+     * call log contact info, or null if there are none.
+     */
+    private ContentValues getCallLogUpdateValues(ContactInfo updatedInfo,
+            ContactInfo callLogInfo) {
         final ContentValues values = new ContentValues();
         boolean needsUpdate = false;
 
@@ -374,27 +584,7 @@ public class ContactInfoHelper {
             needsUpdate = true;
         }
 
-        if (!needsUpdate) {
-            return;
-        }
-
-        try {
-            if (countryIso == null) {
-                mContext.getContentResolver().update(
-                        TelecomUtil.getCallLogUri(mContext),
-                        values,
-                        Calls.NUMBER + " = ? AND " + Calls.COUNTRY_ISO + " IS NULL",
-                        new String[]{ number });
-            } else {
-                mContext.getContentResolver().update(
-                        TelecomUtil.getCallLogUri(mContext),
-                        values,
-                        Calls.NUMBER + " = ? AND " + Calls.COUNTRY_ISO + " = ?",
-                        new String[]{ number, countryIso });
-            }
-        } catch (SQLiteFullException e) {
-            Log.e(TAG, "Unable to update contact info in call log db", e);
-        }
+        return needsUpdate ? values : null;
     }
 
     public static Uri getContactInfoLookupUri(String number) {
@@ -116,26 +116,29 @@ public class DefaultVoicemailNotifier {
         // Determine the call corresponding to the new voicemail we have to notify about.
         NewCall callToNotify = null;
 
-        // Iterate over the new voicemails to determine all the information above.
+        // Skip notifying for numbers which are blocked.
         Iterator<NewCall> itr = newCalls.iterator();
         while (itr.hasNext()) {
             NewCall newCall = itr.next();
-
-            // Skip notifying for numbers which are blocked.
             if (FilteredNumbersUtil.shouldBlockVoicemail(
                     mContext, newCall.number, newCall.countryIso, newCall.dateMs)) {
                 itr.remove();
 
                 // Delete the voicemail.
                 mContext.getContentResolver().delete(newCall.voicemailUri, null, null);
-                continue;
             }
+        }
 
+        // Look up the callers of all the remaining voicemails at once.
+        final Map<NewCall, ContactInfo> contactInfos =
+                CallLogNotificationsHelper.getInstance(mContext).getContactInfos(newCalls);
+
+        // Iterate over the new voicemails to determine all the information above.
+        for (NewCall newCall : newCalls) {
             // Check if we already know the name associated with this number.
             String name = names.get(newCall.number);
             if (name == null) {
-                name = CallLogNotificationsHelper.getInstance(mContext).getName(newCall.number,
-                        newCall.numberPresentation, newCall.countryIso);
+                name = contactInfos.get(newCall).name;
                 names.put(newCall.number, name);
                 // This is a new caller. Add it to the back of the list of callers.
                 if (TextUtils.isEmpty(callers)) {
@@ -18,7 +18,6 @@ package com.android.dialer.calllog;
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
@@ -185,21 +184,7 @@ public class MissedCallNotifier {
                 // Call log is only accessible when unlocked. If that's the case, clear the list of
                 // new missed calls from the call log.
                 if (UserManagerCompat.isUserUnlocked(mContext)) {
-                    ContentValues values = new ContentValues();
-                    values.put(Calls.NEW, 0);
-                    values.put(Calls.IS_READ, 1);
-                    StringBuilder where = new StringBuilder();
-                    where.append(Calls.NEW);
-                    where.append(" = 1 AND ");
-                    where.append(Calls.TYPE);
-                    where.append(" = ?");
-                    try {
-                        mContext.getContentResolver().update(Calls.CONTENT_URI, values,
-                                where.toString(), new String[]{Integer.toString(Calls.
-                                        MISSED_TYPE)});
-                    } catch (IllegalArgumentException e) {
-                        Log.w(TAG, "ContactsProvider update command failed", e);
-                    }
+                    new CallLogMutationBatch(mContext).markNewMissedCallsAsOld().apply();
                 }
                 getNotificationMgr().cancel(NOTIFICATION_TAG, NOTIFICATION_ID);
             }
@@ -37,6 +37,7 @@ import com.android.dialer.PhoneCallDetails;
 import com.android.dialer.R;
 import com.android.dialer.calllog.calllogcache.CallLogCache;
 import com.android.dialer.util.DialerUtils;
+import com.android.dialer.util.TimeLabelCache;
 
 import java.util.ArrayList;
 import java.util.Calendar;
@@ -59,6 +60,8 @@ public class PhoneCallDetailsHelper {
 
     private final CallLogCache mCallLogCache;
 
+    private final TimeLabelCache mTimeLabelCache;
+
     /** Calendar used to construct dates */
     private final Calendar mCalendar;
 
@@ -81,6 +84,7 @@ public class PhoneCallDetailsHelper {
         mContext = context;
         mResources = resources;
         mCallLogCache = callLogCache;
+        mTimeLabelCache = TimeLabelCache.getInstance(context);
         mCalendar = Calendar.getInstance();
     }
 
@@ -241,8 +245,8 @@ public class PhoneCallDetailsHelper {
             return getGranularDateTime(details);
         }
 
-        return DateUtils.getRelativeTimeSpanString(details.date, getCurrentTimeMillis(),
-                DateUtils.MINUTE_IN_MILLIS, DateUtils.FORMAT_ABBREV_RELATIVE);
+        return mTimeLabelCache.getRelativeTimeSpanString(details.date, getCurrentTimeMillis(),
+                DateUtils.FORMAT_ABBREV_RELATIVE);
     }
 
     /**
@@ -261,7 +265,8 @@ public class PhoneCallDetailsHelper {
     public CharSequence getGranularDateTime(PhoneCallDetails details) {
         return mResources.getString(R.string.voicemailCallLogDateTimeFormat,
                 getGranularDate(details.date),
-                DateUtils.formatDateTime(mContext, details.date, DateUtils.FORMAT_SHOW_TIME));
+                mTimeLabelCache.formatDateTime(details.date, getCurrentTimeMillis(),
+                        DateUtils.FORMAT_SHOW_TIME));
     }
 
     /**
@@ -271,7 +276,8 @@ public class PhoneCallDetailsHelper {
         if (DateUtils.isToday(date)) {
             return mResources.getString(R.string.voicemailCallLogToday);
         }
-        return DateUtils.formatDateTime(mContext, date, DateUtils.FORMAT_SHOW_DATE
+        return mTimeLabelCache.formatDateTime(date, getCurrentTimeMillis(),
+                DateUtils.FORMAT_SHOW_DATE
                 | DateUtils.FORMAT_ABBREV_MONTH
                 | (shouldShowYear(date) ? DateUtils.FORMAT_SHOW_YEAR : DateUtils.FORMAT_NO_YEAR));
     }
@@ -18,6 +18,7 @@ package com.android.dialer.calllog;
 
 import android.net.Uri;
 import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.PhoneLookup;
 
@@ -85,6 +86,27 @@ final class PhoneQuery {
     public static final int LOOKUP_KEY = 7;
     public static final int PHOTO_URI = 8;
 
+    /**
+     * Projection to look up the ContactInfo of several numbers at once by querying the
+     * normalized numbers of {@link Phone#CONTENT_URI}. The columns are in the same order as in
+     * {@link #PHONE_LOOKUP_PROJECTION}, followed by the alternative display name which is
+     * available in the data table.
+     */
+    public static final String[] PHONE_NORMALIZED_NUMBER_PROJECTION = new String[] {
+            Phone.CONTACT_ID,
+            Phone.DISPLAY_NAME,
+            Phone.TYPE,
+            Phone.LABEL,
+            Phone.NUMBER,
+            Phone.NORMALIZED_NUMBER,
+            Phone.PHOTO_ID,
+            Phone.LOOKUP_KEY,
+            Phone.PHOTO_URI,
+            Phone.DISPLAY_NAME_ALTERNATIVE
+    };
+
+    public static final int DATA_NAME_ALTERNATIVE = 9;
+
     /**
      * Projection to look up a contact's DISPLAY_NAME_ALTERNATIVE
      */
@@ -19,40 +19,33 @@ package com.android.dialer.calllog.calllogcache;
 import android.content.Context;
 import android.telecom.PhoneAccountHandle;
 import android.text.TextUtils;
-import android.util.Pair;
 
 import com.android.dialer.calllog.PhoneAccountUtils;
+import com.android.dialer.calllog.calllogcache.PhoneAccountSnapshot.AccountInfo;
 import com.android.dialer.util.PhoneNumberUtil;
 
-import java.util.HashMap;
-import java.util.Map;
-
 /**
  * This is the CallLogCache for versions of dialer Lollipop Mr1 and above with support for
  * multi-SIM devices.
  *
+ * The attributes of the phone accounts are read from the process-wide
+ * {@link PhoneAccountSnapshot}, which is rebuilt in the background whenever the cache is reset.
+ * Until the first snapshot is available, they are queried directly.
+ *
  * This class should not be initialized directly and instead be acquired from
  * {@link CallLogCache#getCallLogCache}.
  */
 class CallLogCacheLollipopMr1 extends CallLogCache {
-    // Maps from a phone-account/number pair to a boolean because multiple numbers could return true
-    // for the voicemail number if those numbers are not pre-normalized.
-    private final Map<Pair<PhoneAccountHandle, CharSequence>, Boolean> mVoicemailQueryCache =
-            new HashMap<>();
-    private final Map<PhoneAccountHandle, String> mPhoneAccountLabelCache = new HashMap<>();
-    private final Map<PhoneAccountHandle, Integer> mPhoneAccountColorCache = new HashMap<>();
-    private final Map<PhoneAccountHandle, Boolean> mPhoneAccountCallWithNoteCache = new HashMap<>();
 
     /* package */ CallLogCacheLollipopMr1(Context context) {
         super(context);
+        PhoneAccountSnapshot.refresh(context);
     }
 
     @Override
     public void reset() {
-        mVoicemailQueryCache.clear();
-        mPhoneAccountLabelCache.clear();
-        mPhoneAccountColorCache.clear();
-        mPhoneAccountCallWithNoteCache.clear();
+        // Pick up accounts which were added, removed or changed while the call log was shown.
+        PhoneAccountSnapshot.refresh(mContext);
 
         super.reset();
     }
@@ -63,48 +56,41 @@ class CallLogCacheLollipopMr1 extends CallLogCache {
             return false;
         }
 
-        Pair<PhoneAccountHandle, CharSequence> key = new Pair<>(accountHandle, number);
-        if (mVoicemailQueryCache.containsKey(key)) {
-            return mVoicemailQueryCache.get(key);
-        } else {
-            Boolean isVoicemail =
-                    PhoneNumberUtil.isVoicemailNumber(mContext, accountHandle, number.toString());
-            mVoicemailQueryCache.put(key, isVoicemail);
-            return isVoicemail;
+        final AccountInfo info = getAccountInfo(accountHandle);
+        if (info == null) {
+            return PhoneNumberUtil.isVoicemailNumber(mContext, accountHandle, number.toString());
         }
+        return info.isVoicemailNumber(mContext, accountHandle, number);
     }
 
     @Override
     public String getAccountLabel(PhoneAccountHandle accountHandle) {
-        if (mPhoneAccountLabelCache.containsKey(accountHandle)) {
-            return mPhoneAccountLabelCache.get(accountHandle);
-        } else {
-            String label = PhoneAccountUtils.getAccountLabel(mContext, accountHandle);
-            mPhoneAccountLabelCache.put(accountHandle, label);
-            return label;
-        }
+        final AccountInfo info = getAccountInfo(accountHandle);
+        return info == null
+                ? PhoneAccountUtils.getAccountLabel(mContext, accountHandle) : info.label;
     }
 
     @Override
     public int getAccountColor(PhoneAccountHandle accountHandle) {
-        if (mPhoneAccountColorCache.containsKey(accountHandle)) {
-            return mPhoneAccountColorCache.get(accountHandle);
-        } else {
-            Integer color = PhoneAccountUtils.getAccountColor(mContext, accountHandle);
-            mPhoneAccountColorCache.put(accountHandle, color);
-            return color;
-        }
+        final AccountInfo info = getAccountInfo(accountHandle);
+        return info == null
+                ? PhoneAccountUtils.getAccountColor(mContext, accountHandle) : info.color;
     }
 
     @Override
     public boolean doesAccountSupportCallSubject(PhoneAccountHandle accountHandle) {
-        if (mPhoneAccountCallWithNoteCache.containsKey(accountHandle)) {
-            return mPhoneAccountCallWithNoteCache.get(accountHandle);
-        } else {
-            Boolean supportsCallWithNote =
-                    PhoneAccountUtils.getAccountSupportsCallSubject(mContext, accountHandle);
-            mPhoneAccountCallWithNoteCache.put(accountHandle, supportsCallWithNote);
-            return supportsCallWithNote;
-        }
+        final AccountInfo info = getAccountInfo(accountHandle);
+        return info == null
+                ? PhoneAccountUtils.getAccountSupportsCallSubject(mContext, accountHandle)
+                : info.supportsCallSubject;
+    }
+
+    /**
+     * Returns the attributes of the account from the current snapshot, or null if there is none
+     * yet.
+     */
+    private AccountInfo getAccountInfo(PhoneAccountHandle accountHandle) {
+        final PhoneAccountSnapshot snapshot = PhoneAccountSnapshot.getCurrent();
+        return snapshot == null ? null : snapshot.getAccountInfo(mContext, accountHandle);
     }
 }
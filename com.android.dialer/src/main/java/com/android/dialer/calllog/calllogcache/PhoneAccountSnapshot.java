@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.calllog.calllogcache;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.support.annotation.Nullable;
+import android.telecom.PhoneAccount;
+import android.telecom.PhoneAccountHandle;
+
+import com.android.dialer.util.PhoneNumberUtil;
+import com.android.dialer.util.TelecomUtil;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Process-wide snapshot of the attributes of the call capable phone accounts which the call log
+ * displays: label, highlight color and support for call subjects.
+ * <p>
+ * The snapshot is built on a background thread by {@link #refresh(Context)} and replaced as a
+ * whole, so that binding a call log entry only reads a map. Accounts missing from the snapshot,
+ * e.g. the account of an old call through a SIM which was removed since, are looked up on first
+ * use and added to the snapshot. Whether a number is the voicemail number of an account is also
+ * memoized per account, and forgotten along with the snapshot.
+ */
+@ThreadSafe
+final class PhoneAccountSnapshot {
+    private static volatile PhoneAccountSnapshot sCurrent;
+    private static final AtomicBoolean sRefreshPending = new AtomicBoolean(false);
+
+    /** The attributes of a phone account. */
+    static final class AccountInfo {
+        @Nullable public final String label;
+        public final int color;
+        public final boolean supportsCallSubject;
+
+        /** Whether numbers are the voicemail number of this account, by number. */
+        private final Map<String, Boolean> mVoicemailNumbers = new ConcurrentHashMap<>();
+
+        private AccountInfo(@Nullable String label, int color, boolean supportsCallSubject) {
+            this.label = label;
+            this.color = color;
+            this.supportsCallSubject = supportsCallSubject;
+        }
+
+        public boolean isVoicemailNumber(Context context, @Nullable PhoneAccountHandle accountHandle,
+                CharSequence number) {
+            final String numberString = number.toString();
+            Boolean isVoicemail = mVoicemailNumbers.get(numberString);
+            if (isVoicemail == null) {
+                isVoicemail = PhoneNumberUtil.isVoicemailNumber(context, accountHandle, number);
+                mVoicemailNumbers.put(numberString, isVoicemail);
+            }
+            return isVoicemail;
+        }
+    }
+
+    /** Whether account labels are displayed, i.e. there is more than one call capable account. */
+    private final boolean mShowAccountLabels;
+    /** The call capable accounts at the time the snapshot was built. */
+    private final Map<PhoneAccountHandle, AccountInfo> mAccounts;
+    /** The attributes used for calls without an account. */
+    private final AccountInfo mNoAccount;
+    /** Accounts which were not call capable when the snapshot was built, looked up on demand. */
+    private final Map<PhoneAccountHandle, AccountInfo> mOtherAccounts = new ConcurrentHashMap<>();
+
+    private PhoneAccountSnapshot(Context context) {
+        final List<PhoneAccountHandle> accountHandles =
+                TelecomUtil.getCallCapablePhoneAccounts(context);
+        mShowAccountLabels = accountHandles.size() > 1;
+        final Map<PhoneAccountHandle, AccountInfo> accounts = new HashMap<>();
+        for (PhoneAccountHandle accountHandle : accountHandles) {
+            accounts.put(accountHandle, createAccountInfo(context, accountHandle));
+        }
+        mAccounts = Collections.unmodifiableMap(accounts);
+        mNoAccount = createAccountInfo(context, null);
+    }
+
+    /**
+     * Returns the current snapshot, or null if none has been built yet.
+     */
+    @Nullable
+    public static PhoneAccountSnapshot getCurrent() {
+        return sCurrent;
+    }
+
+    /**
+     * Builds a new snapshot on a background thread, replacing the current one once done.
+     */
+    public static void refresh(Context context) {
+        if (!sRefreshPending.compareAndSet(false, true)) {
+            return;
+        }
+        final Context applicationContext = context.getApplicationContext();
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Clear the flag first, so that a change during the build triggers another one.
+                sRefreshPending.set(false);
+                sCurrent = new PhoneAccountSnapshot(applicationContext);
+            }
+        });
+    }
+
+    /**
+     * Returns the attributes of the given account, looking them up if the account is not part of
+     * the snapshot.
+     */
+    public AccountInfo getAccountInfo(Context context, @Nullable PhoneAccountHandle accountHandle) {
+        if (accountHandle == null) {
+            return mNoAccount;
+        }
+        AccountInfo info = mAccounts.get(accountHandle);
+        if (info == null) {
+            info = mOtherAccounts.get(accountHandle);
+            if (info == null) {
+                info = createAccountInfo(context, accountHandle);
+                mOtherAccounts.put(accountHandle, info);
+            }
+        }
+        return info;
+    }
+
+    /**
+     * Looks up the attributes of an account the same way
+     * {@link com.android.dialer.calllog.PhoneAccountUtils} does, with a single query.
+     */
+    private AccountInfo createAccountInfo(Context context,
+            @Nullable PhoneAccountHandle accountHandle) {
+        final PhoneAccount account = TelecomUtil.getPhoneAccount(context, accountHandle);
+        if (account == null) {
+            return new AccountInfo(null, PhoneAccount.NO_HIGHLIGHT_COLOR, false);
+        }
+        final String label = mShowAccountLabels && account.getLabel() != null
+                ? account.getLabel().toString() : null;
+        return new AccountInfo(label, account.getHighlightColor(),
+                account.hasCapabilities(PhoneAccount.CAPABILITY_CALL_SUBJECT));
+    }
+}
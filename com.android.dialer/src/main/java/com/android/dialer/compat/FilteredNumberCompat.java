@@ -30,7 +30,6 @@ import android.os.UserManager;
 import android.preference.PreferenceManager;
 import android.support.annotation.Nullable;
 import android.telecom.TelecomManager;
-import android.telephony.PhoneNumberUtils;
 import android.util.Log;
 
 import com.android.contacts.common.compat.CompatUtils;
@@ -48,6 +47,7 @@ import com.android.dialer.filterednumber.BlockNumberDialogFragment.Callback;
 import com.android.dialer.filterednumber.BlockedNumbersMigrator;
 import com.android.dialer.filterednumber.BlockedNumbersSettingsActivity;
 import com.android.dialer.filterednumber.MigrateBlockedNumbersDialogFragment;
+import com.android.dialer.util.PhoneNumberFormatCache;
 import com.android.dialerbind.ObjectFactory;
 
 import java.util.ArrayList;
@@ -236,7 +236,7 @@ public class FilteredNumberCompat {
         contentValues.put(getOriginalNumberColumnName(), Preconditions.checkNotNull(number));
         if (!useNewFiltering()) {
             if (e164Number == null) {
-                e164Number = PhoneNumberUtils.formatNumberToE164(number, countryIso);
+                e164Number = PhoneNumberFormatCache.formatNumberToE164(number, countryIso);
             }
             contentValues.put(getE164NumberColumnName(), e164Number);
             contentValues.put(getCountryIsoColumnName(), countryIso);
@@ -16,32 +16,49 @@
 
 package com.android.dialer.contactinfo;
 
+import android.content.ContentProviderOperation;
 import android.os.Handler;
 import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
 import android.text.TextUtils;
+import android.util.Log;
 
 import com.android.dialer.calllog.ContactInfo;
 import com.android.dialer.calllog.ContactInfoHelper;
 import com.android.dialer.util.ExpirableCache;
 import com.google.common.annotations.VisibleForTesting;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * This is a cache of contact details for the phone numbers in the c all log. The key is the
  * phone number with the country in which teh call was placed or received. The content of the
  * cache is expired (but not purged) whenever the application comes to the foreground.
  *
- * This cache queues request for information and queries for information on a background thread,
- * so {@code start()} and {@code stop()} must be called to initiate or halt that thread's exeuction
- * as needed.
+ * This cache queues request for information and queries for information on a small pool of
+ * background threads, so {@code start()} and {@code stop()} must be called to initiate or halt
+ * their execution as needed. Requests for rows which have no contact info to show yet are served
+ * before requests to refresh expired info, and requests for rows which are scrolled off screen
+ * can be cancelled with {@link #cancelRequest(String, String)}.
  *
  * TODO: Explore whether there is a pattern to remove external dependencies for starting and
- * stopping the query thread.
+ * stopping the query threads.
  */
 public class ContactInfoCache {
     public interface OnContactInfoChangedListener {
-        public void onContactInfoChanged();
+        /**
+         * Called on the UI thread after lookups changed the contact info of some numbers.
+         *
+         * @param changedNumbers the numbers whose contact info changed, keyed the same way as
+         *        in {@link #getValue(String, String, ContactInfo)}
+         */
+        public void onContactInfoChanged(Set<NumberWithCountryIso> changedNumbers);
     }
 
     /*
@@ -50,8 +67,8 @@ public class ContactInfoCache {
     private class QueryThread extends Thread {
         private volatile boolean mDone = false;
 
-        public QueryThread() {
-            super("ContactInfoCache.QueryThread");
+        public QueryThread(int index) {
+            super("ContactInfoCache.QueryThread-" + index);
         }
 
         public void stopProcessing() {
@@ -60,38 +77,40 @@ public class ContactInfoCache {
 
         @Override
         public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            final List<ContactInfoRequest> batch = new ArrayList<>(REQUEST_BATCH_SIZE);
             boolean needRedraw = false;
             while (true) {
-                // Check if thread is finished, and if so return immediately.
-                if (mDone) return;
-
-                // Obtain next request, if any is available.
-                // Keep synchronized section small.
-                ContactInfoRequest req = null;
-                synchronized (mRequests) {
-                    if (!mRequests.isEmpty()) {
-                        req = mRequests.removeFirst();
-                    }
+                // Check if thread is finished, and if so write back what it has resolved.
+                if (mDone) {
+                    flushCallLogUpdates(true);
+                    return;
                 }
 
-                if (req != null) {
-                    // Process the request. If the lookup succeeds, schedule a redraw.
-                    needRedraw |= queryContactInfo(req.number, req.countryIso, req.callLogInfo);
+                // Obtain the next requests, if any are available.
+                mRequests.drainTo(batch, REQUEST_BATCH_SIZE);
+
+                if (!batch.isEmpty()) {
+                    // Process the requests. If any lookup succeeds, schedule a redraw.
+                    needRedraw |= queryContactInfo(batch);
+                    batch.clear();
+                    flushCallLogUpdates(false);
                 } else {
                     // Throttle redraw rate by only sending them when there are
                     // more requests.
                     if (needRedraw) {
                         needRedraw = false;
-                        mHandler.sendEmptyMessage(REDRAW);
+                        scheduleRedraw();
                     }
 
+                    // The queue is drained, write back everything resolved so far.
+                    flushCallLogUpdates(true);
+
                     // Wait until another request is available, or until this
                     // thread is no longer needed (as indicated by being
                     // interrupted).
                     try {
-                        synchronized (mRequests) {
-                            mRequests.wait(1000);
-                        }
+                        mRequests.await(1000);
                     } catch (InterruptedException ie) {
                         // Ignore, and attempt to continue processing requests.
                     }
@@ -105,34 +124,77 @@ public class ContactInfoCache {
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case REDRAW:
-                    mOnContactInfoChangedListener.onContactInfoChanged();
-                    break;
-                case START_THREAD:
-                    startRequestProcessing();
+                    final Set<NumberWithCountryIso> changedNumbers;
+                    synchronized (mChangedNumbers) {
+                        changedNumbers = new HashSet<>(mChangedNumbers);
+                        mChangedNumbers.clear();
+                    }
+                    if (!changedNumbers.isEmpty()) {
+                        mOnContactInfoChangedListener.onContactInfoChanged(changedNumbers);
+                    }
                     break;
             }
         }
     };
 
+    private static final String TAG = "ContactInfoCache";
+
     private static final int REDRAW = 1;
-    private static final int START_THREAD = 2;
 
     private static final int CONTACT_INFO_CACHE_SIZE = 100;
-    private static final int START_PROCESSING_REQUESTS_DELAY_MS = 1000;
 
+    /**
+     * Upper bound on the number of threads performing lookups concurrently. Lookups are mostly
+     * blocked on the contacts provider, so a few threads are enough to keep it busy.
+     */
+    private static final int MAX_QUERY_THREADS = 3;
 
     /**
-     * List of requests to update contact details. Each request contains a phone number to look up,
-     * and the contact info currently stored in the call log for this number.
+     * Maximum number of requests resolved together by a query thread. Kept to about a screen of
+     * rows so that the first names show up without waiting on the rest of the queue.
+     */
+    private static final int REQUEST_BATCH_SIZE = 10;
+
+    /**
+     * Maximum time for which updates of the contact info cached in the call log are buffered
+     * while requests are still being processed.
+     */
+    private static final long CALL_LOG_UPDATE_FLUSH_DELAY_MS = 500;
+
+    /** Number of buffered call log updates which triggers a write regardless of the delay. */
+    private static final int MAX_PENDING_CALL_LOG_UPDATES = 50;
+
+    /**
+     * Queue of requests to update contact details. Each request contains a phone number to look
+     * up, and the contact info currently stored in the call log for this number.
      *
-     * The requests are added when displaying contacts and are processed by a background thread.
+     * The requests are added when displaying contacts and are processed by background threads.
      */
-    private final LinkedList<ContactInfoRequest> mRequests;
+    private final ContactInfoRequestQueue mRequests;
 
     private ExpirableCache<NumberWithCountryIso, ContactInfo> mCache;
 
+    /**
+     * Updates of the contact info cached in the call log, keyed by the number they apply to.
+     * They are written in a single batch once the queue is drained, or once they have been
+     * pending for {@link #CALL_LOG_UPDATE_FLUSH_DELAY_MS}, since each write to the call log
+     * notifies its observers and causes the call log to be queried again.
+     */
+    private final LinkedHashMap<NumberWithCountryIso, ContentProviderOperation>
+            mPendingCallLogUpdates = new LinkedHashMap<>();
+    /** Time at which the oldest entry in {@link #mPendingCallLogUpdates} was added. */
+    private long mFirstPendingCallLogUpdateMillis;
+
+    /**
+     * Numbers whose contact info changed since the last redraw, so that only the rows showing
+     * them are redrawn.
+     */
+    private final Set<NumberWithCountryIso> mChangedNumbers = new HashSet<>();
+
     private ContactInfoHelper mContactInfoHelper;
-    private QueryThread mContactInfoQueryThread;
+    /** Optional disk-backed tier consulted for numbers missing from {@link #mCache}. */
+    private volatile PersistentContactInfoCache mPersistentCache;
+    private QueryThread[] mContactInfoQueryThreads;
     private OnContactInfoChangedListener mOnContactInfoChangedListener;
 
     public ContactInfoCache(ContactInfoHelper contactInfoHelper,
@@ -140,7 +202,7 @@ public class ContactInfoCache {
         mContactInfoHelper = contactInfoHelper;
         mOnContactInfoChangedListener = onContactInfoChangedListener;
 
-        mRequests = new LinkedList<ContactInfoRequest>();
+        mRequests = new ContactInfoRequestQueue();
         mCache = ExpirableCache.create(CONTACT_INFO_CACHE_SIZE);
     }
 
@@ -149,7 +211,18 @@ public class ContactInfoCache {
         ExpirableCache.CachedValue<ContactInfo> cachedInfo =
                 mCache.getCachedValue(numberCountryIso);
         ContactInfo info = cachedInfo == null ? null : cachedInfo.getValue();
-        if (cachedInfo == null) {
+        final ContactInfo persistedInfo = cachedInfo == null && mPersistentCache != null
+                ? mPersistentCache.get(numberCountryIso) : null;
+        if (persistedInfo != null) {
+            // The number was looked up in a previous session and the contacts have not changed
+            // since, so the persisted info can be displayed right away.
+            mCache.put(numberCountryIso, persistedInfo);
+            info = persistedInfo;
+            if (!callLogInfoMatches(cachedContactInfo, info)) {
+                // Let the lookup update the call log, but there is no need to hurry.
+                enqueueRequest(number, countryIso, cachedContactInfo, false);
+            }
+        } else if (cachedInfo == null) {
             mCache.put(numberCountryIso, ContactInfo.EMPTY);
             // Use the cached contact info from the call log.
             info = cachedContactInfo;
@@ -179,19 +252,54 @@ public class ContactInfoCache {
     }
 
     /**
-     * Queries the appropriate content provider for the contact associated with the number.
+     * Queries the appropriate content provider for the contacts associated with the numbers of
+     * the given requests, resolving them together with as few queries as possible.
      *
-     * Upon completion it also updates the cache in the call log, if it is different from
-     * {@code callLogInfo}.
+     * Upon completion it also queues an update of the cache in the call log, if it is different
+     * from the {@code callLogInfo} of each request. See {@link #flushCallLogUpdates(boolean)}.
      *
-     * The number might be either a SIP address or a phone number.
+     * The numbers might be either SIP addresses or phone numbers.
      *
      * It returns true if it updated the content of the cache and we should therefore tell the
-     * view to update its content.
+     * view to update its content. The numbers whose content changed are added to
+     * {@link #mChangedNumbers}.
      */
-    private boolean queryContactInfo(String number, String countryIso, ContactInfo callLogInfo) {
-        final ContactInfo info = mContactInfoHelper.lookupNumber(number, countryIso);
+    private boolean queryContactInfo(List<ContactInfoRequest> requests) {
+        final List<NumberWithCountryIso> numbers = new ArrayList<>(requests.size());
+        for (ContactInfoRequest request : requests) {
+            numbers.add(new NumberWithCountryIso(request.number, request.countryIso));
+        }
+        final PersistentContactInfoCache persistentCache = mPersistentCache;
+        final int persistentGeneration =
+                persistentCache != null ? persistentCache.getGeneration() : 0;
+        final Map<NumberWithCountryIso, ContactInfo> infos =
+                mContactInfoHelper.lookupNumbers(numbers);
+        if (persistentCache != null) {
+            persistentCache.put(infos, persistentGeneration);
+        }
 
+        boolean updated = false;
+        for (int i = 0; i < requests.size(); i++) {
+            final ContactInfoRequest request = requests.get(i);
+            final NumberWithCountryIso number = numbers.get(i);
+            if (updateContactInfo(number, infos.get(number), request.callLogInfo)) {
+                synchronized (mChangedNumbers) {
+                    mChangedNumbers.add(number);
+                }
+                updated = true;
+            }
+        }
+        return updated;
+    }
+
+    /**
+     * Stores the result of a lookup for the given number in the cache.
+     *
+     * It returns true if it updated the content of the cache and we should therefore tell the
+     * view to update its content.
+     */
+    private boolean updateContactInfo(NumberWithCountryIso numberCountryIso, ContactInfo info,
+            ContactInfo callLogInfo) {
         if (info == null) {
             // The lookup failed, just return without requesting to update the view.
             return false;
@@ -199,7 +307,6 @@ public class ContactInfoCache {
 
         // Check the existing entry in the cache: only if it has changed we should update the
         // view.
-        NumberWithCountryIso numberCountryIso = new NumberWithCountryIso(number, countryIso);
         ContactInfo existingInfo = mCache.getPossiblyExpired(numberCountryIso);
 
         final boolean isRemoteSource = info.sourceType != 0;
@@ -219,47 +326,88 @@ public class ContactInfoCache {
 
         // Update the call log even if the cache it is up-to-date: it is possible that the cache
         // contains the value from a different call log entry.
-        mContactInfoHelper.updateCallLogContactInfo(number, countryIso, info, callLogInfo);
+        ContentProviderOperation callLogUpdate = mContactInfoHelper.getCallLogUpdateOperation(
+                numberCountryIso.number, numberCountryIso.countryIso, info, callLogInfo);
+        if (callLogUpdate != null) {
+            synchronized (mPendingCallLogUpdates) {
+                if (mPendingCallLogUpdates.isEmpty()) {
+                    mFirstPendingCallLogUpdateMillis = SystemClock.elapsedRealtime();
+                }
+                mPendingCallLogUpdates.put(numberCountryIso, callLogUpdate);
+            }
+        }
         return updated;
     }
 
     /**
-     * After a delay, start the thread to begin processing requests. We perform lookups on a
-     * background thread, but this must be called to indicate the thread should be running.
+     * Writes the buffered updates of the contact info cached in the call log.
+     *
+     * @param force whether to write them even if they have been buffered for less than
+     *        {@link #CALL_LOG_UPDATE_FLUSH_DELAY_MS} and there are only a few of them
      */
-    public void start() {
-        // Schedule a thread-creation message if the thread hasn't been created yet, as an
-        // optimization to queue fewer messages.
-        if (mContactInfoQueryThread == null) {
-            // TODO: Check whether this delay before starting to process is necessary.
-            mHandler.sendEmptyMessageDelayed(START_THREAD, START_PROCESSING_REQUESTS_DELAY_MS);
+    private void flushCallLogUpdates(boolean force) {
+        final ArrayList<ContentProviderOperation> operations;
+        synchronized (mPendingCallLogUpdates) {
+            if (mPendingCallLogUpdates.isEmpty()) {
+                return;
+            }
+            if (!force && mPendingCallLogUpdates.size() < MAX_PENDING_CALL_LOG_UPDATES
+                    && SystemClock.elapsedRealtime() - mFirstPendingCallLogUpdateMillis
+                            < CALL_LOG_UPDATE_FLUSH_DELAY_MS) {
+                return;
+            }
+            operations = new ArrayList<>(mPendingCallLogUpdates.values());
+            mPendingCallLogUpdates.clear();
         }
+        mContactInfoHelper.applyCallLogUpdates(operations);
     }
 
     /**
-     * Stops the thread and clears the queue of messages to process. This cleans up the thread
-     * for lookups so that it is not perpetually running.
+     * Starts the threads to begin processing requests. We perform lookups on background threads,
+     * but this must be called to indicate the threads should be running.
+     */
+    public void start() {
+        startRequestProcessing();
+    }
+
+    /**
+     * Stops the threads processing requests. This cleans up the threads for lookups so that they
+     * are not perpetually running.
      */
     public void stop() {
         stopRequestProcessing();
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Cache statistics: " + mCache.getStats());
+        }
     }
 
     /**
-     * Starts a background thread to process contact-lookup requests, unless one
-     * has already been started.
+     * Returns the statistics of the in-memory cache, to help tune its size.
+     */
+    public ExpirableCache.Stats getStats() {
+        return mCache.getStats();
+    }
+
+    /**
+     * Starts the background threads to process contact-lookup requests, unless they have already
+     * been started.
      */
     private synchronized void startRequestProcessing() {
         // For unit-testing.
         if (mRequestProcessingDisabled) return;
 
-        // If a thread is already started, don't start another.
-        if (mContactInfoQueryThread != null) {
+        // If the threads are already started, don't start others.
+        if (mContactInfoQueryThreads != null) {
             return;
         }
 
-        mContactInfoQueryThread = new QueryThread();
-        mContactInfoQueryThread.setPriority(Thread.MIN_PRIORITY);
-        mContactInfoQueryThread.start();
+        final int threadCount = Math.max(1,
+                Math.min(MAX_QUERY_THREADS, Runtime.getRuntime().availableProcessors()));
+        mContactInfoQueryThreads = new QueryThread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            mContactInfoQueryThreads[i] = new QueryThread(i);
+            mContactInfoQueryThreads[i].start();
+        }
     }
 
     public void invalidate() {
@@ -268,17 +416,25 @@ public class ContactInfoCache {
     }
 
     /**
-     * Stops the background thread that processes updates and cancels any
-     * pending requests to start it.
+     * Stops the background threads that process updates.
      */
     private synchronized void stopRequestProcessing() {
-        // Remove any pending requests to start the processing thread.
-        mHandler.removeMessages(START_THREAD);
-        if (mContactInfoQueryThread != null) {
-            // Stop the thread; we are finished with it.
-            mContactInfoQueryThread.stopProcessing();
-            mContactInfoQueryThread.interrupt();
-            mContactInfoQueryThread = null;
+        if (mContactInfoQueryThreads != null) {
+            // Stop the threads; we are finished with them.
+            for (QueryThread thread : mContactInfoQueryThreads) {
+                thread.stopProcessing();
+                thread.interrupt();
+            }
+            mContactInfoQueryThreads = null;
+        }
+    }
+
+    /**
+     * Asks the UI thread to redraw, unless a redraw is already pending.
+     */
+    private void scheduleRedraw() {
+        if (!mHandler.hasMessages(REDRAW)) {
+            mHandler.sendEmptyMessage(REDRAW);
         }
     }
 
@@ -287,24 +443,35 @@ public class ContactInfoCache {
      * <p>
      * It also provides the current contact info stored in the call log for this number.
      * <p>
-     * If the {@code immediate} parameter is true, it will start immediately the thread that looks
-     * up the contact information (if it has not been already started). Otherwise, it will be
-     * started with a delay. See {@link #START_PROCESSING_REQUESTS_DELAY_MILLIS}.
+     * If the {@code immediate} parameter is true, the number is shown on screen without any
+     * contact info: the request is served ahead of refresh requests, and the threads that look
+     * up the contact information are started if they have not been already.
      */
     protected void enqueueRequest(String number, String countryIso, ContactInfo callLogInfo,
             boolean immediate) {
         ContactInfoRequest request = new ContactInfoRequest(number, countryIso, callLogInfo);
-        synchronized (mRequests) {
-            if (!mRequests.contains(request)) {
-                mRequests.add(request);
-                mRequests.notifyAll();
-            }
-        }
+        mRequests.add(request, immediate);
         if (immediate) {
             startRequestProcessing();
         }
     }
 
+    /**
+     * Cancels the pending request for the given number, if any. This should be called when the
+     * row showing the number is scrolled off screen, so that lookups for the rows which are still
+     * visible are not delayed by it.
+     * <p>
+     * The lookup is requested again the next time the number is bound to a row.
+     */
+    public void cancelRequest(String number, String countryIso) {
+        NumberWithCountryIso numberCountryIso = new NumberWithCountryIso(number, countryIso);
+        if (mRequests.cancel(numberCountryIso)
+                && mCache.getPossiblyExpired(numberCountryIso) == ContactInfo.EMPTY) {
+            // Drop the placeholder added by getValue() so that the number is looked up again.
+            mCache.remove(numberCountryIso);
+        }
+    }
+
     /**
      * Checks whether the contact info from the call log matches the one from the contacts db.
      */
@@ -317,6 +484,14 @@ public class ContactInfoCache {
 
     private volatile boolean mRequestProcessingDisabled = false;
 
+    /**
+     * Sets the disk-backed tier in which the results of lookups are persisted, so that they can
+     * be displayed immediately the next time the process starts.
+     */
+    public void setPersistentCache(PersistentContactInfoCache persistentCache) {
+        mPersistentCache = persistentCache;
+    }
+
     /**
      * Sets whether processing of requests for contact details should be enabled.
      */
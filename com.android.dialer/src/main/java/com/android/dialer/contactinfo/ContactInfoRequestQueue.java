@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.contactinfo;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Queue of pending {@link ContactInfoRequest}s used by the {@link ContactInfoCache}.
+ * <p>
+ * Requests are kept in two FIFO tiers: requests for rows currently on screen whose contact info
+ * is missing entirely, and requests to refresh info which is merely expired or out of date. The
+ * first tier is always drained before the second one.
+ * <p>
+ * Requests are de-duplicated by number and country: enqueueing a request for a number which is
+ * already queued replaces the pending one, keeping its position in the queue, and promotes it to
+ * the visible tier if needed. Adding, removing and cancelling requests are constant time.
+ */
+@ThreadSafe
+final class ContactInfoRequestQueue {
+    /** Requests for visible rows that have no contact info to display yet. */
+    private final LinkedHashMap<NumberWithCountryIso, ContactInfoRequest> mVisibleRequests =
+            new LinkedHashMap<>();
+    /** Requests to refresh contact info which is expired or does not match the call log. */
+    private final LinkedHashMap<NumberWithCountryIso, ContactInfoRequest> mBackgroundRequests =
+            new LinkedHashMap<>();
+
+    /**
+     * Adds a request to the queue, waking up any thread waiting for requests.
+     *
+     * @param request the request to add
+     * @param visible whether the request is for a visible row with no contact info to display
+     */
+    public synchronized void add(ContactInfoRequest request, boolean visible) {
+        final NumberWithCountryIso key = keyOf(request);
+        if (visible) {
+            mBackgroundRequests.remove(key);
+            mVisibleRequests.put(key, request);
+        } else if (mVisibleRequests.containsKey(key)) {
+            mVisibleRequests.put(key, request);
+        } else {
+            mBackgroundRequests.put(key, request);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Removes and returns the next request to process, or null if the queue is empty.
+     */
+    public synchronized ContactInfoRequest poll() {
+        ContactInfoRequest request = pollFrom(mVisibleRequests);
+        return request != null ? request : pollFrom(mBackgroundRequests);
+    }
+
+    /**
+     * Removes up to {@code maxRequests} requests from the queue, in the order in which they should
+     * be processed, and adds them to the given collection.
+     *
+     * @return the number of requests added to {@code requests}
+     */
+    public synchronized int drainTo(Collection<ContactInfoRequest> requests, int maxRequests) {
+        int count = 0;
+        ContactInfoRequest request;
+        while (count < maxRequests && (request = poll()) != null) {
+            requests.add(request);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Removes the pending request for the given number, if any.
+     *
+     * @return true if the removed request was queued for a visible row with no contact info
+     */
+    public synchronized boolean cancel(NumberWithCountryIso key) {
+        mBackgroundRequests.remove(key);
+        return mVisibleRequests.remove(key) != null;
+    }
+
+    public synchronized boolean isEmpty() {
+        return mVisibleRequests.isEmpty() && mBackgroundRequests.isEmpty();
+    }
+
+    /**
+     * Waits until a request is added or the given timeout elapses, whichever comes first.
+     */
+    public synchronized void await(long timeoutMillis) throws InterruptedException {
+        if (isEmpty()) {
+            wait(timeoutMillis);
+        }
+    }
+
+    private static ContactInfoRequest pollFrom(
+            LinkedHashMap<NumberWithCountryIso, ContactInfoRequest> requests) {
+        final Iterator<ContactInfoRequest> iterator = requests.values().iterator();
+        if (!iterator.hasNext()) {
+            return null;
+        }
+        final ContactInfoRequest request = iterator.next();
+        iterator.remove();
+        return request;
+    }
+
+    private static NumberWithCountryIso keyOf(ContactInfoRequest request) {
+        return new NumberWithCountryIso(request.number, request.countryIso);
+    }
+}
@@ -0,0 +1,477 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.contactinfo;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.ContactsContract.Contacts;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.contacts.common.util.PermissionsUtil;
+import com.android.contacts.common.util.UriUtils;
+import com.android.dialer.calllog.ContactInfo;
+import com.android.dialer.database.DialerDatabaseHelper;
+import com.android.dialer.database.DialerDatabaseHelper.ContactInfoCacheColumns;
+import com.android.dialer.database.DialerDatabaseHelper.DeleteContactQuery;
+import com.android.dialer.database.DialerDatabaseHelper.Tables;
+import com.android.dialer.database.DialerDatabaseHelper.UpdatedContactQuery;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Disk-backed second tier of the {@link ContactInfoCache}, so that the contact info of the
+ * numbers in the call log can be displayed as soon as the call log is shown after a cold start,
+ * instead of waiting for each number to be looked up again.
+ * <p>
+ * Only results of lookups in the contacts provider which matched a contact are stored, in a
+ * bounded table of the dialer database: numbers without a contact are looked up again, so that
+ * contacts added for them are picked up. The entries are loaded in the background when the
+ * instance is created, after checking that no contact was updated or deleted since they were
+ * last validated. While the process is alive, changes notified by the contacts provider are
+ * batched, and only drop the entries of the contacts which were actually updated or deleted.
+ * <p>
+ * This class is thread-safe.
+ */
+public class PersistentContactInfoCache {
+    private static final String TAG = "PersistentContactInfo";
+
+    /** Maximum number of entries kept in the database. */
+    private static final int MAX_ENTRIES = 500;
+
+    /** Time at which the entries in the database were last known to match the contacts. */
+    private static final String LAST_VALIDATED_MILLIS_PROPERTY =
+            "contact_info_cache_last_validated_millis";
+
+    /**
+     * Delay before checking which contacts changed after a change is notified, so that bursts of
+     * notifications, e.g. during a sync, are checked once.
+     */
+    private static final long REVALIDATE_DELAY_MILLIS = 2000;
+
+    private static final String[] REVALIDATE_PROJECTION = new String[] {
+            ContactInfoCacheColumns.NUMBER,             // 0
+            ContactInfoCacheColumns.COUNTRY_ISO,        // 1
+            ContactInfoCacheColumns.LOOKUP_URI,         // 2
+    };
+
+    private static final int REVALIDATE_NUMBER = 0;
+    private static final int REVALIDATE_COUNTRY_ISO = 1;
+    private static final int REVALIDATE_LOOKUP_URI = 2;
+
+    private static final String[] PROJECTION = new String[] {
+            ContactInfoCacheColumns.NUMBER,             // 0
+            ContactInfoCacheColumns.COUNTRY_ISO,        // 1
+            ContactInfoCacheColumns.NAME,               // 2
+            ContactInfoCacheColumns.NAME_ALTERNATIVE,   // 3
+            ContactInfoCacheColumns.NUMBER_TYPE,        // 4
+            ContactInfoCacheColumns.NUMBER_LABEL,       // 5
+            ContactInfoCacheColumns.LOOKUP_URI,         // 6
+            ContactInfoCacheColumns.LOOKUP_KEY,         // 7
+            ContactInfoCacheColumns.MATCHED_NUMBER,     // 8
+            ContactInfoCacheColumns.NORMALIZED_NUMBER,  // 9
+            ContactInfoCacheColumns.FORMATTED_NUMBER,   // 10
+            ContactInfoCacheColumns.PHOTO_ID,           // 11
+            ContactInfoCacheColumns.PHOTO_URI,          // 12
+            ContactInfoCacheColumns.USER_TYPE,          // 13
+    };
+
+    private static final int NUMBER = 0;
+    private static final int COUNTRY_ISO = 1;
+    private static final int NAME = 2;
+    private static final int NAME_ALTERNATIVE = 3;
+    private static final int NUMBER_TYPE = 4;
+    private static final int NUMBER_LABEL = 5;
+    private static final int LOOKUP_URI = 6;
+    private static final int LOOKUP_KEY = 7;
+    private static final int MATCHED_NUMBER = 8;
+    private static final int NORMALIZED_NUMBER = 9;
+    private static final int FORMATTED_NUMBER = 10;
+    private static final int PHOTO_ID = 11;
+    private static final int PHOTO_URI = 12;
+    private static final int USER_TYPE = 13;
+
+    private static PersistentContactInfoCache sInstance;
+
+    private final Context mContext;
+    private final DialerDatabaseHelper mDbHelper;
+
+    /** The entries loaded from the database. */
+    private final Map<NumberWithCountryIso, ContactInfo> mEntries = new ConcurrentHashMap<>();
+
+    /**
+     * Incremented whenever the entries are invalidated, so that lookups started before a change
+     * to the contacts are not written back afterwards.
+     */
+    private final AtomicInteger mGeneration = new AtomicInteger(0);
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final Runnable mRevalidateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    revalidateEntries();
+                }
+            });
+        }
+    };
+
+    private final ContentObserver mContactsObserver = new ContentObserver(mHandler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            mHandler.removeCallbacks(mRevalidateRunnable);
+            mHandler.postDelayed(mRevalidateRunnable, REVALIDATE_DELAY_MILLIS);
+        }
+    };
+
+    /**
+     * Returns the process-wide instance, creating it and starting to load its entries if needed.
+     */
+    public static synchronized PersistentContactInfoCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PersistentContactInfoCache(context.getApplicationContext());
+            sInstance.start();
+        }
+        return sInstance;
+    }
+
+    private PersistentContactInfoCache(Context context) {
+        mContext = context;
+        mDbHelper = DialerDatabaseHelper.getInstance(context);
+    }
+
+    private void start() {
+        if (!PermissionsUtil.hasContactsPermissions(mContext)) {
+            return;
+        }
+        try {
+            mContext.getContentResolver().registerContentObserver(
+                    Contacts.CONTENT_URI, true, mContactsObserver);
+        } catch (SecurityException e) {
+            Log.w(TAG, "Unable to observe contacts, not using persisted contact info", e);
+            return;
+        }
+        final int generation = mGeneration.get();
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                loadEntries(generation);
+            }
+        });
+    }
+
+    /**
+     * Returns the persisted contact info for the given number, or null if there is none or the
+     * entries have not been loaded yet.
+     */
+    public ContactInfo get(NumberWithCountryIso numberCountryIso) {
+        return mEntries.get(numberCountryIso);
+    }
+
+    /**
+     * Returns the current generation of the entries, to be passed to {@link #put(Map, int)} along
+     * with the results of lookups started after this call.
+     */
+    public int getGeneration() {
+        return mGeneration.get();
+    }
+
+    /**
+     * Stores the results of contact lookups, evicting the least recently updated entries beyond
+     * {@link #MAX_ENTRIES}. This performs disk I/O and must not be called on the UI thread.
+     *
+     * @param infos the contact info looked up for each number
+     * @param generation the value of {@link #getGeneration()} before the lookups were started;
+     *        if the entries have been invalidated since, nothing is stored
+     */
+    public void put(Map<NumberWithCountryIso, ContactInfo> infos, int generation) {
+        if (infos.isEmpty() || generation != mGeneration.get()) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        try {
+            final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                boolean changed = false;
+                for (Map.Entry<NumberWithCountryIso, ContactInfo> entry : infos.entrySet()) {
+                    final ContactInfo info = entry.getValue();
+                    if (info == null || info == ContactInfo.EMPTY || info.sourceType != 0
+                            || info.isBadData || getContactId(info.lookupUri) <= 0) {
+                        // Only results from the contacts provider are invalidated by changes
+                        // to the contacts, and only the ones matched to a contact are dropped
+                        // when a contact is added for their number.
+                        continue;
+                    }
+                    db.replace(Tables.CONTACT_INFO_CACHE_TABLE, null,
+                            toContentValues(entry.getKey(), info, now));
+                    changed = true;
+                }
+                if (changed) {
+                    db.delete(Tables.CONTACT_INFO_CACHE_TABLE, "rowid NOT IN (SELECT rowid FROM "
+                            + Tables.CONTACT_INFO_CACHE_TABLE + " ORDER BY "
+                            + ContactInfoCacheColumns.LAST_UPDATED + " DESC LIMIT "
+                            + MAX_ENTRIES + ")", null);
+                }
+                if (generation == mGeneration.get()) {
+                    db.setTransactionSuccessful();
+                }
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Unable to persist contact info", e);
+        }
+    }
+
+    /**
+     * Drops all the entries, because the contacts they were looked up from have changed.
+     */
+    public void invalidate() {
+        mGeneration.incrementAndGet();
+        mEntries.clear();
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                clearEntries(System.currentTimeMillis());
+            }
+        });
+    }
+
+    private void loadEntries(int generation) {
+        // Take the time before checking for changes, so that changes made while checking are
+        // detected next time.
+        final long now = System.currentTimeMillis();
+        try {
+            final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+            final long lastValidatedMillis = Long.parseLong(
+                    mDbHelper.getProperty(db, LAST_VALIDATED_MILLIS_PROPERTY, "0"));
+            if (contactsChangedSince(lastValidatedMillis)) {
+                clearEntries(now);
+                return;
+            }
+
+            final Cursor cursor = db.query(Tables.CONTACT_INFO_CACHE_TABLE, PROJECTION, null,
+                    null, null, null, ContactInfoCacheColumns.LAST_UPDATED + " DESC",
+                    String.valueOf(MAX_ENTRIES));
+            if (cursor == null) {
+                return;
+            }
+            try {
+                while (cursor.moveToNext() && generation == mGeneration.get()) {
+                    final String countryIso = cursor.getString(COUNTRY_ISO);
+                    mEntries.put(new NumberWithCountryIso(cursor.getString(NUMBER),
+                            TextUtils.isEmpty(countryIso) ? null : countryIso),
+                            fromCursor(cursor));
+                }
+            } finally {
+                cursor.close();
+            }
+            mDbHelper.setProperty(db, LAST_VALIDATED_MILLIS_PROPERTY, String.valueOf(now));
+        } catch (SQLiteException | NumberFormatException e) {
+            Log.e(TAG, "Unable to load persisted contact info", e);
+        }
+    }
+
+    /**
+     * Drops the entries of the contacts updated or deleted since the entries were last validated,
+     * keeping the others. Added contacts are reported as updated, but no entry matches them: the
+     * numbers they may match had no contact, and such numbers are not persisted.
+     */
+    private void revalidateEntries() {
+        final long now = System.currentTimeMillis();
+        try {
+            final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+            final long lastValidatedMillis = Long.parseLong(
+                    mDbHelper.getProperty(db, LAST_VALIDATED_MILLIS_PROPERTY, "0"));
+            final Set<Long> changedContactIds = getContactsChangedSince(lastValidatedMillis);
+            if (changedContactIds == null) {
+                invalidate();
+                return;
+            }
+            if (!changedContactIds.isEmpty()) {
+                // Lookups started before the change may have matched the changed contacts.
+                mGeneration.incrementAndGet();
+                removeEntries(db, changedContactIds);
+            }
+            mDbHelper.setProperty(db, LAST_VALIDATED_MILLIS_PROPERTY, String.valueOf(now));
+        } catch (SQLiteException | NumberFormatException e) {
+            Log.e(TAG, "Unable to revalidate persisted contact info", e);
+        }
+    }
+
+    /** Removes the entries matched to any of the given contacts. */
+    private void removeEntries(SQLiteDatabase db, Set<Long> contactIds) {
+        final Cursor cursor = db.query(Tables.CONTACT_INFO_CACHE_TABLE, REVALIDATE_PROJECTION,
+                null, null, null, null, null);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                final Uri lookupUri =
+                        UriUtils.parseUriOrNull(cursor.getString(REVALIDATE_LOOKUP_URI));
+                final long contactId = getContactId(lookupUri);
+                if (contactId > 0 && !contactIds.contains(contactId)) {
+                    continue;
+                }
+                final String number = cursor.getString(REVALIDATE_NUMBER);
+                final String countryIso = cursor.getString(REVALIDATE_COUNTRY_ISO);
+                mEntries.remove(new NumberWithCountryIso(number,
+                        TextUtils.isEmpty(countryIso) ? null : countryIso));
+                db.delete(Tables.CONTACT_INFO_CACHE_TABLE, ContactInfoCacheColumns.NUMBER
+                        + "=? AND " + ContactInfoCacheColumns.COUNTRY_ISO + "=?",
+                        new String[] {number, countryIso});
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the id of the contact of the given lookup URI, or -1 if it does not have one. Entries
+     * without a contact are not persisted, and any found are dropped with the entries of any
+     * changed contact.
+     */
+    private static long getContactId(Uri lookupUri) {
+        if (lookupUri == null) {
+            return -1;
+        }
+        try {
+            return ContentUris.parseId(lookupUri);
+        } catch (NumberFormatException | UnsupportedOperationException e) {
+            return -1;
+        }
+    }
+
+    private void clearEntries(long validatedMillis) {
+        try {
+            final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+            db.delete(Tables.CONTACT_INFO_CACHE_TABLE, null, null);
+            mDbHelper.setProperty(db, LAST_VALIDATED_MILLIS_PROPERTY,
+                    String.valueOf(validatedMillis));
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Unable to clear persisted contact info", e);
+        }
+    }
+
+    /**
+     * Returns whether any contact was updated or deleted after the given time. Errs on the side
+     * of reporting a change.
+     */
+    private boolean contactsChangedSince(long millis) {
+        final Set<Long> contactIds = getContactsChangedSince(millis);
+        return contactIds == null || !contactIds.isEmpty();
+    }
+
+    /**
+     * Returns the ids of the contacts updated or deleted after the given time, or null if they
+     * cannot be known.
+     */
+    private Set<Long> getContactsChangedSince(long millis) {
+        if (millis == 0) {
+            return null;
+        }
+        final String[] selectionArgs = new String[] {String.valueOf(millis)};
+        final Set<Long> contactIds = new HashSet<>();
+        if (!addContactIds(contactIds, mContext.getContentResolver().query(
+                        UpdatedContactQuery.URI, UpdatedContactQuery.PROJECTION,
+                        UpdatedContactQuery.SELECT_UPDATED_CLAUSE, selectionArgs, null),
+                        UpdatedContactQuery.UPDATED_CONTACT_ID)
+                || !addContactIds(contactIds, mContext.getContentResolver().query(
+                        DeleteContactQuery.URI, DeleteContactQuery.PROJECTION,
+                        DeleteContactQuery.SELECT_UPDATED_CLAUSE, selectionArgs, null),
+                        DeleteContactQuery.DELETED_CONTACT_ID)) {
+            return null;
+        }
+        return contactIds;
+    }
+
+    /**
+     * Adds the contact ids of the given cursor to the given set, and closes the cursor.
+     *
+     * @return false if the cursor is null
+     */
+    private static boolean addContactIds(Set<Long> contactIds, Cursor cursor, int column) {
+        if (cursor == null) {
+            return false;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                contactIds.add(cursor.getLong(column));
+            }
+            return true;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static ContentValues toContentValues(NumberWithCountryIso numberCountryIso,
+            ContactInfo info, long updatedMillis) {
+        final ContentValues values = new ContentValues();
+        values.put(ContactInfoCacheColumns.NUMBER, numberCountryIso.number);
+        values.put(ContactInfoCacheColumns.COUNTRY_ISO,
+                numberCountryIso.countryIso == null ? "" : numberCountryIso.countryIso);
+        values.put(ContactInfoCacheColumns.NAME, info.name);
+        values.put(ContactInfoCacheColumns.NAME_ALTERNATIVE, info.nameAlternative);
+        values.put(ContactInfoCacheColumns.NUMBER_TYPE, info.type);
+        values.put(ContactInfoCacheColumns.NUMBER_LABEL, info.label);
+        values.put(ContactInfoCacheColumns.LOOKUP_URI, UriUtils.uriToString(info.lookupUri));
+        values.put(ContactInfoCacheColumns.LOOKUP_KEY, info.lookupKey);
+        values.put(ContactInfoCacheColumns.MATCHED_NUMBER, info.number);
+        values.put(ContactInfoCacheColumns.NORMALIZED_NUMBER, info.normalizedNumber);
+        values.put(ContactInfoCacheColumns.FORMATTED_NUMBER, info.formattedNumber);
+        values.put(ContactInfoCacheColumns.PHOTO_ID, info.photoId);
+        values.put(ContactInfoCacheColumns.PHOTO_URI, UriUtils.uriToString(info.photoUri));
+        values.put(ContactInfoCacheColumns.USER_TYPE, info.userType);
+        values.put(ContactInfoCacheColumns.LAST_UPDATED, updatedMillis);
+        return values;
+    }
+
+    private static ContactInfo fromCursor(Cursor cursor) {
+        final ContactInfo info = new ContactInfo();
+        info.name = cursor.getString(NAME);
+        info.nameAlternative = cursor.getString(NAME_ALTERNATIVE);
+        info.type = cursor.getInt(NUMBER_TYPE);
+        info.label = cursor.getString(NUMBER_LABEL);
+        info.lookupUri = UriUtils.parseUriOrNull(cursor.getString(LOOKUP_URI));
+        info.lookupKey = cursor.getString(LOOKUP_KEY);
+        info.number = cursor.getString(MATCHED_NUMBER);
+        info.normalizedNumber = cursor.getString(NORMALIZED_NUMBER);
+        info.formattedNumber = cursor.getString(FORMATTED_NUMBER);
+        info.photoId = cursor.getLong(PHOTO_ID);
+        info.photoUri = UriUtils.parseUriOrNull(cursor.getString(PHOTO_URI));
+        info.userType = cursor.getLong(USER_TYPE);
+        return info;
+    }
+}
@@ -27,31 +27,43 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Process;
 import android.provider.BaseColumns;
+import android.provider.CallLog.Calls;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.Directory;
+import android.provider.VoicemailContract.Voicemails;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.contacts.common.compat.CompatUtils;
 import com.android.contacts.common.util.PermissionsUtil;
+import com.android.contacts.common.util.PhoneNumberHelper;
 import com.android.contacts.common.util.StopWatch;
 import com.android.dialer.R;
 import com.android.dialer.database.FilteredNumberContract.FilteredNumberColumns;
 import com.android.dialer.database.VoicemailArchiveContract.VoicemailArchive;
 import com.android.dialer.dialpad.SmartDialNameMatcher;
 import com.android.dialer.dialpad.SmartDialPrefix;
+import com.android.dialer.util.AppCompatConstants;
+import com.android.dialer.util.TelecomUtil;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -76,7 +88,7 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
      *   0-98   KitKat
      * </pre>
      */
-    public static final int DATABASE_VERSION = 9;
+    public static final int DATABASE_VERSION = 12;
     public static final String DATABASE_NAME = "dialer.db";
 
     /**
@@ -86,6 +98,45 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     private static final String LAST_UPDATED_MILLIS = "last_updated_millis";
     private static final String DATABASE_VERSION_PROPERTY = "database_version";
 
+    /**
+     * {@link Calls#LAST_MODIFIED} of the last call indexed for search on N and above, from which
+     * the next update of the call log search index resumes.
+     */
+    private static final String CALL_LOG_SEARCH_LAST_MODIFIED_PROPERTY =
+            "call_log_search_last_modified";
+
+    /**
+     * {@link Calls#_ID} of the last call indexed for search, from which the next update of the
+     * call log search index resumes, along with {@link #CALL_LOG_SEARCH_LAST_MODIFIED_PROPERTY}
+     * on N and above.
+     */
+    private static final String CALL_LOG_SEARCH_LAST_CALL_ID_PROPERTY =
+            "call_log_search_last_call_id";
+
+    /**
+     * Maximum number of calls indexed for search at once, so that the searches queued on
+     * {@link #sCallLogSearchExecutor} do not wait for the whole call log to be indexed.
+     */
+    private static final int CALL_LOG_SEARCH_BATCH_SIZE = 200;
+
+    private static final Object sCallLogSearchLock = new Object();
+    private static final AtomicBoolean sCallLogSearchUpdatePending = new AtomicBoolean(false);
+
+    /** Runs the updates of the call log search index, and the searches which need them. */
+    private static final ExecutorService sCallLogSearchExecutor =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    return new Thread("CallLogSearch") {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    };
+                }
+            });
+
     private static final int MAX_ENTRIES = 20;
 
     public interface Tables {
@@ -99,6 +150,12 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
         static final String VOICEMAIL_ARCHIVE_TABLE = "voicemail_archive_table";
         /** Database properties for internal use */
         static final String PROPERTIES = "properties";
+        /** Saves the contact info of recently displayed call log numbers across restarts. */
+        static final String CONTACT_INFO_CACHE_TABLE = "contact_info_cache_table";
+        /** Saves the searchable fields of each call in the call log. */
+        static final String CALL_LOG_SEARCH_TABLE = "call_log_search_table";
+        /** Saves all the tokens by which a call in the call log can be found. */
+        static final String CALL_LOG_SEARCH_PREFIX_TABLE = "call_log_search_prefix_table";
     }
 
     public static final Uri SMART_DIAL_UPDATED_URI =
@@ -132,6 +189,47 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
         String PROPERTY_VALUE = "property_value";
     }
 
+    public interface ContactInfoCacheColumns {
+        String NUMBER = "number";
+        /** Country of the call, stored as an empty string rather than null. */
+        String COUNTRY_ISO = "country_iso";
+        String NAME = "name";
+        String NAME_ALTERNATIVE = "name_alternative";
+        String NUMBER_TYPE = "number_type";
+        String NUMBER_LABEL = "number_label";
+        String LOOKUP_URI = "lookup_uri";
+        String LOOKUP_KEY = "lookup_key";
+        String MATCHED_NUMBER = "matched_number";
+        String NORMALIZED_NUMBER = "normalized_number";
+        String FORMATTED_NUMBER = "formatted_number";
+        String PHOTO_ID = "photo_id";
+        String PHOTO_URI = "photo_uri";
+        String USER_TYPE = "user_type";
+        String LAST_UPDATED = "last_updated";
+    }
+
+    public interface CallLogSearchColumns {
+        /** The {@link Calls#_ID} of the call. */
+        String CALL_ID = "call_id";
+        String NUMBER = "number";
+        String NAME = "name";
+        String GEOCODED_LOCATION = "geocoded_location";
+        String DATE = "date";
+        /** The {@link Calls#TYPE} of the call. */
+        String TYPE = "type";
+    }
+
+    public interface CallLogSearchPrefixColumns {
+        /**
+         * A suffix of the digits of the number of the call, or the lower case name or location
+         * of the call starting at one of its words. Searching for the tokens starting with a
+         * query finds the numbers containing it and the names and locations with a word starting
+         * with it.
+         */
+        String PREFIX = "prefix";
+        String CALL_ID = "call_id";
+    }
+
     // change by geniusgithub begin
     static {
         if (CompatUtils.isMarshmallowCompatible()) {
@@ -140,6 +238,29 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     }
     // change by geniusgithub end
 
+    /** Query options for indexing the call log. */
+    private static interface CallLogSearchQuery {
+        static final String[] PROJECTION = new String[] {
+            Calls._ID,                  // 0
+            Calls.NUMBER,               // 1
+            Calls.CACHED_NAME,          // 2
+            Calls.GEOCODED_LOCATION,    // 3
+            Calls.DATE,                 // 4
+            Calls.TYPE,                 // 5
+            Voicemails.DELETED,         // 6, only available on M and above
+            Calls.LAST_MODIFIED,        // 7, only available on N and above
+        };
+
+        static final int ID = 0;
+        static final int NUMBER = 1;
+        static final int CACHED_NAME = 2;
+        static final int GEOCODED_LOCATION = 3;
+        static final int DATE = 4;
+        static final int TYPE = 5;
+        static final int DELETED = 6;
+        static final int LAST_MODIFIED = 7;
+    }
+
     /** Query options for querying the contact database.*/
     public static interface PhoneQuery {
        static final Uri URI = Phone.CONTENT_URI.buildUpon().
@@ -448,6 +569,8 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
                 + ");");
 
         createVoicemailArchiveTable(db);
+        createContactInfoCacheTable(db);
+        createCallLogSearchTables(db);
         setProperty(db, DATABASE_VERSION_PROPERTY, String.valueOf(DATABASE_VERSION));
         if (!mIsTestInstance) {
             resetSmartDialLastUpdatedTime();
@@ -460,6 +583,9 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("DROP TABLE IF EXISTS " + Tables.PROPERTIES);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.FILTERED_NUMBER_TABLE);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.VOICEMAIL_ARCHIVE_TABLE);
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.CONTACT_INFO_CACHE_TABLE);
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.CALL_LOG_SEARCH_TABLE);
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.CALL_LOG_SEARCH_PREFIX_TABLE);
     }
 
     @Override
@@ -507,6 +633,29 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
             oldVersion = 9;
         }
 
+        if (oldVersion < 10) {
+            db.execSQL("DROP TABLE IF EXISTS " + Tables.CONTACT_INFO_CACHE_TABLE);
+            createContactInfoCacheTable(db);
+            oldVersion = 10;
+        }
+
+        if (oldVersion < 11) {
+            db.execSQL("DROP TABLE IF EXISTS " + Tables.CALL_LOG_SEARCH_TABLE);
+            db.execSQL("DROP TABLE IF EXISTS " + Tables.CALL_LOG_SEARCH_PREFIX_TABLE);
+            createCallLogSearchTables(db);
+            setProperty(db, CALL_LOG_SEARCH_LAST_MODIFIED_PROPERTY, "0");
+            oldVersion = 11;
+        }
+
+        if (oldVersion < 12) {
+            db.execSQL("DROP TABLE IF EXISTS " + Tables.CALL_LOG_SEARCH_TABLE);
+            db.execSQL("DROP TABLE IF EXISTS " + Tables.CALL_LOG_SEARCH_PREFIX_TABLE);
+            createCallLogSearchTables(db);
+            setProperty(db, CALL_LOG_SEARCH_LAST_MODIFIED_PROPERTY, "0");
+            setProperty(db, CALL_LOG_SEARCH_LAST_CALL_ID_PROPERTY, "0");
+            oldVersion = 12;
+        }
+
         if (oldVersion != DATABASE_VERSION) {
             throw new IllegalStateException(
                     "error upgrading the database to version " + DATABASE_VERSION);
@@ -708,6 +857,66 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
                 + ");");
     }
 
+    /**
+     * Creates the table backing
+     * {@link com.android.dialer.contactinfo.PersistentContactInfoCache}. Entries are keyed by the
+     * number and country iso, as in the in-memory contact info cache.
+     *
+     *  @param db Database pointer to the dialer database.
+     */
+    private void createContactInfoCacheTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + Tables.CONTACT_INFO_CACHE_TABLE + " ("
+                + ContactInfoCacheColumns.NUMBER + " TEXT NOT NULL,"
+                + ContactInfoCacheColumns.COUNTRY_ISO + " TEXT NOT NULL DEFAULT '',"
+                + ContactInfoCacheColumns.NAME + " TEXT,"
+                + ContactInfoCacheColumns.NAME_ALTERNATIVE + " TEXT,"
+                + ContactInfoCacheColumns.NUMBER_TYPE + " INTEGER,"
+                + ContactInfoCacheColumns.NUMBER_LABEL + " TEXT,"
+                + ContactInfoCacheColumns.LOOKUP_URI + " TEXT,"
+                + ContactInfoCacheColumns.LOOKUP_KEY + " TEXT,"
+                + ContactInfoCacheColumns.MATCHED_NUMBER + " TEXT,"
+                + ContactInfoCacheColumns.NORMALIZED_NUMBER + " TEXT,"
+                + ContactInfoCacheColumns.FORMATTED_NUMBER + " TEXT,"
+                + ContactInfoCacheColumns.PHOTO_ID + " INTEGER,"
+                + ContactInfoCacheColumns.PHOTO_URI + " TEXT,"
+                + ContactInfoCacheColumns.USER_TYPE + " INTEGER,"
+                + ContactInfoCacheColumns.LAST_UPDATED + " LONG,"
+                + "PRIMARY KEY (" + ContactInfoCacheColumns.NUMBER + ", "
+                + ContactInfoCacheColumns.COUNTRY_ISO + ")"
+                + ");");
+    }
+
+    /**
+     * Creates the tables of the call log search index, see {@link #updateCallLogSearchIndex()}.
+     *
+     *  @param db Database pointer to the dialer database.
+     */
+    private void createCallLogSearchTables(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + Tables.CALL_LOG_SEARCH_TABLE + " ("
+                + CallLogSearchColumns.CALL_ID + " INTEGER PRIMARY KEY,"
+                + CallLogSearchColumns.NUMBER + " TEXT,"
+                + CallLogSearchColumns.NAME + " TEXT,"
+                + CallLogSearchColumns.GEOCODED_LOCATION + " TEXT,"
+                + CallLogSearchColumns.DATE + " LONG,"
+                + CallLogSearchColumns.TYPE + " INTEGER"
+                + ");");
+        db.execSQL("CREATE TABLE " + Tables.CALL_LOG_SEARCH_PREFIX_TABLE + " ("
+                + CallLogSearchPrefixColumns.PREFIX + " TEXT,"
+                + CallLogSearchPrefixColumns.CALL_ID + " INTEGER"
+                + ");");
+        /** Creates index on date for sorting the results. */
+        db.execSQL("CREATE INDEX call_log_search_date_index ON "
+                + Tables.CALL_LOG_SEARCH_TABLE + " (" + CallLogSearchColumns.DATE + ");");
+        /** Creates index on prefix for fast range queries. */
+        db.execSQL("CREATE INDEX call_log_search_prefix_index ON "
+                + Tables.CALL_LOG_SEARCH_PREFIX_TABLE + " ("
+                + CallLogSearchPrefixColumns.PREFIX + ");");
+        /** Creates index on call_id for fast deletion of the tokens of a call. */
+        db.execSQL("CREATE INDEX call_log_search_prefix_call_id_index ON "
+                + Tables.CALL_LOG_SEARCH_PREFIX_TABLE + " ("
+                + CallLogSearchPrefixColumns.CALL_ID + ");");
+    }
+
     /**
      * Removes all entries in the smartdial contact database.
      */
@@ -1181,4 +1390,412 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
         }
         return result;
     }
+
+    /**
+     * Returns the executor updating the call log search index. Searches run on it see the calls
+     * indexed by the updates started before them.
+     */
+    public static Executor getCallLogSearchExecutor() {
+        return sCallLogSearchExecutor;
+    }
+
+    /**
+     * Starts updating the call log search index in the background, unless an update is already
+     * pending. The calls are indexed in batches of {@link #CALL_LOG_SEARCH_BATCH_SIZE}, each run
+     * as a separate task, so that searches are not held up by indexing the whole call log.
+     */
+    public void startCallLogSearchIndexUpdate() {
+        if (!PermissionsUtil.hasPhonePermissions(mContext)
+                || !sCallLogSearchUpdatePending.compareAndSet(false, true)) {
+            return;
+        }
+        sCallLogSearchExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Clear the flag first, so that a change during the update triggers another one.
+                sCallLogSearchUpdatePending.set(false);
+                boolean complete = true;
+                try {
+                    complete = updateCallLogSearchIndex();
+                } catch (SQLiteException | SecurityException e) {
+                    Log.w(TAG, "Unable to update the call log search index", e);
+                }
+                if (!complete) {
+                    startCallLogSearchIndexUpdate();
+                }
+            }
+        });
+    }
+
+    /**
+     * Indexes the next batch of calls which are new or modified since the call log search index
+     * was last updated.
+     * <p>
+     * On N and above, calls get a new {@link Calls#LAST_MODIFIED} when they are added and
+     * whenever they are updated, e.g. when the call log caches their name, so the calls are
+     * indexed in that order. Below N, the calls newer than the last indexed call are added.
+     * Blocked calls and deleted voicemails are left out of the index, as the call log does not
+     * display them. Once all calls are indexed, the calls which were deleted from the call log
+     * are removed from the index.
+     *
+     * @return whether all calls are indexed, as opposed to more batches being needed
+     */
+    public boolean updateCallLogSearchIndex() {
+        final SQLiteDatabase db = getWritableDatabase();
+
+        synchronized (sCallLogSearchLock) {
+            final StopWatch stopWatch = DEBUG ? StopWatch.start("Updating call log search") : null;
+
+            final boolean hasDeleted = CompatUtils.isMarshmallowCompatible();
+            final boolean hasLastModified = CompatUtils.isNCompatible();
+            final String lastCallId = getProperty(db, CALL_LOG_SEARCH_LAST_CALL_ID_PROPERTY, "0");
+
+            final String selection;
+            final String[] selectionArgs;
+            final String sortOrder;
+            if (hasLastModified) {
+                final String lastModified =
+                        getProperty(db, CALL_LOG_SEARCH_LAST_MODIFIED_PROPERTY, "0");
+                selection = Calls.LAST_MODIFIED + " > ? OR (" + Calls.LAST_MODIFIED + " = ? AND "
+                        + Calls._ID + " > ?)";
+                selectionArgs = new String[] {lastModified, lastModified, lastCallId};
+                sortOrder = Calls.LAST_MODIFIED + ", " + Calls._ID;
+            } else {
+                selection = Calls._ID + " > ?";
+                selectionArgs = new String[] {lastCallId};
+                sortOrder = Calls._ID;
+            }
+            final String[] projection = Arrays.copyOf(CallLogSearchQuery.PROJECTION,
+                    hasLastModified ? CallLogSearchQuery.LAST_MODIFIED + 1
+                    : hasDeleted ? CallLogSearchQuery.DELETED + 1
+                    : CallLogSearchQuery.DELETED);
+
+            final Uri uri = TelecomUtil.getCallLogUri(mContext);
+            final Cursor cursor = mContext.getContentResolver().query(uri.buildUpon()
+                    .appendQueryParameter(Calls.LIMIT_PARAM_KEY,
+                            String.valueOf(CALL_LOG_SEARCH_BATCH_SIZE))
+                    .build(), projection, selection, selectionArgs, sortOrder);
+            if (cursor == null) {
+                return true;
+            }
+            final boolean complete;
+            try {
+                complete = cursor.getCount() < CALL_LOG_SEARCH_BATCH_SIZE;
+                indexCalls(db, cursor, hasDeleted, hasLastModified);
+            } finally {
+                cursor.close();
+            }
+
+            if (DEBUG) {
+                stopWatch.lap("Indexed new and modified calls");
+            }
+
+            if (complete) {
+                removeDeletedCalls(db, uri, hasDeleted);
+            }
+
+            if (DEBUG) {
+                stopWatch.stopAndLog("Finished updating call log search", 0);
+            }
+            return complete;
+        }
+    }
+
+    /**
+     * Indexes the calls in the given cursor, replacing any previous entries for them, and records
+     * the last of them as the point from which the next update resumes.
+     */
+    private void indexCalls(SQLiteDatabase db, Cursor cursor, boolean hasDeleted,
+            boolean hasLastModified) {
+        if (!cursor.moveToLast()) {
+            return;
+        }
+        final long lastCallId = cursor.getLong(CallLogSearchQuery.ID);
+        final long lastModified =
+                hasLastModified ? cursor.getLong(CallLogSearchQuery.LAST_MODIFIED) : 0;
+        cursor.moveToPosition(-1);
+
+        db.beginTransaction();
+        try {
+            final SQLiteStatement callInsert = db.compileStatement(
+                    "INSERT OR REPLACE INTO " + Tables.CALL_LOG_SEARCH_TABLE + " ("
+                    + CallLogSearchColumns.CALL_ID + ", "
+                    + CallLogSearchColumns.NUMBER + ", "
+                    + CallLogSearchColumns.NAME + ", "
+                    + CallLogSearchColumns.GEOCODED_LOCATION + ", "
+                    + CallLogSearchColumns.DATE + ", "
+                    + CallLogSearchColumns.TYPE + ") "
+                    + " VALUES (?, ?, ?, ?, ?, ?)");
+            final SQLiteStatement callDelete = db.compileStatement(
+                    "DELETE FROM " + Tables.CALL_LOG_SEARCH_TABLE + " WHERE "
+                    + CallLogSearchColumns.CALL_ID + " = ?");
+            final SQLiteStatement prefixInsert = db.compileStatement(
+                    "INSERT INTO " + Tables.CALL_LOG_SEARCH_PREFIX_TABLE + " ("
+                    + CallLogSearchPrefixColumns.CALL_ID + ", "
+                    + CallLogSearchPrefixColumns.PREFIX + ") "
+                    + " VALUES (?, ?)");
+            final SQLiteStatement prefixDelete = db.compileStatement(
+                    "DELETE FROM " + Tables.CALL_LOG_SEARCH_PREFIX_TABLE + " WHERE "
+                    + CallLogSearchPrefixColumns.CALL_ID + " = ?");
+
+            while (cursor.moveToNext()) {
+                final long callId = cursor.getLong(CallLogSearchQuery.ID);
+                final String number = cursor.getString(CallLogSearchQuery.NUMBER);
+                final String name = cursor.getString(CallLogSearchQuery.CACHED_NAME);
+                final String location = cursor.getString(CallLogSearchQuery.GEOCODED_LOCATION);
+                final int type = cursor.getInt(CallLogSearchQuery.TYPE);
+
+                prefixDelete.bindLong(1, callId);
+                prefixDelete.executeUpdateDelete();
+
+                if (type == AppCompatConstants.CALLS_BLOCKED_TYPE
+                        || (hasDeleted && cursor.getInt(CallLogSearchQuery.DELETED) != 0)) {
+                    callDelete.bindLong(1, callId);
+                    callDelete.executeUpdateDelete();
+                    continue;
+                }
+
+                callInsert.clearBindings();
+                callInsert.bindLong(1, callId);
+                if (number != null) {
+                    callInsert.bindString(2, number);
+                }
+                if (name != null) {
+                    callInsert.bindString(3, name);
+                }
+                if (location != null) {
+                    callInsert.bindString(4, location);
+                }
+                callInsert.bindLong(5, cursor.getLong(CallLogSearchQuery.DATE));
+                callInsert.bindLong(6, type);
+                callInsert.executeInsert();
+
+                for (String prefix : getCallLogSearchPrefixes(number, name, location)) {
+                    prefixInsert.bindLong(1, callId);
+                    prefixInsert.bindString(2, prefix);
+                    prefixInsert.executeInsert();
+                }
+            }
+
+            setProperty(db, CALL_LOG_SEARCH_LAST_CALL_ID_PROPERTY, String.valueOf(lastCallId));
+            if (hasLastModified) {
+                setProperty(db, CALL_LOG_SEARCH_LAST_MODIFIED_PROPERTY,
+                        String.valueOf(lastModified));
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Removes the calls which are no longer displayed by the call log from the index.
+     */
+    private void removeDeletedCalls(SQLiteDatabase db, Uri uri, boolean hasDeleted) {
+        final long indexedCount = DatabaseUtils.queryNumEntries(db, Tables.CALL_LOG_SEARCH_TABLE);
+        if (indexedCount == 0) {
+            return;
+        }
+
+        final long maxIndexedCallId = DatabaseUtils.longForQuery(db, "SELECT MAX("
+                + CallLogSearchColumns.CALL_ID + ") FROM " + Tables.CALL_LOG_SEARCH_TABLE, null);
+        final StringBuilder selection = new StringBuilder();
+        selection.append(Calls._ID).append(" <= ? AND ").append(Calls.TYPE).append(" != ?");
+        if (hasDeleted) {
+            selection.append(" AND ").append(Voicemails.DELETED).append(" = 0");
+        }
+        final Cursor callLogCursor = mContext.getContentResolver().query(uri,
+                new String[] {Calls._ID}, selection.toString(),
+                new String[] {String.valueOf(maxIndexedCallId),
+                        String.valueOf(AppCompatConstants.CALLS_BLOCKED_TYPE)}, null);
+        if (callLogCursor == null) {
+            return;
+        }
+        final Set<Long> callIds;
+        try {
+            /** Nothing was deleted if the call log still has as many of the indexed calls. */
+            if (callLogCursor.getCount() >= indexedCount) {
+                return;
+            }
+            callIds = new HashSet<Long>(callLogCursor.getCount());
+            while (callLogCursor.moveToNext()) {
+                callIds.add(callLogCursor.getLong(0));
+            }
+        } finally {
+            callLogCursor.close();
+        }
+
+        final ArrayList<Long> deletedCallIds = Lists.newArrayList();
+        final Cursor indexCursor = db.rawQuery("SELECT " + CallLogSearchColumns.CALL_ID
+                + " FROM " + Tables.CALL_LOG_SEARCH_TABLE, null);
+        if (indexCursor == null) {
+            return;
+        }
+        try {
+            while (indexCursor.moveToNext()) {
+                final long callId = indexCursor.getLong(0);
+                if (!callIds.contains(callId)) {
+                    deletedCallIds.add(callId);
+                }
+            }
+        } finally {
+            indexCursor.close();
+        }
+
+        db.beginTransaction();
+        try {
+            final SQLiteStatement callDelete = db.compileStatement(
+                    "DELETE FROM " + Tables.CALL_LOG_SEARCH_TABLE + " WHERE "
+                    + CallLogSearchColumns.CALL_ID + " = ?");
+            final SQLiteStatement prefixDelete = db.compileStatement(
+                    "DELETE FROM " + Tables.CALL_LOG_SEARCH_PREFIX_TABLE + " WHERE "
+                    + CallLogSearchPrefixColumns.CALL_ID + " = ?");
+            for (Long callId : deletedCallIds) {
+                callDelete.bindLong(1, callId);
+                callDelete.executeUpdateDelete();
+                prefixDelete.bindLong(1, callId);
+                prefixDelete.executeUpdateDelete();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Returns the tokens by which a call can be found: every suffix of the digits of its number,
+     * so that a prefix query finds the digits anywhere in the number, and the lower case name and
+     * location starting at each of their words.
+     */
+    @VisibleForTesting
+    static Set<String> getCallLogSearchPrefixes(String number, String name, String location) {
+        final Set<String> prefixes = new HashSet<String>();
+        if (!TextUtils.isEmpty(number)) {
+            if (PhoneNumberHelper.isUriNumber(number)) {
+                addWordPrefixes(prefixes, number);
+            } else {
+                final String digits = getDigits(number);
+                for (int i = 0; i < digits.length(); i++) {
+                    prefixes.add(digits.substring(i));
+                }
+            }
+        }
+        addWordPrefixes(prefixes, name);
+        addWordPrefixes(prefixes, location);
+        return prefixes;
+    }
+
+    private static void addWordPrefixes(Set<String> prefixes, String text) {
+        if (TextUtils.isEmpty(text)) {
+            return;
+        }
+        final String lowerCase = text.toLowerCase(Locale.getDefault());
+        boolean atWordStart = true;
+        for (int i = 0; i < lowerCase.length(); i++) {
+            final boolean isWordChar = Character.isLetterOrDigit(lowerCase.charAt(i));
+            if (isWordChar && atWordStart) {
+                prefixes.add(lowerCase.substring(i));
+            }
+            atWordStart = !isWordChar;
+        }
+    }
+
+    private static String getDigits(String number) {
+        final StringBuilder digits = new StringBuilder(number.length());
+        for (int i = 0; i < number.length(); i++) {
+            final char c = number.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits.append(c);
+            }
+        }
+        return digits.toString();
+    }
+
+    /**
+     * Returns the ids of the calls whose number contains the digits of the query, or whose name
+     * or location has a word starting with the query, most recent first.
+     *
+     * @param query The digits of a number, or the beginning of a name or location.
+     * @param callType The {@link Calls#TYPE} of the calls to return, or -1 for all the calls
+     *        but voicemails, as for {@link com.android.dialer.calllog.CallLogQueryHandler}.
+     * @param newerThan Only calls newer than this date are returned, unless it is 0.
+     * @param limit The maximum number of calls to return.
+     */
+    public ArrayList<Long> getCallLogSearchMatches(String query, int callType, long newerThan,
+            int limit) {
+        final ArrayList<Long> result = Lists.newArrayList();
+        final String prefix = normalizeCallLogSearchQuery(query);
+        if (TextUtils.isEmpty(prefix)) {
+            return result;
+        }
+
+        final StopWatch stopWatch = DEBUG ? StopWatch.start("Call log search query") : null;
+
+        /**
+         * Uses a range rather than LIKE, which the prefix index cannot serve as it is case
+         * insensitive.
+         */
+        final ArrayList<String> selectionArgs = Lists.newArrayList(prefix, prefix + '\uffff');
+        final StringBuilder filter = new StringBuilder();
+        /** Filters the calls as the call log does, so that the limit applies to the displayed. */
+        if (callType >= 0) {
+            filter.append(" AND ").append(CallLogSearchColumns.TYPE).append(" = ?");
+            selectionArgs.add(String.valueOf(callType));
+        } else {
+            filter.append(" AND ").append(CallLogSearchColumns.TYPE).append(" != ?");
+            selectionArgs.add(String.valueOf(AppCompatConstants.CALLS_VOICEMAIL_TYPE));
+        }
+        if (newerThan > 0) {
+            filter.append(" AND ").append(CallLogSearchColumns.DATE).append(" > ?");
+            selectionArgs.add(String.valueOf(newerThan));
+        }
+        final Cursor cursor = getReadableDatabase().rawQuery("SELECT "
+                + CallLogSearchColumns.CALL_ID
+                + " FROM " + Tables.CALL_LOG_SEARCH_TABLE + " WHERE "
+                + CallLogSearchColumns.CALL_ID + " IN "
+                    + " (SELECT " + CallLogSearchPrefixColumns.CALL_ID
+                    + " FROM " + Tables.CALL_LOG_SEARCH_PREFIX_TABLE
+                    + " WHERE " + CallLogSearchPrefixColumns.PREFIX + " >= ?"
+                    + " AND " + CallLogSearchPrefixColumns.PREFIX + " < ?)"
+                + filter
+                + " ORDER BY " + CallLogSearchColumns.DATE + " DESC"
+                + " LIMIT " + limit,
+                selectionArgs.toArray(new String[selectionArgs.size()]));
+        if (cursor == null) {
+            return result;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                result.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (DEBUG) {
+            stopWatch.stopAndLog(TAG + "Finished call log search", 0);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the digits of queries which look like a phone number, and the lower case query
+     * otherwise.
+     */
+    private static String normalizeCallLogSearchQuery(String query) {
+        if (query == null) {
+            return null;
+        }
+        final String trimmed = query.trim();
+        boolean hasDigits = false;
+        for (int i = 0; i < trimmed.length(); i++) {
+            final char c = trimmed.charAt(i);
+            if (c >= '0' && c <= '9') {
+                hasDigits = true;
+            } else if ("+-(). ".indexOf(c) < 0) {
+                return trimmed.toLowerCase(Locale.getDefault());
+            }
+        }
+        return hasDigits ? getDigits(trimmed) : trimmed.toLowerCase(Locale.getDefault());
+    }
 }
@@ -25,13 +25,13 @@ import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabaseCorruptException;
 import android.net.Uri;
 import android.support.annotation.Nullable;
-import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
 
 import com.android.dialer.compat.FilteredNumberCompat;
 import com.android.dialer.database.FilteredNumberContract.FilteredNumber;
 import com.android.dialer.database.FilteredNumberContract.FilteredNumberColumns;
 import com.android.dialer.database.FilteredNumberContract.FilteredNumberTypes;
+import com.android.dialer.util.PhoneNumberFormatCache;
 
 public class FilteredNumberAsyncQueryHandler extends AsyncQueryHandler {
     private static final int NO_TOKEN = 0;
@@ -149,7 +149,7 @@ public class FilteredNumberAsyncQueryHandler extends AsyncQueryHandler {
      */
     public boolean isBlockedNumber(
             final OnCheckBlockedListener listener, String number, String countryIso) {
-        final String e164Number = PhoneNumberUtils.formatNumberToE164(number, countryIso);
+        final String e164Number = PhoneNumberFormatCache.formatNumberToE164(number, countryIso);
         if (TextUtils.isEmpty(e164Number)) {
             return false;
         }
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.filterednumber;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.contacts.common.compat.CompatUtils;
+import com.android.dialer.compat.BlockedNumbersSdkCompat;
+import com.android.dialer.compat.FilteredNumberCompat;
+import com.android.dialer.database.FilteredNumberContract.FilteredNumber;
+import com.android.dialer.database.FilteredNumberContract.FilteredNumberColumns;
+import com.android.dialer.database.FilteredNumberContract.FilteredNumberTypes;
+import com.android.dialer.util.PhoneNumberFormatCache;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process-wide snapshot of the blocked numbers, used to tell whether a number is blocked without
+ * querying the blocked numbers provider.
+ * <p>
+ * The snapshot maps the E164 form of each blocked number to the id of its row, the same key
+ * {@link com.android.dialer.database.FilteredNumberAsyncQueryHandler#isBlockedNumber} queries by.
+ * It is loaded on a background thread and replaced as a whole whenever the dialer's filtered
+ * numbers or the framework's blocked numbers change, so readers never see a partial update.
+ */
+public class BlockedNumberCache {
+    private static final String TAG = "BlockedNumberCache";
+
+    private static BlockedNumberCache sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /** The blocked numbers, or null until they are first loaded. */
+    private volatile Map<String, Integer> mBlockedNumbers;
+
+    /** Incremented on each reload so that only the results of the latest one are kept. */
+    private final AtomicInteger mGeneration = new AtomicInteger(0);
+
+    private final ContentObserver mObserver = new ContentObserver(mHandler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            reload();
+        }
+    };
+
+    /**
+     * Returns the process-wide instance, creating it and starting to load the blocked numbers if
+     * needed.
+     */
+    public static synchronized BlockedNumberCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new BlockedNumberCache(context.getApplicationContext());
+            sInstance.start();
+        }
+        return sInstance;
+    }
+
+    private BlockedNumberCache(Context context) {
+        mContext = context;
+    }
+
+    private void start() {
+        mContext.getContentResolver().registerContentObserver(
+                FilteredNumber.CONTENT_URI, true, mObserver);
+        if (CompatUtils.isNCompatible()) {
+            try {
+                mContext.getContentResolver().registerContentObserver(
+                        BlockedNumbersSdkCompat.CONTENT_URI, true, mObserver);
+            } catch (SecurityException e) {
+                Log.w(TAG, "Unable to observe the framework blocked numbers", e);
+            }
+        }
+        reload();
+    }
+
+    /**
+     * Returns whether the blocked numbers have been loaded. Until they are, callers should fall
+     * back to querying the provider.
+     */
+    public boolean isLoaded() {
+        return mBlockedNumbers != null;
+    }
+
+    /**
+     * Returns the id of the blocked number matching the given number, or null if it is not
+     * blocked, cannot be formatted to E164 or the blocked numbers have not been loaded yet.
+     */
+    @Nullable
+    public Integer getBlockId(String number, @Nullable String countryIso) {
+        final Map<String, Integer> blockedNumbers = mBlockedNumbers;
+        if (blockedNumbers == null || blockedNumbers.isEmpty()) {
+            return null;
+        }
+        final String e164Number = getE164Number(number, countryIso);
+        if (e164Number == null) {
+            return null;
+        }
+        return blockedNumbers.get(e164Number);
+    }
+
+    /**
+     * Returns the E164 form of the given number under which it is blocked, or null if it cannot
+     * be formatted to E164.
+     */
+    @Nullable
+    private static String getE164Number(String number, @Nullable String countryIso) {
+        final String e164Number = PhoneNumberFormatCache.formatNumberToE164(number, countryIso);
+        return TextUtils.isEmpty(e164Number) ? null : e164Number;
+    }
+
+    /**
+     * Loads a new snapshot of the blocked numbers on a background thread.
+     */
+    public void reload() {
+        final int generation = mGeneration.incrementAndGet();
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Map<String, Integer> blockedNumbers = queryBlockedNumbers();
+                if (blockedNumbers != null && generation == mGeneration.get()) {
+                    mBlockedNumbers = blockedNumbers;
+                }
+            }
+        });
+    }
+
+    /**
+     * Queries the blocked numbers, returning null if they could not be read.
+     */
+    @Nullable
+    private Map<String, Integer> queryBlockedNumbers() {
+        if (!FilteredNumberCompat.canAttemptBlockOperations(mContext)) {
+            return ImmutableMap.of();
+        }
+        final Map<String, Integer> blockedNumbers = new HashMap<>();
+        final String e164Column = FilteredNumberCompat.getE164NumberColumnName();
+        Cursor cursor = null;
+        try {
+            cursor = mContext.getContentResolver().query(
+                    FilteredNumberCompat.getContentUri(null),
+                    new String[] {FilteredNumberCompat.getIdColumnName(), e164Column},
+                    FilteredNumberCompat.useNewFiltering() ? null : FilteredNumberColumns.TYPE
+                            + "=" + FilteredNumberTypes.BLOCKED_NUMBER,
+                    null,
+                    null);
+            if (cursor == null) {
+                return null;
+            }
+            while (cursor.moveToNext()) {
+                final String e164Number = cursor.getString(1);
+                // Like FilteredNumberAsyncQueryHandler#isBlockedNumber, use the first match.
+                if (!TextUtils.isEmpty(e164Number) && !blockedNumbers.containsKey(e164Number)) {
+                    blockedNumbers.put(e164Number, cursor.getInt(0));
+                }
+            }
+        } catch (SecurityException e) {
+            Log.w(TAG, "Unable to read the blocked numbers", e);
+            return null;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return ImmutableMap.copyOf(blockedNumbers);
+    }
+}
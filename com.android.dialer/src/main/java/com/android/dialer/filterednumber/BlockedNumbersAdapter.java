@@ -18,7 +18,6 @@ package com.android.dialer.filterednumber;
 import android.app.FragmentManager;
 import android.content.Context;
 import android.database.Cursor;
-import android.telephony.PhoneNumberUtils;
 import android.view.View;
 
 import com.android.contacts.common.ContactPhotoManager;
@@ -28,6 +27,7 @@ import com.android.dialer.calllog.ContactInfoHelper;
 import com.android.dialer.database.FilteredNumberContract.FilteredNumberColumns;
 import com.android.dialer.logging.InteractionEvent;
 import com.android.dialer.logging.Logger;
+import com.android.dialer.util.PhoneNumberFormatCache;
 
 public class BlockedNumbersAdapter extends NumbersAdapter {
 
@@ -66,7 +66,7 @@ public class BlockedNumbersAdapter extends NumbersAdapter {
                         id,
                         number,
                         countryIso,
-                        PhoneNumberUtils.formatNumber(number, countryIso),
+                        PhoneNumberFormatCache.formatNumber(number, countryIso),
                         R.id.blocked_numbers_activity_container,
                         getFragmentManager(),
                         new BlockNumberDialogFragment.Callback() {
@@ -88,6 +88,11 @@ public class BlockedNumbersAdapter extends NumbersAdapter {
         updateView(view, number, countryIso);
     }
 
+    @Override
+    protected String getNumber(Cursor cursor) {
+        return cursor.getString(cursor.getColumnIndex(FilteredNumberColumns.NUMBER));
+    }
+
     @Override
     public boolean isEmpty() {
         // Always return false, so that the header with blocking-related options always shows.
@@ -40,6 +40,7 @@ import com.android.dialer.database.FilteredNumberContract.FilteredNumber;
 import com.android.dialer.database.FilteredNumberContract.FilteredNumberColumns;
 import com.android.dialer.logging.InteractionEvent;
 import com.android.dialer.logging.Logger;
+import com.android.dialer.util.PhoneNumberFormatCache;
 
 import java.util.concurrent.TimeUnit;
 
@@ -235,7 +236,8 @@ public class FilteredNumbersUtil {
      */
     public static boolean shouldBlockVoicemail(
             Context context, String number, String countryIso, long voicemailDateMs) {
-        final String normalizedNumber = PhoneNumberUtils.formatNumberToE164(number, countryIso);
+        final String normalizedNumber =
+                PhoneNumberFormatCache.formatNumberToE164(number, countryIso);
         if (TextUtils.isEmpty(normalizedNumber)) {
             return false;
         }
@@ -349,7 +351,8 @@ public class FilteredNumbersUtil {
     }
 
     public static boolean canBlockNumber(Context context, String number, String countryIso) {
-        final String normalizedNumber = PhoneNumberUtils.formatNumberToE164(number, countryIso);
+        final String normalizedNumber =
+                PhoneNumberFormatCache.formatNumberToE164(number, countryIso);
         return !TextUtils.isEmpty(normalizedNumber)
                 && !PhoneNumberUtils.isEmergencyNumber(normalizedNumber);
     }
@@ -17,6 +17,7 @@ package com.android.dialer.filterednumber;
 
 import android.app.FragmentManager;
 import android.content.Context;
+import android.database.Cursor;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.text.BidiFormatter;
@@ -36,7 +37,14 @@ import com.android.dialer.calllog.ContactInfo;
 import com.android.dialer.calllog.ContactInfoHelper;
 import com.android.dialer.util.PhoneNumberUtil;
 
+import java.util.ArrayList;
+
 public class NumbersAdapter extends SimpleCursorAdapter {
+    /**
+     * Maximum number of rows of a new cursor whose location is computed ahead of binding them,
+     * roughly the number of rows which fit on a couple of screens.
+     */
+    private static final int GEO_DESCRIPTION_PREFETCH_ROWS = 30;
 
     private Context mContext;
     private FragmentManager mFragmentManager;
@@ -56,6 +64,41 @@ public class NumbersAdapter extends SimpleCursorAdapter {
         mContactPhotoManager = contactPhotoManager;
     }
 
+    @Override
+    public Cursor swapCursor(Cursor cursor) {
+        final Cursor oldCursor = super.swapCursor(cursor);
+        prefetchGeoDescriptions(cursor);
+        return oldCursor;
+    }
+
+    /**
+     * Returns the number displayed by the row the cursor is positioned at, used to compute the
+     * location of the first rows off the UI thread. Returns null by default.
+     */
+    protected String getNumber(Cursor cursor) {
+        return null;
+    }
+
+    private void prefetchGeoDescriptions(Cursor cursor) {
+        if (cursor == null || cursor.isClosed()) {
+            return;
+        }
+        final int position = cursor.getPosition();
+        final ArrayList<String> numbers = new ArrayList<>();
+        try {
+            cursor.moveToPosition(-1);
+            while (cursor.moveToNext() && cursor.getPosition() < GEO_DESCRIPTION_PREFETCH_ROWS) {
+                final String number = getNumber(cursor);
+                if (number != null) {
+                    numbers.add(number);
+                }
+            }
+        } finally {
+            cursor.moveToPosition(position);
+        }
+        PhoneNumberUtil.prefetchGeoDescriptions(mContext, numbers);
+    }
+
     public void updateView(View view, String number, String countryIso) {
         final TextView callerName = (TextView) view.findViewById(R.id.caller_name);
         final TextView callerNumber = (TextView) view.findViewById(R.id.caller_number);
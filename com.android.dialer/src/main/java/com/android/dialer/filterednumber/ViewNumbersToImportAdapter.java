@@ -44,6 +44,11 @@ public class ViewNumbersToImportAdapter extends NumbersAdapter {
                 ContactPhotoManager.getInstance(context));
     }
 
+    @Override
+    protected String getNumber(Cursor cursor) {
+        return cursor.getString(FilteredNumbersUtil.PhoneQuery.NUMBER_COLUMN_INDEX);
+    }
+
     @Override
     public void bindView(View view, Context context, Cursor cursor) {
         super.bindView(view, context, cursor);
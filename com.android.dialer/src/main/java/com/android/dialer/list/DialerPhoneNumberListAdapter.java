@@ -213,6 +213,8 @@ public class DialerPhoneNumberListAdapter extends PhoneNumberListAdapter {
 
     @Override
     public void setQueryString(String queryString) {
+        // Not through PhoneNumberFormatCache: every keystroke is a new query, caching them would
+        // only evict the numbers of the call log and contacts.
         mFormattedQueryString = PhoneNumberUtils.formatNumber(
                 PhoneNumberUtils.normalizeNumber(queryString), mCountryIso);
         super.setQueryString(queryString);
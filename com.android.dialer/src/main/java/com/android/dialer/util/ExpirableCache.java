@@ -16,11 +16,14 @@
 
 package com.android.dialer.util;
 
+import android.os.SystemClock;
 import android.util.LruCache;
 
 import com.android.contacts.common.testing.NeededForTesting;
+import com.google.common.base.Objects;
 
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.concurrent.Immutable;
 import javax.annotation.concurrent.ThreadSafe;
@@ -67,6 +70,11 @@ import javax.annotation.concurrent.ThreadSafe;
  * </pre>
  * The values will be still available from the cache, but they will be expired.
  * <p>
+ * Items can also expire on their own after a given time to live, either per item with
+ * {@link #put(Object, Object, long)} or for all items with {@link #setDefaultTtl(long)}. The
+ * absence of a value can be cached with {@link #putNegative(Object)}, usually with a shorter time
+ * to live set by {@link #setNegativeEntryTtl(long)}.
+ * <p>
  * If interested only in the value itself, not whether it is expired or not, one should use the
  * {@link #getPossiblyExpired(Object)} method. If interested only in non-expired values, one should
  * use the {@link #get(Object)} method instead.
@@ -76,7 +84,11 @@ import javax.annotation.concurrent.ThreadSafe;
  * by using the {@link #create(LruCache)} method, which can define a custom expiration policy.
  * Since the underlying cache maps keys to cached values it can determine which items are expired
  * and which are not, allowing for an implementation that evicts expired items before non expired
- * ones.
+ * ones. The cache can also be sized by the weight of its items rather than their number, see
+ * {@link #create(int, Weigher)}.
+ * <p>
+ * The cache counts hits, misses, lookups of expired items and evictions, which can be read with
+ * {@link #getStats()} to tune its size and times to live.
  * <p>
  * This class is thread-safe.
  *
@@ -103,10 +115,80 @@ public class ExpirableCache<K, V> {
          * @return true if the value is expired
          */
         public boolean isExpired();
+
+        /**
+         * Checks whether this is a negative entry, that is, it records that there is no value for
+         * the key. The value of a negative entry is null.
+         *
+         * @return true if the entry is negative
+         */
+        public boolean isNegative();
+    }
+
+    /**
+     * Computes the weight of items for caches sized by weight, see
+     * {@link ExpirableCache#create(int, Weigher)}.
+     *
+     * @param <K> the type of the keys
+     * @param <V> the type of the values
+     */
+    public interface Weigher<K, V> {
+        /**
+         * Returns the weight of the given item, in arbitrary units. It must not change while the
+         * item is in the cache. Negative entries always weigh 1.
+         */
+        public int weigh(K key, V value);
     }
 
     /**
-     * Cached values storing the generation at which they were added.
+     * A snapshot of the statistics of a cache.
+     */
+    @Immutable
+    public static final class Stats {
+        /** Number of lookups which found a value which was not expired. */
+        public final long hitCount;
+        /** Number of lookups which found a negative entry which was not expired. */
+        public final long negativeHitCount;
+        /** Number of lookups which found nothing. */
+        public final long missCount;
+        /** Number of lookups which found an expired value. */
+        public final long expiredCount;
+        /** Number of items evicted because the cache was full. */
+        public final long evictionCount;
+        /** Current size of the cache, in number of items or in weight. */
+        public final int size;
+        /** Maximum size of the cache, in number of items or in weight. */
+        public final int maxSize;
+
+        private Stats(long hitCount, long negativeHitCount, long missCount, long expiredCount,
+                long evictionCount, int size, int maxSize) {
+            this.hitCount = hitCount;
+            this.negativeHitCount = negativeHitCount;
+            this.missCount = missCount;
+            this.expiredCount = expiredCount;
+            this.evictionCount = evictionCount;
+            this.size = size;
+            this.maxSize = maxSize;
+        }
+
+        /** Returns the ratio of lookups which found a value which was not expired. */
+        public float getHitRate() {
+            final long lookups = hitCount + missCount + expiredCount;
+            return lookups == 0 ? 0f : (float) hitCount / lookups;
+        }
+
+        @Override
+        public String toString() {
+            return Objects.toStringHelper(this).add("hitCount", hitCount)
+                    .add("negativeHitCount", negativeHitCount).add("missCount", missCount)
+                    .add("expiredCount", expiredCount).add("evictionCount", evictionCount)
+                    .add("size", size).add("maxSize", maxSize).toString();
+        }
+    }
+
+    /**
+     * Cached values storing the generation at which they were added, and optionally the time at
+     * which they expire.
      */
     @Immutable
     private static class GenerationalCachedValue<V> implements ExpirableCache.CachedValue<V> {
@@ -116,16 +198,25 @@ public class ExpirableCache<K, V> {
         private final int mGeneration;
         /** The atomic integer storing the current generation of the cache it belongs to. */
         private final AtomicInteger mCacheGeneration;
+        /** The {@link SystemClock#elapsedRealtime()} at which the value expires. */
+        private final long mExpirationMillis;
+        /** Whether this entry records the absence of a value. */
+        private final boolean mNegative;
 
         /**
          * @param cacheGeneration the atomic integer storing the generation of the cache in which
          *        this value will be stored
+         * @param ttlMillis the time to live of the value, or {@link #NO_TTL}
          */
-        public GenerationalCachedValue(V value, AtomicInteger cacheGeneration) {
+        public GenerationalCachedValue(V value, AtomicInteger cacheGeneration, long ttlMillis,
+                boolean negative) {
             mValue = value;
             mCacheGeneration = cacheGeneration;
             // Snapshot the current generation.
             mGeneration = mCacheGeneration.get();
+            mExpirationMillis = ttlMillis == NO_TTL
+                    ? Long.MAX_VALUE : SystemClock.elapsedRealtime() + ttlMillis;
+            mNegative = negative;
         }
 
         @Override
@@ -135,10 +226,23 @@ public class ExpirableCache<K, V> {
 
         @Override
         public boolean isExpired() {
-            return mGeneration != mCacheGeneration.get();
+            return mGeneration != mCacheGeneration.get()
+                    || (mExpirationMillis != Long.MAX_VALUE
+                            && SystemClock.elapsedRealtime() >= mExpirationMillis);
+        }
+
+        @Override
+        public boolean isNegative() {
+            return mNegative;
         }
     }
 
+    /** Time to live of items which only expire when {@link #expireAll()} is called. */
+    public static final long NO_TTL = -1;
+
+    /** Default time to live of negative entries. */
+    public static final long DEFAULT_NEGATIVE_ENTRY_TTL_MILLIS = 60 * 1000;
+
     /** The underlying cache used to stored the cached values. */
     private LruCache<K, CachedValue<V>> mCache;
 
@@ -152,6 +256,16 @@ public class ExpirableCache<K, V> {
      */
     private final AtomicInteger mGeneration;
 
+    /** Time to live of items added with {@link #put(Object, Object)}. */
+    private volatile long mDefaultTtlMillis = NO_TTL;
+    /** Time to live of items added with {@link #putNegative(Object)}. */
+    private volatile long mNegativeEntryTtlMillis = DEFAULT_NEGATIVE_ENTRY_TTL_MILLIS;
+
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mNegativeHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private final AtomicLong mExpiredCount = new AtomicLong();
+
     private ExpirableCache(LruCache<K, CachedValue<V>> cache) {
         mCache = cache;
         mGeneration = new AtomicInteger(0);
@@ -171,7 +285,18 @@ public class ExpirableCache<K, V> {
      * @param key the key to look up
      */
     public CachedValue<V> getCachedValue(K key) {
-        return mCache.get(key);
+        final CachedValue<V> cachedValue = mCache.get(key);
+        if (cachedValue == null) {
+            mMissCount.incrementAndGet();
+        } else if (cachedValue.isExpired()) {
+            mExpiredCount.incrementAndGet();
+        } else {
+            mHitCount.incrementAndGet();
+            if (cachedValue.isNegative()) {
+                mNegativeHitCount.incrementAndGet();
+            }
+        }
+        return cachedValue;
     }
 
     /**
@@ -187,7 +312,8 @@ public class ExpirableCache<K, V> {
      * @param key the key to look up
      */
     public V getPossiblyExpired(K key) {
-        CachedValue<V> cachedValue = getCachedValue(key);
+        // Not counted in the statistics: callers use this to inspect the cache, not to serve it.
+        CachedValue<V> cachedValue = mCache.get(key);
         return cachedValue == null ? null : cachedValue.getValue();
     }
 
@@ -209,7 +335,8 @@ public class ExpirableCache<K, V> {
     /**
      * Puts an item in the cache.
      * <p>
-     * Newly added item will not be expired until {@link #expireAll()} is next called.
+     * Newly added item will not be expired until {@link #expireAll()} is next called, or until the
+     * default time to live set with {@link #setDefaultTtl(long)} elapses.
      *
      * @param key the key to look up
      * @param value the value to associate with the key
@@ -218,6 +345,71 @@ public class ExpirableCache<K, V> {
         mCache.put(key, newCachedValue(value));
     }
 
+    /**
+     * Puts an item in the cache, which expires after the given time to live.
+     * <p>
+     * Newly added item will not be expired until {@link #expireAll()} is next called, or until
+     * {@code ttlMillis} elapses.
+     *
+     * @param key the key to look up
+     * @param value the value to associate with the key
+     * @param ttlMillis the time to live of the item, or {@link #NO_TTL}
+     */
+    public void put(K key, V value, long ttlMillis) {
+        mCache.put(key, new GenerationalCachedValue<V>(value, mGeneration, ttlMillis, false));
+    }
+
+    /**
+     * Records in the cache that there is no value for the given key.
+     * <p>
+     * The entry expires after the time to live set with {@link #setNegativeEntryTtl(long)}, which
+     * defaults to {@link #DEFAULT_NEGATIVE_ENTRY_TTL_MILLIS}.
+     *
+     * @param key the key to look up
+     */
+    public void putNegative(K key) {
+        mCache.put(key,
+                new GenerationalCachedValue<V>(null, mGeneration, mNegativeEntryTtlMillis, true));
+    }
+
+    /**
+     * Sets the time to live of the items added with {@link #put(Object, Object)} from now on.
+     *
+     * @param ttlMillis the time to live, or {@link #NO_TTL} for items to expire only when
+     *        {@link #expireAll()} is called
+     */
+    public void setDefaultTtl(long ttlMillis) {
+        mDefaultTtlMillis = ttlMillis;
+    }
+
+    /**
+     * Sets the time to live of the negative entries added with {@link #putNegative(Object)} from
+     * now on.
+     *
+     * @param ttlMillis the time to live, or {@link #NO_TTL}
+     */
+    public void setNegativeEntryTtl(long ttlMillis) {
+        mNegativeEntryTtlMillis = ttlMillis;
+    }
+
+    /**
+     * Returns a snapshot of the statistics of this cache. Only lookups made with
+     * {@link #getCachedValue(Object)} and {@link #get(Object)} are counted.
+     */
+    public Stats getStats() {
+        return new Stats(mHitCount.get(), mNegativeHitCount.get(), mMissCount.get(),
+                mExpiredCount.get(), mCache.evictionCount(), mCache.size(), mCache.maxSize());
+    }
+
+    /**
+     * Removes the item associated with the given key from the cache, if any.
+     *
+     * @param key the key of the item to remove
+     */
+    public void remove(K key) {
+        mCache.remove(key);
+    }
+
     /**
      * Mark all items currently in the cache as expired.
      * <p>
@@ -235,7 +427,7 @@ public class ExpirableCache<K, V> {
      * Implementation of {@link LruCache#create(K)} can use this method to create a new entry.
      */
     public CachedValue<V> newCachedValue(V value) {
-        return new GenerationalCachedValue<V>(value, mGeneration);
+        return new GenerationalCachedValue<V>(value, mGeneration, mDefaultTtlMillis, false);
     }
 
     /**
@@ -263,4 +455,24 @@ public class ExpirableCache<K, V> {
     public static <K, V> ExpirableCache<K, V> create(int maxSize) {
         return create(new LruCache<K, CachedValue<V>>(maxSize));
     }
+
+    /**
+     * Creates a new {@link ExpirableCache} whose size is the total weight of its items, as
+     * computed by the given weigher, rather than their number.
+     *
+     * @param <K> the type of the keys
+     * @param <V> the type of the values
+     * @param maxWeight the maximum total weight of the items in the cache
+     * @param weigher computes the weight of each item
+     * @return the newly created expirable cache
+     */
+    public static <K, V> ExpirableCache<K, V> create(int maxWeight,
+            final Weigher<K, V> weigher) {
+        return create(new LruCache<K, CachedValue<V>>(maxWeight) {
+            @Override
+            protected int sizeOf(K key, CachedValue<V> cachedValue) {
+                return cachedValue.isNegative() ? 1 : weigher.weigh(key, cachedValue.getValue());
+            }
+        });
+    }
 }
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.util;
+
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+
+/**
+ * Process-wide cache of the results of {@link PhoneNumberUtils#formatNumber},
+ * {@link PhoneNumberUtils#formatNumberToE164} and {@link PhoneNumberUtils#normalizeNumber}.
+ * <p>
+ * Each of these parses the number with libphonenumber, and the call log, call details, search
+ * lists and notifications keep asking for the same few numbers. Results are keyed by the kind of
+ * formatting, the number and the country, and the cache is bounded by an estimate of the memory
+ * used by its entries rather than by their number.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class PhoneNumberFormatCache {
+    /** Upper bound on the estimated memory used by the cached entries, in bytes. */
+    private static final int MAX_CACHE_BYTES = 96 * 1024;
+
+    /** Estimated memory used by an entry in addition to its strings, in bytes. */
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+    private static final int KIND_FORMAT = 0;
+    private static final int KIND_FORMAT_WITH_E164 = 1;
+    private static final int KIND_FORMAT_E164 = 2;
+    private static final int KIND_NORMALIZE = 3;
+
+    private static final ExpirableCache<Key, String> sCache = ExpirableCache.create(
+            MAX_CACHE_BYTES, new ExpirableCache.Weigher<Key, String>() {
+                @Override
+                public int weigh(Key key, String value) {
+                    return ENTRY_OVERHEAD_BYTES + 2 * (length(key.number)
+                            + length(key.normalizedNumber) + length(key.countryIso)
+                            + length(value));
+                }
+            });
+
+    private PhoneNumberFormatCache() {}
+
+    /**
+     * Same as {@link PhoneNumberUtils#formatNumber(String, String)}.
+     */
+    public static String formatNumber(String number, String countryIso) {
+        if (number == null) {
+            return null;
+        }
+        final Key key = new Key(KIND_FORMAT, number, null, countryIso);
+        final ExpirableCache.CachedValue<String> cachedValue = sCache.getCachedValue(key);
+        if (cachedValue != null) {
+            return cachedValue.getValue();
+        }
+        final String formattedNumber = PhoneNumberUtils.formatNumber(number, countryIso);
+        sCache.put(key, formattedNumber);
+        return formattedNumber;
+    }
+
+    /**
+     * Same as {@link PhoneNumberUtils#formatNumber(String, String, String)}.
+     */
+    public static String formatNumber(String number, String normalizedNumber, String countryIso) {
+        if (number == null) {
+            return null;
+        }
+        final Key key = new Key(KIND_FORMAT_WITH_E164, number, normalizedNumber, countryIso);
+        final ExpirableCache.CachedValue<String> cachedValue = sCache.getCachedValue(key);
+        if (cachedValue != null) {
+            return cachedValue.getValue();
+        }
+        final String formattedNumber =
+                PhoneNumberUtils.formatNumber(number, normalizedNumber, countryIso);
+        sCache.put(key, formattedNumber);
+        return formattedNumber;
+    }
+
+    /**
+     * Same as {@link PhoneNumberUtils#formatNumberToE164(String, String)}.
+     */
+    public static String formatNumberToE164(String number, String countryIso) {
+        if (number == null) {
+            return null;
+        }
+        final Key key = new Key(KIND_FORMAT_E164, number, null, countryIso);
+        final ExpirableCache.CachedValue<String> cachedValue = sCache.getCachedValue(key);
+        if (cachedValue != null) {
+            return cachedValue.getValue();
+        }
+        final String e164Number = PhoneNumberUtils.formatNumberToE164(number, countryIso);
+        sCache.put(key, e164Number);
+        return e164Number;
+    }
+
+    /**
+     * Same as {@link PhoneNumberUtils#normalizeNumber(String)}.
+     */
+    public static String normalizeNumber(String number) {
+        if (number == null) {
+            return null;
+        }
+        final Key key = new Key(KIND_NORMALIZE, number, null, null);
+        final ExpirableCache.CachedValue<String> cachedValue = sCache.getCachedValue(key);
+        if (cachedValue != null) {
+            return cachedValue.getValue();
+        }
+        final String normalizedNumber = PhoneNumberUtils.normalizeNumber(number);
+        sCache.put(key, normalizedNumber);
+        return normalizedNumber;
+    }
+
+    /**
+     * Returns the statistics of the cache.
+     */
+    public static ExpirableCache.Stats getStats() {
+        return sCache.getStats();
+    }
+
+    private static int length(String string) {
+        return string == null ? 0 : string.length();
+    }
+
+    private static final class Key {
+        public final int kind;
+        public final String number;
+        public final String normalizedNumber;
+        public final String countryIso;
+
+        public Key(int kind, String number, String normalizedNumber, String countryIso) {
+            this.kind = kind;
+            this.number = number;
+            this.normalizedNumber = normalizedNumber;
+            this.countryIso = countryIso;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return kind == other.kind
+                    && TextUtils.equals(number, other.number)
+                    && TextUtils.equals(normalizedNumber, other.normalizedNumber)
+                    && TextUtils.equals(countryIso, other.countryIso);
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = kind;
+            result = prime * result + ((number == null) ? 0 : number.hashCode());
+            result = prime * result
+                    + ((normalizedNumber == null) ? 0 : normalizedNumber.hashCode());
+            result = prime * result + ((countryIso == null) ? 0 : countryIso.hashCode());
+            return result;
+        }
+    }
+}
@@ -25,11 +25,10 @@ import android.util.Pair;
 
 import com.android.contacts.common.util.PhoneNumberHelper;
 import com.android.contacts.common.util.TelephonyManagerUtils;
+import com.android.contacts.common.location.GeocodedLocationCache;
 import com.google.common.collect.Sets;
-import com.google.i18n.phonenumbers.NumberParseException;
-import com.google.i18n.phonenumbers.Phonenumber;
-import com.google.i18n.phonenumbers.geocoding.PhoneNumberOfflineGeocoder;
 
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
@@ -106,30 +105,21 @@ public class PhoneNumberUtil {
             return null;
         }
 
-        com.google.i18n.phonenumbers.PhoneNumberUtil util =
-                com.google.i18n.phonenumbers.PhoneNumberUtil.getInstance();
-        PhoneNumberOfflineGeocoder geocoder = PhoneNumberOfflineGeocoder.getInstance();
-
         Locale locale = context.getResources().getConfiguration().locale;
         String countryIso = TelephonyManagerUtils.getCurrentCountryIso(context, locale);
-        Phonenumber.PhoneNumber pn = null;
-        try {
-            Log.v(TAG, "parsing '" + pii(number)
-                    + "' for countryIso '" + countryIso + "'...");
-            pn = util.parse(number, countryIso);
-            Log.v(TAG, "- parsed number: " + pii(pn));
-        } catch (NumberParseException e) {
-            Log.v(TAG, "getGeoDescription: NumberParseException for incoming number '" +
-                    pii(number) + "'");
-        }
-
-        if (pn != null) {
-            String description = geocoder.getDescriptionForNumber(pn, locale);
-            Log.v(TAG, "- got description: '" + description + "'");
-            return description;
-        }
+        String description = GeocodedLocationCache.getDescription(number, countryIso, locale);
+        Log.v(TAG, "- got description: '" + description + "'");
+        return description;
+    }
 
-        return null;
+    /**
+     * Computes the geographical descriptions of the given numbers on a background thread, so that
+     * later calls to {@link #getGeoDescription} for them do not have to.
+     */
+    public static void prefetchGeoDescriptions(Context context, Collection<String> numbers) {
+        Locale locale = context.getResources().getConfiguration().locale;
+        String countryIso = TelephonyManagerUtils.getCurrentCountryIso(context, locale);
+        GeocodedLocationCache.prefetch(numbers, countryIso, locale);
     }
 
     private static String pii(Object pii) {
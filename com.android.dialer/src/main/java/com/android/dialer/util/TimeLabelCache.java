@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.util;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.text.format.DateUtils;
+import android.util.LruCache;
+
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Process-wide cache of the date and time labels displayed in the call log and call details.
+ * <p>
+ * {@link DateUtils} allocates new formatters and calendars for every label it formats, while the
+ * rows of the call log share a handful of labels: "5 min. ago", "Yesterday", "Jun 12", etc.
+ * Labels are cached by the value which determines them, e.g. the number of whole minutes elapsed
+ * since the call or the local day on which the call was made, along with the formatting flags and
+ * the locale.
+ * <p>
+ * The cache is cleared when the time, the time zone or the locale of the device change. Changing
+ * the 24-hour format preference also broadcasts {@link Intent#ACTION_TIME_CHANGED}.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class TimeLabelCache {
+    private static final int MAX_ENTRIES = 200;
+
+    private static final int KIND_RELATIVE_MINUTES = 0;
+    private static final int KIND_RELATIVE_HOURS = 1;
+    private static final int KIND_RELATIVE_DAYS = 2;
+    private static final int KIND_DATE = 3;
+    private static final int KIND_DATE_TIME = 4;
+    private static final int KIND_RELATIVE_WEEKS = 5;
+
+    private static TimeLabelCache sInstance;
+
+    private final Context mContext;
+    private final LruCache<Key, CharSequence> mLabels = new LruCache<>(MAX_ENTRIES);
+
+    /** The default time zone, cached since {@link TimeZone#getDefault()} returns a copy. */
+    private TimeZone mTimeZone = TimeZone.getDefault();
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            invalidate();
+        }
+    };
+
+    public static synchronized TimeLabelCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new TimeLabelCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private TimeLabelCache(Context context) {
+        mContext = context;
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_TIME_CHANGED);
+        filter.addAction(Intent.ACTION_TIMEZONE_CHANGED);
+        filter.addAction(Intent.ACTION_LOCALE_CHANGED);
+        mContext.registerReceiver(mReceiver, filter);
+    }
+
+    /**
+     * Same as {@link DateUtils#getRelativeTimeSpanString(long, long, long, int)} with a minimum
+     * resolution of {@link DateUtils#MINUTE_IN_MILLIS}.
+     */
+    public CharSequence getRelativeTimeSpanString(long time, long now, int flags) {
+        final long duration = now - time;
+        if (duration < 0) {
+            // Calls in the future are only seen if the clock changed, don't bother caching them.
+            return DateUtils.getRelativeTimeSpanString(
+                    time, now, DateUtils.MINUTE_IN_MILLIS, flags);
+        }
+
+        final Key key;
+        synchronized (this) {
+            if (duration < DateUtils.HOUR_IN_MILLIS) {
+                key = newKey(KIND_RELATIVE_MINUTES, flags,
+                        duration / DateUtils.MINUTE_IN_MILLIS, 0);
+            } else if (duration < DateUtils.DAY_IN_MILLIS) {
+                key = newKey(KIND_RELATIVE_HOURS, flags, duration / DateUtils.HOUR_IN_MILLIS, 0);
+            } else if (duration < DateUtils.WEEK_IN_MILLIS) {
+                // Older calls are labeled with the number of days elapsed.
+                key = newKey(KIND_RELATIVE_DAYS, flags, getLocalDay(time), getLocalDay(now));
+            } else {
+                // Calls older than a week are labeled with their date. Both kinds of labels can
+                // be used within the same day, so they are keyed apart.
+                key = newKey(KIND_RELATIVE_WEEKS, flags, getLocalDay(time), getLocalDay(now));
+            }
+        }
+        CharSequence label = mLabels.get(key);
+        if (label == null) {
+            label = DateUtils.getRelativeTimeSpanString(
+                    time, now, DateUtils.MINUTE_IN_MILLIS, flags);
+            mLabels.put(key, label);
+        }
+        return label;
+    }
+
+    /**
+     * Same as {@link DateUtils#formatDateTime(Context, long, int)}.
+     *
+     * @param now the current time, since the year is omitted from dates in the current year
+     */
+    public String formatDateTime(long time, long now, int flags) {
+        final Key key;
+        synchronized (this) {
+            if ((flags & DateUtils.FORMAT_SHOW_TIME) != 0) {
+                key = newKey(KIND_DATE_TIME, flags, getLocalMinute(time), getLocalDay(now));
+            } else {
+                key = newKey(KIND_DATE, flags, getLocalDay(time), getLocalDay(now));
+            }
+        }
+        CharSequence label = mLabels.get(key);
+        if (label == null) {
+            label = DateUtils.formatDateTime(mContext, time, flags);
+            mLabels.put(key, label);
+        }
+        return label.toString();
+    }
+
+    /**
+     * Clears the cached labels and picks up the current time zone.
+     */
+    public void invalidate() {
+        synchronized (this) {
+            mTimeZone = TimeZone.getDefault();
+        }
+        mLabels.evictAll();
+    }
+
+    private Key newKey(int kind, int flags, long bucket, long referenceBucket) {
+        return new Key(kind, flags, bucket, referenceBucket, Locale.getDefault());
+    }
+
+    /** Returns the number of days between the epoch and the local day of the given time. */
+    private long getLocalDay(long time) {
+        return (time + mTimeZone.getOffset(time)) / DateUtils.DAY_IN_MILLIS;
+    }
+
+    /** Returns the number of minutes between the epoch and the local minute of the given time. */
+    private long getLocalMinute(long time) {
+        return (time + mTimeZone.getOffset(time)) / DateUtils.MINUTE_IN_MILLIS;
+    }
+
+    private static final class Key {
+        public final int kind;
+        public final int flags;
+        public final long bucket;
+        public final long referenceBucket;
+        public final Locale locale;
+
+        public Key(int kind, int flags, long bucket, long referenceBucket, Locale locale) {
+            this.kind = kind;
+            this.flags = flags;
+            this.bucket = bucket;
+            this.referenceBucket = referenceBucket;
+            this.locale = locale;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return kind == other.kind
+                    && flags == other.flags
+                    && bucket == other.bucket
+                    && referenceBucket == other.referenceBucket
+                    && locale.equals(other.locale);
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = kind;
+            result = prime * result + flags;
+            result = prime * result + (int) (bucket ^ (bucket >>> 32));
+            result = prime * result + (int) (referenceBucket ^ (referenceBucket >>> 32));
+            result = prime * result + locale.hashCode();
+            return result;
+        }
+    }
+}
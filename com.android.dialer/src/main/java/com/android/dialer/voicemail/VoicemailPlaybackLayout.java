@@ -480,6 +480,9 @@ public class VoicemailPlaybackLayout extends LinearLayout
     @Override
     public void onGetCallDetails(PhoneCallDetails[] details) {}
 
+    @Override
+    public void onGetAllCallDetails(PhoneCallDetails[] details) {}
+
     private String getString(int resId) {
         return mContext.getString(resId);
     }